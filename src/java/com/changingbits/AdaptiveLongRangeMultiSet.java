@@ -0,0 +1,237 @@
+package com.changingbits;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/** A {@link LongRangeMultiSet} that keeps re-training its
+ *  tree as the distribution of looked up values drifts.
+ *  One in every {@code sampleInterval} lookups is counted
+ *  into a histogram over the elementary intervals; every
+ *  {@code checkSamples} samples a background task compares
+ *  the expected path length (comparisons per lookup) of the
+ *  current tree against a tree re-split from the histogram,
+ *  and if the current tree is worse by more than {@code
+ *  rebuildThreshold}, compiles and swaps in the new tree.
+ *  The histogram is halved after each check so it tracks
+ *  recent values.
+ *
+ *  <p> Sampling is deliberately racy: concurrent lookups
+ *  may lose a few samples, which only makes the histogram
+ *  slightly less precise.
+ *
+ *  <p> See {@link Builder#getAdaptiveMultiSet} for creating
+ *  an instance of this. */
+
+public final class AdaptiveLongRangeMultiSet extends LongRangeMultiSet {
+
+  /** Default for how many lookups per sample. */
+  public static final int DEFAULT_SAMPLE_INTERVAL = 64;
+
+  /** Default for how many samples between checks. */
+  public static final int DEFAULT_CHECK_SAMPLES = 16384;
+
+  /** Default for how much worse (ratio of expected path
+   *  lengths) the current tree must be before it is
+   *  rebuilt. */
+  public static final double DEFAULT_REBUILD_THRESHOLD = 1.1;
+
+  /** The live tree and its per-leaf depths. */
+  private static final class Tree {
+    final LongRangeMultiSet set;
+    final int[] leafDepths;
+
+    Tree(LongRangeMultiSet set, int[] leafDepths) {
+      this.set = set;
+      this.leafDepths = leafDepths;
+    }
+  }
+
+  private final Builder builder;
+  private final boolean useAsm;
+  private final ExecutorService executor;
+  private final int sampleInterval;
+  private final int checkSamples;
+  private final double rebuildThreshold;
+
+  // Max value of each elementary interval:
+  private final long[] boundaries;
+  private final long[] histogram;
+
+  private volatile Tree current;
+
+  // Racy counters, only used for sampling:
+  private int countdown;
+  private int samples;
+
+  private final AtomicBoolean checking = new AtomicBoolean();
+
+  // Metrics, written only by the check task:
+  private volatile long checkCount;
+  private volatile long rebuildCount;
+  private volatile double lastRebuildGain;
+
+  AdaptiveLongRangeMultiSet(Builder builder, boolean useAsm, ExecutorService executor,
+                            int sampleInterval, int checkSamples, double rebuildThreshold) {
+    if (sampleInterval < 1) {
+      throw new IllegalArgumentException("sampleInterval must be >= 1; got " + sampleInterval);
+    }
+    if (checkSamples < 1) {
+      throw new IllegalArgumentException("checkSamples must be >= 1; got " + checkSamples);
+    }
+    if (rebuildThreshold < 1.0) {
+      throw new IllegalArgumentException("rebuildThreshold must be >= 1.0; got " + rebuildThreshold);
+    }
+    this.builder = builder;
+    this.useAsm = useAsm;
+    this.executor = executor;
+    this.sampleInterval = sampleInterval;
+    this.checkSamples = checkSamples;
+    this.rebuildThreshold = rebuildThreshold;
+    boundaries = builder.getElementaryBoundaries();
+    histogram = new long[boundaries.length];
+    current = new Tree(builder.getMultiSet(useAsm, false), builder.getLeafDepths());
+    countdown = sampleInterval;
+  }
+
+  @Override
+  public int lookup(long v, int[] answers) {
+    if (--countdown <= 0) {
+      sample(v);
+    }
+    return current.set.lookup(v, answers);
+  }
+
+  /** Does not sample, since interval lookups do not follow
+   *  a single path in the tree. */
+  @Override
+  public int lookupOverlapping(long a, long b, int[] answers) {
+    return current.set.lookupOverlapping(a, b, answers);
+  }
+
+  /** Does not sample, like {@link #lookupOverlapping}. */
+  @Override
+  public int firstMatch(long v) {
+    return current.set.firstMatch(v);
+  }
+
+  /** Does not sample, like {@link #lookupOverlapping}. */
+  @Override
+  public boolean matchesAny(long v) {
+    return current.set.matchesAny(v);
+  }
+
+  private void sample(long v) {
+    countdown = sampleInterval;
+
+    // Find the first elementary interval whose max is >= v:
+    int lo = 0;
+    int hi = boundaries.length - 1;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (v <= boundaries[mid]) {
+        hi = mid;
+      } else {
+        lo = mid + 1;
+      }
+    }
+    histogram[lo]++;
+
+    if (++samples >= checkSamples && checking.compareAndSet(false, true)) {
+      samples = 0;
+      try {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+              try {
+                check();
+              } finally {
+                checking.set(false);
+              }
+            }
+          });
+      } catch (RejectedExecutionException ree) {
+        // Executor was shut down; keep serving the current
+        // tree:
+        checking.set(false);
+      }
+    }
+  }
+
+  /** Compares the current tree against one re-split from
+   *  the recent histogram, and swaps if it is enough
+   *  better. */
+  private void check() {
+    long[] counts = histogram.clone();
+    for(int i=0;i<histogram.length;i++) {
+      histogram[i] >>>= 1;
+    }
+
+    Tree tree = current;
+    double cost = expectedCost(tree.leafDepths, counts);
+
+    Builder retrained = builder.retrain(counts);
+    int[] newDepths = retrained.getLeafDepths();
+    double newCost = expectedCost(newDepths, counts);
+    checkCount++;
+
+    if (cost > newCost * rebuildThreshold) {
+      current = new Tree(retrained.getMultiSet(useAsm, false), newDepths);
+      lastRebuildGain = cost / newCost;
+      rebuildCount++;
+    }
+  }
+
+  /** Average number of comparisons to reach a leaf,
+   *  weighted by the counts. */
+  static double expectedCost(int[] leafDepths, long[] counts) {
+    double sum = 0;
+    double total = 0;
+    for(int i=0;i<counts.length;i++) {
+      sum += (double) counts[i] * leafDepths[i];
+      total += counts[i];
+    }
+    return total == 0 ? 0.0 : sum / total;
+  }
+
+  /** Returns the expected number of comparisons per lookup
+   *  under the current tree, for the recent histogram. */
+  public double getExpectedCost() {
+    return expectedCost(current.leafDepths, histogram.clone());
+  }
+
+  /** Returns how many times the tree was checked against
+   *  the histogram. */
+  public long getCheckCount() {
+    return checkCount;
+  }
+
+  /** Returns how many times the tree was rebuilt. */
+  public long getRebuildCount() {
+    return rebuildCount;
+  }
+
+  /** Returns the ratio of expected comparisons per lookup
+   *  of the replaced tree vs the new tree, at the most
+   *  recent rebuild, or 0.0 if there was none yet. */
+  public double getLastRebuildGain() {
+    return lastRebuildGain;
+  }
+}
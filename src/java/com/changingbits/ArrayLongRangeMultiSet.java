@@ -23,24 +23,42 @@ import java.util.Arrays;
 public class ArrayLongRangeMultiSet extends LongRangeMultiSet {
 
   // Start/end for each node:
-  private final long[] starts;
-  private final long[] ends;
+  final long[] starts;
+  final long[] ends;
+
+  // If not null, the narrow key (see Builder.narrowKey) of
+  // each node's end, used instead of ends:
+  private final int[] narrowEnds;
+  private final long hardMin;
 
   // Slice (address + count) into rangeIndices array for
   // each node's outputs:
-  private final int[] rangeAddress;
-  private final int[] rangeCounts;
+  final int[] rangeAddress;
+  final int[] rangeCounts;
 
   // Range indices (outputs):
-  private final int[] rangeIndices;
+  final int[] rangeIndices;
+
+  // Min (inclusive) of each range, for lookupOverlapping:
+  private final long[] rangeMins;
 
-  ArrayLongRangeMultiSet(Node root) {
+  ArrayLongRangeMultiSet(Node root, long hardMin, boolean narrow, long[] rangeMins) {
+    this.rangeMins = rangeMins;
     int count = countNodes(root);
     starts = new long[count+1];
     ends = new long[count+1];
     rangeAddress = new int[count+1];
     rangeCounts = new int[count+1];
     int outputCount = setStartEnds(root, 1);
+    this.hardMin = hardMin;
+    if (narrow) {
+      narrowEnds = new int[count+1];
+      for(int i=1;i<=count;i++) {
+        narrowEnds[i] = Builder.narrowKey(ends[i], hardMin);
+      }
+    } else {
+      narrowEnds = null;
+    }
     rangeIndices = new int[outputCount];
     fillOutputs(root, 1, 0);
     /*
@@ -89,6 +107,9 @@ public class ArrayLongRangeMultiSet extends LongRangeMultiSet {
 
   @Override
   public int lookup(long v, int[] matchedRanges) {
+    if (narrowEnds != null) {
+      return lookupNarrow(1, Builder.narrowKey(v, hardMin), matchedRanges, 0);
+    }
     return lookup(1, v, matchedRanges, 0);
   }
 
@@ -112,4 +133,111 @@ public class ArrayLongRangeMultiSet extends LongRangeMultiSet {
 
     return upto;
   }
+
+  private int lookupNarrow(int nodeID, int key, int[] matchedRanges, int upto) {
+    int outputCount = rangeCounts[nodeID];
+    if (outputCount != 0) {
+      int start = rangeAddress[nodeID];
+      int limit = start + outputCount;
+      for(int i=start;i<limit;i++) {
+        matchedRanges[upto++] = rangeIndices[i];
+      }
+    }
+    int left = 2*nodeID;
+    if (left < narrowEnds.length) {
+      if (key <= narrowEnds[left]) {
+        upto = lookupNarrow(left, key, matchedRanges, upto);
+      } else {
+        upto = lookupNarrow(left+1, key, matchedRanges, upto);
+      }
+    }
+
+    return upto;
+  }
+
+  @Override
+  public int firstMatch(long v) {
+    int key = narrowEnds == null ? 0 : Builder.narrowKey(v, hardMin);
+    // Outputs are sorted, so each node's first one is its
+    // lowest:
+    int best = Integer.MAX_VALUE;
+    int nodeID = 1;
+    while (true) {
+      if (rangeCounts[nodeID] != 0) {
+        best = Math.min(best, rangeIndices[rangeAddress[nodeID]]);
+      }
+      int left = 2*nodeID;
+      if (left >= starts.length) {
+        break;
+      }
+      if (narrowEnds != null ? key <= narrowEnds[left] : v <= ends[left]) {
+        nodeID = left;
+      } else {
+        nodeID = left+1;
+      }
+    }
+    return best == Integer.MAX_VALUE ? -1 : best;
+  }
+
+  @Override
+  public boolean matchesAny(long v) {
+    int key = narrowEnds == null ? 0 : Builder.narrowKey(v, hardMin);
+    int nodeID = 1;
+    while (true) {
+      if (rangeCounts[nodeID] != 0) {
+        return true;
+      }
+      int left = 2*nodeID;
+      if (left >= starts.length) {
+        return false;
+      }
+      if (narrowEnds != null ? key <= narrowEnds[left] : v <= ends[left]) {
+        nodeID = left;
+      } else {
+        nodeID = left+1;
+      }
+    }
+  }
+
+  @Override
+  public int lookupOverlapping(long a, long b, int[] matchedRanges) {
+    if (a > b || b < starts[1] || a > ends[1]) {
+      return 0;
+    }
+    return lookupOverlapping(1, a, b, matchedRanges, 0);
+  }
+
+  private int lookupOverlapping(int nodeID, long a, long b, int[] matchedRanges, int upto) {
+    int outputCount = rangeCounts[nodeID];
+    if (outputCount != 0) {
+      int start = rangeAddress[nodeID];
+      int limit = start + outputCount;
+      // A range may be on several of the visited nodes, but
+      // only one of them holds max(a, range's min):
+      long nodeStart = starts[nodeID];
+      if (a >= nodeStart) {
+        for(int i=start;i<limit;i++) {
+          matchedRanges[upto++] = rangeIndices[i];
+        }
+      } else {
+        for(int i=start;i<limit;i++) {
+          int range = rangeIndices[i];
+          if (rangeMins[range] >= nodeStart) {
+            matchedRanges[upto++] = range;
+          }
+        }
+      }
+    }
+    int left = 2*nodeID;
+    if (left < starts.length) {
+      if (a <= ends[left]) {
+        upto = lookupOverlapping(left, a, b, matchedRanges, upto);
+      }
+      if (b >= starts[left+1]) {
+        upto = lookupOverlapping(left+1, a, b, matchedRanges, upto);
+      }
+    }
+
+    return upto;
+  }
 }
@@ -0,0 +1,41 @@
+package com.changingbits;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/** Base class for asm IntRangeCounter impl. */
+public abstract class BaseIntRangeCounter extends IntRangeCounter {
+  private final Node root;
+  private final int numRanges;
+  protected final int[] elementaryCounts;
+
+  protected BaseIntRangeCounter(Node root, int numLeaves, int numRanges) {
+    this.root = root;
+    this.numRanges = numRanges;
+    elementaryCounts = new int[numLeaves];
+  }
+
+  @Override
+  public abstract void add(int v);
+
+  @Override
+  public int[] getCounts() {
+    int[] counts = new int[numRanges];
+    BaseLongRangeCounter.rollup(root, elementaryCounts, new int[1], counts);
+    return counts;
+  }
+}
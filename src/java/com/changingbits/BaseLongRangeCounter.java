@@ -26,6 +26,10 @@ public abstract class BaseLongRangeCounter extends LongRangeCounter {
   private final int numRanges;
   protected final int[] elementaryCounts;
 
+  // Max (inclusive) of each leaf, for addAll; created on
+  // first use:
+  private long[] leafEnds;
+
   protected BaseLongRangeCounter(Node root, int numLeaves, int numRanges) {
     this.root = root;
     this.numRanges = numRanges;
@@ -35,18 +39,133 @@ public abstract class BaseLongRangeCounter extends LongRangeCounter {
   @Override
   public abstract void add(long v);
 
+  /** If the values are sorted, counts them with a single
+   *  merge against the leaves, else adds them one by
+   *  one. */
+  @Override
+  public void addAll(long[] values, int off, int len) {
+    if (off < 0 || len < 0 || off > values.length - len) {
+      throw new IndexOutOfBoundsException("off=" + off + " len=" + len + " values.length=" + values.length);
+    }
+    if (addSorted(getLeafEnds(), values, off, off+len, elementaryCounts, 0) == false) {
+      super.addAll(values, off, len);
+    }
+  }
+
+  private long[] getLeafEnds() {
+    if (leafEnds == null) {
+      leafEnds = new long[elementaryCounts.length];
+      setLeafEnds(root, 0);
+    }
+    return leafEnds;
+  }
+
+  private int setLeafEnds(Node node, int upto) {
+    if (node.left != null) {
+      upto = setLeafEnds(node.left, upto);
+      return setLeafEnds(node.right, upto);
+    } else {
+      leafEnds[upto] = node.end;
+      return upto+1;
+    }
+  }
+
+  /** If values[off] to values[end-1] are sorted, counts
+   *  each into elementaryCounts[countsOffset + leaf], where
+   *  ends has the max (inclusive) of each leaf, and returns
+   *  true; else counts nothing and returns false.  Each
+   *  leaf's count is the length of its run of values, found
+   *  by galloping, so this costs one pass to check the
+   *  order plus O(log(run length)) per non-empty leaf. */
+  static boolean addSorted(long[] ends, long[] values, int off, int end, int[] elementaryCounts, int countsOffset) {
+    for(int i=off+1;i<end;i++) {
+      if (values[i] < values[i-1]) {
+        return false;
+      }
+    }
+
+    int leaf = 0;
+    int i = off;
+    while (i < end) {
+      long v = values[i];
+
+      // Find the leaf holding v; it is at or after the
+      // current one:
+      int hi = ends.length - 1;
+      while (leaf < hi) {
+        int mid = (leaf + hi) >>> 1;
+        if (v <= ends[mid]) {
+          hi = mid;
+        } else {
+          leaf = mid + 1;
+        }
+      }
+      long leafEnd = ends[leaf];
+
+      // Gallop to bracket the end of the run, keeping
+      // values[lo] <= leafEnd:
+      int lo = i;
+      int step = 1;
+      while (lo + step < end && values[lo + step] <= leafEnd) {
+        lo += step;
+        step <<= 1;
+      }
+
+      // Then binary search for the first value past the
+      // leaf:
+      int runEnd = Math.min(lo + step, end);
+      lo++;
+      while (lo < runEnd) {
+        int mid = (lo + runEnd) >>> 1;
+        if (values[mid] <= leafEnd) {
+          lo = mid + 1;
+        } else {
+          runEnd = mid;
+        }
+      }
+
+      elementaryCounts[countsOffset + leaf] += lo - i;
+      i = lo;
+      leaf++;
+    }
+    return true;
+  }
+
+  /** The compiled add only counts values in leaves that
+   *  some range covers, so counting across any other leaf
+   *  is rejected. */
+  @Override
+  public PrefixCounts getPrefixCounts() {
+    boolean[] tracked = new boolean[elementaryCounts.length];
+    setTracked(root, false, tracked, 0);
+    return new PrefixCounts(root.start, getLeafEnds(), elementaryCounts, 0, tracked);
+  }
+
+  static int setTracked(Node node, boolean sawOutputs, boolean[] tracked, int upto) {
+    sawOutputs |= node.outputs != null;
+    if (node.left != null) {
+      upto = setTracked(node.left, sawOutputs, tracked, upto);
+      return setTracked(node.right, sawOutputs, tracked, upto);
+    } else {
+      tracked[upto] = sawOutputs;
+      return upto+1;
+    }
+  }
+
   @Override
   public int[] getCounts() {
     int[] counts = new int[numRanges];
-    rollup(root, new int[1], counts);
+    rollup(root, elementaryCounts, new int[1], counts);
     return counts;
   }
 
-  private int rollup(Node node, int[] leafUpto, int[] counts) {
+  /** Adds the count of each leaf under node, in order, to
+   *  the ranges of its node and all of its ancestors. */
+  static int rollup(Node node, int[] elementaryCounts, int[] leafUpto, int[] counts) {
     int count;
     if (node.left != null) {
-      count = rollup(node.left, leafUpto, counts);
-      count += rollup(node.right, leafUpto, counts);
+      count = rollup(node.left, elementaryCounts, leafUpto, counts);
+      count += rollup(node.right, elementaryCounts, leafUpto, counts);
     } else {
       // We are a leaf:
       count = elementaryCounts[leafUpto[0]];
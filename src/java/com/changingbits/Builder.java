@@ -18,19 +18,35 @@ package com.changingbits;
  */
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
@@ -47,28 +63,167 @@ import org.objectweb.asm.commons.Method;
 
 public final class Builder {
 
+  /** Which implementation {@link #getMultiSet(Engine)} or
+   *  {@link #getCounter(Engine)} should return. */
+  public enum Engine {
+    /** Scans all ranges on each lookup; multi-set only. */
+    LINEAR,
+
+    /** Walks the tree in java (multi-set), or binary
+     *  searches the elementary intervals (counter). */
+    SIMPLE,
+
+    /** Walks a perfectly balanced tree stored in arrays;
+     *  multi-set only, and ignores training data. */
+    ARRAY,
+
+    /** Tree compiled to bytecode with asm; the counter
+     *  version counts into an array. */
+    ASM,
+
+    /** Hottest nodes compiled to bytecode with asm, the
+     *  rest searched in arrays (see {@link
+     *  #getHybridMultiSet}); multi-set only. */
+    HYBRID,
+
+    /** Tree compiled to bytecode with asm, counting into
+     *  one field per elementary interval (see {@link
+     *  #getCounter2}); counter only. */
+    ASM_FIELDS,
+
+    /** Point ranges (min == max) matched with a hash
+     *  lookup, and the other ranges with a separate tree
+     *  built using {@link #AUTO} (see {@link
+     *  #getPointMultiSet} and {@link #getPointCounter}). */
+    POINT,
+
+    /** Picks the engine that should be fastest, using a
+     *  cost model and optionally a short calibration run;
+     *  see {@link #setAutoCalibrate} and {@link
+     *  #getAutoDiagnostic}. */
+    AUTO
+  }
+
   private static final String COMPILED_TREE_CLASS = LongRangeMultiSet.class.getName() + "$Compiled";
   private static final Method LOOKUP_METHOD = Method.getMethod("int lookup(long, int[])");
+  private static final Method LOOKUP_OVERLAPPING_METHOD = Method.getMethod("int lookupOverlapping(long, long, int[])");
+  private static final Method FIRST_MATCH_METHOD = Method.getMethod("int firstMatch(long)");
+  private static final Method MATCHES_ANY_METHOD = Method.getMethod("boolean matchesAny(long)");
   private static final Type LONG_RANGE_MULTI_SET_TYPE = Type.getType(LongRangeMultiSet.class);
 
+  private static final String COMPILED_HYBRID_CLASS = HybridLongRangeMultiSet.class.getName() + "$Compiled";
+  private static final Type HYBRID_LONG_RANGE_MULTI_SET_TYPE = Type.getType(HybridLongRangeMultiSet.class);
+  private static final Method LOOKUP_SUBTREE_METHOD = Method.getMethod("int lookupSubtree(int, long, int[], int)");
+  private static final Method LOOKUP_SUBTREE_NARROW_METHOD = Method.getMethod("int lookupSubtreeNarrow(int, int, int[], int)");
+
   private static final String COMPILED_COUNTER_CLASS = BaseLongRangeCounter.class.getName() + "$Compiled";
   private static final Method ADD_METHOD = Method.getMethod("void add(long)");
   private static final Method GET_COUNTS_METHOD = Method.getMethod("int[] getCounts()");
-  private static final Type LONG_RANGE_COUNTER_TYPE = Type.getType(LongRangeCounter.class);
   private static final Type BASE_LONG_RANGE_COUNTER_TYPE = Type.getType(BaseLongRangeCounter.class);
   private static final Type INT_ARRAY_TYPE = Type.getType("[I");
 
-  private static final String COMPILED_COUNTER_CLASS2 = LongRangeCounter.class.getName() + "$Compiled";
-  private static final Type COMPILED_COUNTER_CLASS2_TYPE = Type.getType(COMPILED_COUNTER_CLASS2.replace('.', '/'));
+  private static final String COMPILED_COUNTER_CLASS2 = FieldsLongRangeCounter.class.getName() + "$Compiled";
+  private static final Type FIELDS_LONG_RANGE_COUNTER_TYPE = Type.getType(FieldsLongRangeCounter.class);
+  private static final Method COPY_COUNTS_METHOD = Method.getMethod("void copyCounts(int[])");
+
+  private static final String COMPILED_INT_TREE_CLASS = IntRangeMultiSet.class.getName() + "$Compiled";
+  private static final Method INT_LOOKUP_METHOD = Method.getMethod("int lookup(int, int[])");
+  private static final Type INT_RANGE_MULTI_SET_TYPE = Type.getType(IntRangeMultiSet.class);
+
+  private static final String COMPILED_INT_COUNTER_CLASS = BaseIntRangeCounter.class.getName() + "$Compiled";
+  private static final String COMPILED_INT_COUNTER_CLASS2 = IntRangeCounter.class.getName() + "$Compiled";
+  private static final Method INT_ADD_METHOD = Method.getMethod("void add(int)");
+  private static final Type INT_RANGE_COUNTER_TYPE = Type.getType(IntRangeCounter.class);
+  private static final Type BASE_INT_RANGE_COUNTER_TYPE = Type.getType(BaseIntRangeCounter.class);
+
+  private static final String COMPILED_FILTER_CLASS = LongRangeFilter.class.getName() + "$Compiled";
+  private static final Method ACCEPT_METHOD = Method.getMethod("boolean accept(long)");
+  private static final Type LONG_RANGE_FILTER_TYPE = Type.getType(LongRangeFilter.class);
+
+  private static final String COMPILED_FUSED_COUNTER_CLASS = FusedLongRangeCounter.class.getName() + "$Compiled";
+  private static final Method ADD_ROWS_METHOD = Method.getMethod("void addRows(long[][], int, int)");
+  private static final Type FUSED_LONG_RANGE_COUNTER_TYPE = Type.getType(FusedLongRangeCounter.class);
+  private static final Type LONG_ARRAY_TYPE = Type.getType("[J");
+  private static final Type INT_ARRAY_ARRAY_TYPE = Type.getType("[[I");
 
-  private final List<LongRange> elementaryIntervals;
   private final LongRange[] ranges;
 
+  // The "elementary intervals" are contiguous: the first
+  // one starts at hardMin, and each following one starts
+  // right after the max (inclusive) of the one before:
+  private final long hardMin;
+  private final long[] elementaryEnds;
+
   private final long[] elementaryCounts;
 
+  // Counts training values into elementaryCounts:
+  private ElementaryHistogram histogram;
+
+  // If not null, large builds are parallelized using this:
+  private final ForkJoinPool pool;
+
   // Set in finish:
   private Node root;
 
+  // True if root has the binarySplit shape:
+  private boolean binaryRoot;
+
+  // If true, values are compared as 32 bit keys when
+  // hardMax - hardMin allows:
+  private boolean narrowKeys = true;
+
+  // If true, Engine.AUTO times the candidates:
+  private boolean autoCalibrate;
+
+  // Explains the last Engine.AUTO choice:
+  private String autoDiagnostic;
+
+  // Calibration stores its results here so the JIT can't
+  // skip the timed calls:
+  private int calibrateSink;
+
+  // HotSpot won't JIT compile methods larger than this many
+  // bytes of bytecode (-XX:-DontCompileHugeMethods), so
+  // such methods run interpreted:
+  static final int JIT_MAX_METHOD_BYTES = 8000;
+
+  // The class file format limits each method to this many
+  // bytes of bytecode:
+  static final int MAX_METHOD_BYTES = 65535;
+
+  /** Default bytecode budget for {@link
+   *  #getHybridMultiSet}, well below the limit for JIT
+   *  compilation. */
+  public static final int DEFAULT_HYBRID_CODE_BYTES = 4000;
+
+  // Relative cost of each step in the cost model used by
+  // Engine.AUTO, per lookup or add:
+  private static final double COST_LINEAR_RANGE = 1.0;
+  private static final double COST_SIMPLE_NODE = 3.0;
+  private static final double COST_ASM_NODE = 1.0;
+  private static final double COST_ARRAY_NODE = 2.0;
+  private static final double COST_SUBTREE_CALL = 2.0;
+  private static final double COST_MATCH = 1.0;
+  private static final double COST_BINARY_SEARCH_STEP = 2.0;
+  private static final double COST_ASM_COUNT = 1.0;
+  private static final double COST_ASM_FIELDS_COUNT = 0.5;
+
+  // How many values Engine.AUTO calibrates on, and how
+  // many passes over them (the best pass is used):
+  private static final int CALIBRATE_VALUES = 4096;
+  private static final int CALIBRATE_ROUNDS = 25;
+
+  // Engine.AUTO never times LINEAR beyond this many ranges:
+  private static final int CALIBRATE_MAX_LINEAR_RANGES = 256;
+
+  // Below this many elementary intervals, we never build
+  // in parallel:
+  private static final int PARALLEL_MIN_LEAVES = 1 << 16;
+
+  // Subtrees with fewer leaves than this are split
+  // sequentially:
+  private static final int PARALLEL_SPLIT_LEAVES = 1 << 14;
+
   /** Create a builder, accepting the full range of longs
    * ({@code Long.MIN_VALUE} to {@code Long.MAX_VALUE}.
    *
@@ -92,84 +247,286 @@ public final class Builder {
    *    LongRangeMultiSet#lookup} will never be greater
    *    than this. */
   public Builder(LongRange[] ranges, long hardMin, long hardMax) {
+    this(ranges, hardMin, hardMax, null);
+  }
 
-    this.ranges = ranges;
+  /** Create a builder for int ranges, accepting the full
+   *  range of ints; use {@link #getIntMultiSet} or {@link
+   *  #getIntCounter} to look up int values.
+   *
+   * @param ranges Ranges to match. */
+  public Builder(IntRange[] ranges) {
+    this(ranges, Integer.MIN_VALUE, Integer.MAX_VALUE);
+  }
 
-    // Compute the "elementary intervals" from the
-    // incoming ranges:
+  /** Like {@link #Builder(LongRange[],long,long)}, for int
+   *  ranges.  Any builder whose hardMin and hardMax fit in
+   *  an int can build the int engines, but this saves
+   *  converting the ranges. */
+  public Builder(IntRange[] ranges, int hardMin, int hardMax) {
+    this(toLongRanges(ranges), hardMin, hardMax, null);
+  }
+
+  /** Create a builder for double ranges; values must be
+   *  encoded with {@link DoubleRange#toSortableLong} (or
+   *  {@link DoubleRange#toSortableLongs}) before lookup.
+   *
+   * @param ranges Ranges to match. */
+  public Builder(DoubleRange[] ranges) {
+    this(toLongRanges(ranges), Long.MIN_VALUE, Long.MAX_VALUE, null);
+  }
+
+  /** Create a builder for float ranges; values must be
+   *  encoded with {@link FloatRange#toSortableInt} (or
+   *  {@link FloatRange#toSortableInts}) before lookup,
+   *  typically with {@link #getIntMultiSet} or {@link
+   *  #getIntCounter}.
+   *
+   * @param ranges Ranges to match. */
+  public Builder(FloatRange[] ranges) {
+    this(toLongRanges(ranges), Integer.MIN_VALUE, Integer.MAX_VALUE, null);
+  }
+
+  private static LongRange[] toLongRanges(IntRange[] ranges) {
+    LongRange[] result = new LongRange[ranges.length];
+    for(int i=0;i<ranges.length;i++) {
+      result[i] = ranges[i].toLongRange();
+    }
+    return result;
+  }
+
+  private static LongRange[] toLongRanges(DoubleRange[] ranges) {
+    LongRange[] result = new LongRange[ranges.length];
+    for(int i=0;i<ranges.length;i++) {
+      result[i] = ranges[i].toLongRange();
+    }
+    return result;
+  }
 
-    // Maps an endpoint to int flags; 1 = start of
-    // interval, 2 = end of interval:
-    Map<Long,Integer> endsMap = new HashMap<Long,Integer>();
+  private static LongRange[] toLongRanges(FloatRange[] ranges) {
+    LongRange[] result = new LongRange[ranges.length];
+    for(int i=0;i<ranges.length;i++) {
+      result[i] = ranges[i].toLongRange();
+    }
+    return result;
+  }
+
+  /** Like {@link #Builder(LongRange[],long,long)}, but uses
+   *  the provided pool to parallelize the build (sorting
+   *  endpoints, splitting the tree and assigning outputs)
+   *  when there are many ranges.  The resulting tree is the
+   *  same as when building sequentially.
+   *
+   *  @param pool Pool to use, or null to build
+   *    sequentially. */
+  public Builder(LongRange[] ranges, long hardMin, long hardMax, ForkJoinPool pool) {
+
+    if (hardMin > hardMax) {
+      throw new IllegalArgumentException("hardMin must be <= hardMax; got hardMin=" + hardMin + " hardMax=" + hardMax);
+    }
+
+    this.ranges = ranges;
+    this.hardMin = hardMin;
+    this.pool = pool;
 
-    endsMap.put(hardMin, 1);
-    endsMap.put(hardMax, 2);
+    // Compute the "elementary intervals" from the
+    // incoming ranges.  Gather all starts and all ends
+    // (including hardMin/hardMax), sort each, then merge
+    // them:
+    final long[] starts = new long[ranges.length+1];
+    final long[] ends = new long[ranges.length+1];
+    starts[0] = hardMin;
+    ends[0] = hardMax;
+    int count = 1;
 
     for(LongRange range : ranges) {
-      Integer cur = endsMap.get(range.minIncl);
       if (range.minIncl < hardMin) {
         throw new IllegalArgumentException("range falls below hardMin");
       }
       if (range.maxIncl > hardMax) {
         throw new IllegalArgumentException("range falls above hardMax");
       }
-      if (cur == null) {
-        endsMap.put(range.minIncl, 1);
-      } else {
-        endsMap.put(range.minIncl, cur.intValue() | 1);
-      }
-      cur = endsMap.get(range.maxIncl);
-      if (cur == null) {
-        endsMap.put(range.maxIncl, 2);
+      if (range.minIncl <= range.maxIncl) {
+        starts[count] = range.minIncl;
+        ends[count] = range.maxIncl;
+        count++;
       } else {
-        endsMap.put(range.maxIncl, cur.intValue() | 2);
+        // Empty range (e.g. exclusive on both ends of the
+        // same value); it matches nothing so it needs no
+        // boundaries
       }
     }
 
-    List<Long> endsList = new ArrayList<Long>(endsMap.keySet());
-    Collections.sort(endsList);
-    //System.out.println("ends=" + endsMap);
-
-    elementaryIntervals = new ArrayList<LongRange>();
-    int upto0 = 1;
-    long v = endsList.get(0);
-    long prev;
-    if (endsMap.get(v) == 3) {
-      elementaryIntervals.add(new LongRange(null, v, true, v, true));
-      prev = v+1;
+    final int sortCount = count;
+    if (pool != null && count >= PARALLEL_MIN_LEAVES) {
+      pool.invoke(new RecursiveAction() {
+          @Override
+          protected void compute() {
+            invokeAll(sortTask(starts, sortCount), sortTask(ends, sortCount));
+          }
+        });
     } else {
-      prev = v;
+      Arrays.sort(starts, 0, count);
+      Arrays.sort(ends, 0, count);
     }
-    while (upto0 < endsList.size()) {
-      v = endsList.get(upto0);
-      int flags = endsMap.get(v);
-      //System.out.println("  v=" + v + " flags=" + flags);
+
+    // Each distinct endpoint adds at most 2 intervals:
+    long[] boundaries = new long[2*count];
+    int numIntervals = 0;
+    long prev = hardMin;
+    int startUpto = 0;
+    int endUpto = 0;
+
+    // hardMax is the largest endpoint, so once all ends
+    // are consumed all starts are too:
+    while (endUpto < count) {
+      long v = ends[endUpto];
+      if (startUpto < count && starts[startUpto] < v) {
+        v = starts[startUpto];
+      }
+
+      // 1 = start of interval, 2 = end of interval:
+      int flags = 0;
+      while (startUpto < count && starts[startUpto] == v) {
+        flags |= 1;
+        startUpto++;
+      }
+      while (endUpto < count && ends[endUpto] == v) {
+        flags |= 2;
+        endUpto++;
+      }
+
       if (flags == 3) {
         // This point is both an end and a start; we need to
         // separate it:
-        elementaryIntervals.add(new LongRange(null, prev, true, v-1, true));
-        elementaryIntervals.add(new LongRange(null, v, true, v, true));
+        if (v > prev) {
+          boundaries[numIntervals++] = v-1;
+        }
+        boundaries[numIntervals++] = v;
         prev = v+1;
       } else if (flags == 1) {
         // This point is only the start of an interval;
         // attach it to next interval:
         if (v > prev) {
-          elementaryIntervals.add(new LongRange(null, prev, true, v-1, true));
+          boundaries[numIntervals++] = v-1;
         }
         prev = v;
       } else {
         assert flags == 2;
         // This point is only the end of an interval; attach
         // it to last interval:
-        elementaryIntervals.add(new LongRange(null, prev, true, v, true));
+        boundaries[numIntervals++] = v;
         prev = v+1;
       }
-      //System.out.println("    ints=" + elementaryIntervals);
-      upto0++;
     }
 
-    elementaryCounts = new long[elementaryIntervals.size()];
-    //System.out.println("intervals: " + elementaryIntervals);
+    elementaryEnds = Arrays.copyOf(boundaries, numIntervals);
+    elementaryCounts = new long[numIntervals];
+    histogram = new ElementaryHistogram(hardMin, elementaryEnds, elementaryCounts, 1);
+    //System.out.println("ends: " + Arrays.toString(elementaryEnds));
+
+    // Every boundary comes from some range ending there or
+    // starting just after, so no two adjacent intervals are
+    // covered by the same set of ranges, i.e. there is
+    // nothing to merge:
+    assert isCanonical();
+  }
+
+  /** True if each boundary between adjacent elementary
+   *  intervals is needed, because some non-empty range ends
+   *  at the interval before it or starts at the interval
+   *  after it. */
+  private boolean isCanonical() {
+    boolean[] needed = new boolean[elementaryEnds.length];
+    // The last boundary is hardMax:
+    needed[needed.length-1] = true;
+    for(LongRange range : ranges) {
+      if (range.minIncl <= range.maxIncl) {
+        int start = findElementary(range.minIncl);
+        int end = findElementary(range.maxIncl);
+        if (elementaryStart(start) != range.minIncl || elementaryEnds[end] != range.maxIncl) {
+          // Range doesn't align with the intervals:
+          return false;
+        }
+        if (start > 0) {
+          needed[start-1] = true;
+        }
+        needed[end] = true;
+      }
+    }
+    for(boolean b : needed) {
+      if (!b) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static ForkJoinTask<?> sortTask(final long[] values, final int count) {
+    return ForkJoinTask.adapt(new Runnable() {
+        @Override
+        public void run() {
+          // Forks into the pool we are running in:
+          Arrays.parallelSort(values, 0, count);
+        }
+      });
+  }
+
+  /** Used by {@link #retrain}: shares the ranges,
+   *  elementary intervals and settings of other but uses
+   *  different training counts. */
+  private Builder(Builder other, long[] elementaryCounts) {
+    ranges = other.ranges;
+    hardMin = other.hardMin;
+    pool = other.pool;
+    elementaryEnds = other.elementaryEnds;
+    this.elementaryCounts = elementaryCounts;
+    histogram = new ElementaryHistogram(hardMin, elementaryEnds, elementaryCounts, other.histogram.getSampleInterval());
+    narrowKeys = other.narrowKeys;
+    autoCalibrate = other.autoCalibrate;
+  }
+
+  /** Returns a new, unfinished builder for the same ranges,
+   *  trained with the provided per-elementary-interval
+   *  counts instead of calls to {@link #record}, and with
+   *  our settings. */
+  Builder retrain(long[] counts) {
+    if (counts.length != elementaryEnds.length) {
+      throw new IllegalArgumentException("counts.length=" + counts.length + " but there are " + elementaryEnds.length + " elementary intervals");
+    }
+    return new Builder(this, counts.clone());
+  }
+
+  /** Returns the max value (inclusive) of each elementary
+   *  interval, in order; do not modify the returned
+   *  array. */
+  long[] getElementaryBoundaries() {
+    return elementaryEnds;
+  }
+
+  /** Returns the min value (inclusive) of the elementary
+   *  interval. */
+  private long elementaryStart(int index) {
+    return index == 0 ? hardMin : elementaryEnds[index-1]+1;
+  }
+
+  /** Returns the depth of each leaf (the number of
+   *  comparisons to reach it) in the finished tree,
+   *  indexed by elementary interval. */
+  int[] getLeafDepths() {
+    finish(false);
+    int[] depths = new int[elementaryEnds.length];
+    setLeafDepths(root, 0, depths);
+    return depths;
+  }
+
+  private void setLeafDepths(Node node, int depth, int[] depths) {
+    if (node.left != null) {
+      setLeafDepths(node.left, depth+1, depths);
+      setLeafDepths(node.right, depth+1, depths);
+    } else {
+      depths[node.leafIndex] = depth;
+    }
   }
 
   /** Call this many times, once per value in your
@@ -178,75 +535,170 @@ public final class Builder {
    *  computation required for each call to {@link
    *  #lookup}. */
   public void record(long v) {
+    ensureNotFinished();
+    histogram.record(v);
+  }
+
+  /** Like calling {@link #record} for each of
+   *  values[off] to values[off+len-1], but faster. */
+  public void recordAll(long[] values, int off, int len) {
+    ensureNotFinished();
+    histogram.recordAll(values, off, len);
+  }
+
+  /** Adds the counts of a histogram, e.g. one filled by
+   *  another thread, to this builder's training data. */
+  public void recordAll(ElementaryHistogram other) {
+    ensureNotFinished();
+    histogram.merge(other);
+  }
+
+  /** Saves the training data recorded so far; see {@link
+   *  ElementaryHistogram#write}.  This may be called before
+   *  or after building. */
+  public void writeTrainingData(DataOutput out) throws IOException {
+    histogram.write(out);
+  }
+
+  /** Adds training data saved by {@link
+   *  #writeTrainingData}, e.g. by an earlier process,
+   *  possibly with somewhat different ranges; see {@link
+   *  ElementaryHistogram#read}. */
+  public void readTrainingData(DataInput in) throws IOException {
+    ensureNotFinished();
+    histogram.read(in);
+  }
+
+  /** Returns a new, empty histogram over this builder's
+   *  elementary intervals, using the current sample
+   *  interval.  Fill it (e.g. in another thread) and then
+   *  add it with {@link #recordAll(ElementaryHistogram)}. */
+  public ElementaryHistogram newHistogram() {
+    return new ElementaryHistogram(hardMin, elementaryEnds, new long[elementaryEnds.length], histogram.getSampleInterval());
+  }
+
+  /** Only count one in every sampleInterval values passed
+   *  to {@link #record} or {@link #recordAll}, to cap the
+   *  cost of training on large data sets.  Default is 1
+   *  (count every value). */
+  public void setTrainingSampleInterval(int sampleInterval) {
+    ensureNotFinished();
+    histogram = new ElementaryHistogram(hardMin, elementaryEnds, elementaryCounts, sampleInterval);
+  }
+
+  private void ensureNotFinished() {
     if (root != null) {
       throw new IllegalStateException("Builder is already finished");
     }
+  }
 
-    // nocommit is this working correctly :)
-    int size = elementaryIntervals.size();
+  /** Returns the index of the elementary interval
+   *  containing v. */
+  private int findElementary(long v) {
+    // Find the first elementary interval whose max is >= v:
     int lo = 0;
-    int hi = size - 1;
-    while (true) {
+    int hi = elementaryEnds.length - 1;
+    while (lo < hi) {
       int mid = (lo + hi) >>> 1;
-      LongRange r = elementaryIntervals.get(mid);
-      if (v < r.minIncl) {
-        hi = mid - 1;
-      } else if (v > r.maxIncl) {
-        lo = mid + 1;
+      if (v <= elementaryEnds[mid]) {
+        hi = mid;
       } else {
-        elementaryCounts[mid]++;
-        return;
+        lo = mid + 1;
       }
     }
+    return lo;
   }
 
-  /** Recursively splits the elementaryIntervals into
+  /** Recursively splits the elementary intervals into
    *  tree, balanced according to how many times each
-   *  interval was seen. */
-  private Node split(int startIndex, int endIndex, int[] leafUpto) {
+   *  interval was seen.  prefixCounts[i] is the sum of the
+   *  counts of intervals before i. */
+  private Node split(int startIndex, int endIndex, long[] prefixCounts) {
     //System.out.println("split startIndex=" + startIndex + " endIndex=" + endIndex);
     Node left, right;
 
     int leaf;
 
     if (startIndex < endIndex-1) {
-      long sum = 0;
-      for(int i=startIndex;i<endIndex;i++) {
-        sum += elementaryCounts[i];
-      }
-      long halfSum = sum / 2;
-      long bestDistance = Long.MAX_VALUE;
-      int bestIndex = 0;
-      sum = 0;
-      for(int i=startIndex;i<endIndex-1;i++) {
-        sum += elementaryCounts[i];
-        long distance = Math.abs(sum - halfSum);
-        if (distance < bestDistance) {
-          bestDistance = distance;
-          bestIndex = i;
-        }
-      }
-      //System.out.println("  bestIndex=" + bestIndex + " bestDistance=" + bestDistance + " sum=" + sum);
-
-      left = split(startIndex, bestIndex+1, leafUpto);
-      right = split(bestIndex+1, endIndex, leafUpto);
+      int bestIndex = bestSplit(startIndex, endIndex, prefixCounts);
+      //System.out.println("  bestIndex=" + bestIndex);
+
+      left = split(startIndex, bestIndex+1, prefixCounts);
+      right = split(bestIndex+1, endIndex, prefixCounts);
       leaf = -1;
     } else {
       left = right = null;
-      leaf = leafUpto[0];
-      leafUpto[0]++;
+      // Leaves are created in order:
+      leaf = startIndex;
     }
 
-    Node n = new Node(elementaryIntervals.get(startIndex).minIncl, elementaryIntervals.get(endIndex-1).maxIncl, left, right, leaf);
+    Node n = new Node(elementaryStart(startIndex), elementaryEnds[endIndex-1], left, right, leaf);
 
     return n;
   }
 
+  /** Returns the index of the last interval to go left:
+   *  the first one, between startIndex and endIndex-2, whose
+   *  count sum (from startIndex) is closest to half the
+   *  total.  Because all counts are positive the sums
+   *  strictly increase, so we can binary search. */
+  private static int bestSplit(int startIndex, int endIndex, long[] prefixCounts) {
+    long base = prefixCounts[startIndex];
+    long halfSum = (prefixCounts[endIndex] - base) / 2;
+
+    // Find first i whose sum through i is >= halfSum:
+    int lo = startIndex;
+    int hi = endIndex-2;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (prefixCounts[mid+1] - base >= halfSum) {
+        hi = mid;
+      } else {
+        lo = mid + 1;
+      }
+    }
+
+    // ... but the one before may be as close, in which
+    // case it wins:
+    if (lo > startIndex && halfSum - (prefixCounts[lo] - base) <= Math.abs(prefixCounts[lo+1] - base - halfSum)) {
+      lo--;
+    }
+    return lo;
+  }
+
+  /** Splits large subtrees in parallel. */
+  private final class SplitTask extends RecursiveTask<Node> {
+    private static final long serialVersionUID = 1L;
+
+    private final int startIndex;
+    private final int endIndex;
+    private final long[] prefixCounts;
+
+    SplitTask(int startIndex, int endIndex, long[] prefixCounts) {
+      this.startIndex = startIndex;
+      this.endIndex = endIndex;
+      this.prefixCounts = prefixCounts;
+    }
+
+    @Override
+    protected Node compute() {
+      if (endIndex - startIndex < PARALLEL_SPLIT_LEAVES) {
+        return split(startIndex, endIndex, prefixCounts);
+      }
+      int bestIndex = bestSplit(startIndex, endIndex, prefixCounts);
+      SplitTask leftTask = new SplitTask(startIndex, bestIndex+1, prefixCounts);
+      leftTask.fork();
+      Node right = new SplitTask(bestIndex+1, endIndex, prefixCounts).compute();
+      Node left = leftTask.join();
+      return new Node(left.start, right.end, left, right, -1);
+    }
+  }
+
   /** Makes perfect binary tree. */
   private Node binarySplit(int numLeaves) {
     if (numLeaves == 1) {
-      return new Node(elementaryIntervals.get(0).minIncl,
-                      elementaryIntervals.get(0).maxIncl,
+      return new Node(elementaryStart(0),
+                      elementaryEnds[0],
                       null, null, 0);
     }
     //System.out.println("binarySplit numLeaves=" + numLeaves);
@@ -263,8 +715,8 @@ public final class Builder {
     int extra = 2*numLeaves - levelCount;
     //System.out.println("  fill first extra=" + extra);
     for(int i=0;i<extra;i++) {
-      curLevel[i] = new Node(elementaryIntervals.get(i).minIncl,
-                             elementaryIntervals.get(i).maxIncl,
+      curLevel[i] = new Node(elementaryStart(i),
+                             elementaryEnds[i],
                              null, null, i);
     }
 
@@ -283,8 +735,8 @@ public final class Builder {
     int upto = extra/2;
     //System.out.println("  extra leaf count=" + (numLeaves-extra));
     for(int i=extra;i<numLeaves;i++) {
-      curLevel[upto++] = new Node(elementaryIntervals.get(i).minIncl,
-                                  elementaryIntervals.get(i).maxIncl,
+      curLevel[upto++] = new Node(elementaryStart(i),
+                                  elementaryEnds[i],
                                   null, null, i);
     }
 
@@ -312,64 +764,230 @@ public final class Builder {
    *  {@code finish(true)}. */ 
   private void finish(boolean useArrayImpl) {
     if (root == null) {
-      int numLeaves = elementaryIntervals.size();
-      for(int i=0;i<numLeaves;i++) {
-        if (elementaryCounts[i] == 0) {
-          // This will create a balanced binary tree, if no
-          // training data was sent:
-          elementaryCounts[i] = 1;
-        }
-      }
+      int numLeaves = elementaryEnds.length;
       //System.out.println("COUNTS: " + Arrays.toString(elementaryCounts));
 
-      Map<Node,List<Integer>> byNode = new HashMap<>();
+      boolean parallel = pool != null && numLeaves >= PARALLEL_MIN_LEAVES;
+
       if (useArrayImpl) {
         root = binarySplit(numLeaves);
+        binaryRoot = true;
       } else {
-        root = split(0, numLeaves, new int[1]);
+        long[] prefixCounts = new long[numLeaves+1];
+        for(int i=0;i<numLeaves;i++) {
+          // Counting unseen intervals as 1 creates a
+          // balanced binary tree, if no training data was
+          // sent:
+          prefixCounts[i+1] = prefixCounts[i] + Math.max(1, elementaryCounts[i]);
+        }
+        if (parallel) {
+          root = pool.invoke(new SplitTask(0, numLeaves, prefixCounts));
+        } else {
+          root = split(0, numLeaves, prefixCounts);
+        }
       }
-      for(int i=0;i<ranges.length;i++) {
-        addOutputs(root, i, ranges[i], byNode);
+      if (parallel) {
+        setOutputsParallel(root);
+      } else {
+        setOutputs(root);
       }
-      setHasOutputs(root, byNode);
       //System.out.println("ROOT:\n" + root);
     }
   }
 
-  /** Recursively assigns range outputs to each node. */
-  void addOutputs(Node node, int index, LongRange range, Map<Node,List<Integer>> byNode) {
-    if (node.start >= range.minIncl && node.end <= range.maxIncl) {
+  /** Returns a finished tree with the {@link #binarySplit}
+   *  shape, which {@link ArrayLongRangeMultiSet} needs since
+   *  it addresses children as 2*nodeID: root if it was built
+   *  that way, else a new tree with its own outputs. */
+  private Node getBinaryTree() {
+    finish(true);
+    if (binaryRoot) {
+      return root;
+    }
+    Node node = binarySplit(elementaryEnds.length);
+    setOutputs(node);
+    return node;
+  }
+
+  /** Assigns range outputs to each node, like a CSR
+   *  build: first count how many ranges land on each node,
+   *  then allocate each node's outputs exactly and fill
+   *  them.  Ranges are visited in order of their start, so
+   *  that consecutive descents touch nearby nodes. */
+  private void setOutputs(Node root) {
+    long[] order = sortRangesByStart();
+    for(long o : order) {
+      int index = (int) o;
+      addOutputs(root, index, ranges[index], false, Integer.MAX_VALUE);
+    }
+    allocateOutputs(root, Integer.MAX_VALUE);
+    for(long o : order) {
+      int index = (int) o;
+      addOutputs(root, index, ranges[index], true, Integer.MAX_VALUE);
+    }
+    setHasOutputs(root, Integer.MAX_VALUE);
+  }
+
+  /** Like {@link #setOutputs}, but splits the tree at a
+   *  fixed depth: the nodes above are done sequentially and
+   *  each subtree below is done by its own task. */
+  private void setOutputsParallel(Node root) {
+    final long[] order = sortRangesByStart();
+
+    int depth = 0;
+    while ((1 << depth) < 4*pool.getParallelism() && depth < 16) {
+      depth++;
+    }
+
+    // Top of the tree:
+    for(long o : order) {
+      int index = (int) o;
+      addOutputs(root, index, ranges[index], false, depth);
+    }
+    allocateOutputs(root, depth);
+    for(long o : order) {
+      int index = (int) o;
+      addOutputs(root, index, ranges[index], true, depth);
+    }
+
+    // Subtrees:
+    final List<OutputsTask> tasks = new ArrayList<>();
+    addOutputsTasks(root, null, depth, order, tasks);
+    pool.invoke(new RecursiveAction() {
+        @Override
+        protected void compute() {
+          invokeAll(tasks);
+        }
+      });
+
+    setHasOutputs(root, depth);
+  }
+
+  private void addOutputsTasks(Node node, Node parent, int depthLeft, long[] order, List<OutputsTask> tasks) {
+    if (depthLeft == 0) {
+      tasks.add(new OutputsTask(node, parent, order));
+    } else if (node.left != null) {
+      addOutputsTasks(node.left, node, depthLeft-1, order, tasks);
+      addOutputsTasks(node.right, node, depthLeft-1, order, tasks);
+    }
+  }
+
+  /** Assigns outputs within one subtree. */
+  private final class OutputsTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final Node node;
+    private final Node parent;
+    private final long[] order;
+
+    OutputsTask(Node node, Node parent, long[] order) {
+      this.node = node;
+      this.parent = parent;
+      this.order = order;
+    }
+
+    /** True if the range reaches our node: a range that
+     *  fully contains our parent stops there instead. */
+    private boolean reaches(LongRange range) {
+      return range.minIncl <= node.end && range.maxIncl >= node.start &&
+        (range.minIncl > parent.start || range.maxIncl < parent.end);
+    }
+
+    @Override
+    protected void compute() {
+      for(long o : order) {
+        int index = (int) o;
+        LongRange range = ranges[index];
+        if (reaches(range)) {
+          addOutputs(node, index, range, false, Integer.MAX_VALUE);
+        }
+      }
+      allocateOutputs(node, Integer.MAX_VALUE);
+      for(long o : order) {
+        int index = (int) o;
+        LongRange range = ranges[index];
+        if (reaches(range)) {
+          addOutputs(node, index, range, true, Integer.MAX_VALUE);
+        }
+      }
+      setHasOutputs(node, Integer.MAX_VALUE);
+    }
+  }
+
+  /** Returns (first elementary interval << 32 | range
+   *  index) for each non-empty range, sorted. */
+  private long[] sortRangesByStart() {
+    long[] order = new long[ranges.length];
+    int count = 0;
+    for(int i=0;i<ranges.length;i++) {
+      LongRange range = ranges[i];
+      if (range.minIncl <= range.maxIncl) {
+        order[count++] = (((long) findElementary(range.minIncl)) << 32) | i;
+      }
+    }
+    order = Arrays.copyOf(order, count);
+    if (pool != null && count >= PARALLEL_MIN_LEAVES) {
+      pool.invoke(sortTask(order, count));
+    } else {
+      Arrays.sort(order);
+    }
+    return order;
+  }
+
+  /** Recursively assigns range outputs to each node; if
+   *  fill is false, this only counts them.  Nodes
+   *  depthLeft levels below this one are skipped. */
+  private void addOutputs(Node node, int index, LongRange range, boolean fill, int depthLeft) {
+    if (depthLeft == 0) {
+      // Another task handles this subtree
+    } else if (node.start >= range.minIncl && node.end <= range.maxIncl) {
       // Our range is fully included in the incoming
       // range; add to our output list:
-      List<Integer> nodeOutputs = byNode.get(node);
-      if (nodeOutputs == null) {
-        nodeOutputs = new ArrayList<Integer>();
-        byNode.put(node, nodeOutputs);
+      if (fill) {
+        node.outputs[node.outputCount++] = index;
+      } else {
+        node.outputCount++;
       }
-      nodeOutputs.add(index);
-    } else if (node.left != null) {
+    } else if (node.left != null && node.start <= range.maxIncl && node.end >= range.minIncl) {
       assert node.right != null;
-      // Recurse:
-      addOutputs(node.left, index, range, byNode);
-      addOutputs(node.right, index, range, byNode);
+      // Partially overlaps; recurse:
+      addOutputs(node.left, index, range, fill, depthLeft-1);
+      addOutputs(node.right, index, range, fill, depthLeft-1);
     }
   }
 
-  void setHasOutputs(Node node, Map<Node,List<Integer>> byNode) {
-    List<Integer> outputs = byNode.get(node);
-    if (outputs != null) {
-      node.outputs = new int[outputs.size()];
-      for(int i=0;i<outputs.size();i++) {
-        node.outputs[i] = outputs.get(i);
-      }
+  private void allocateOutputs(Node node, int depthLeft) {
+    if (depthLeft == 0) {
+      return;
+    }
+    if (node.outputCount != 0) {
+      node.outputs = new int[node.outputCount];
+      // Reused as the fill pointer:
+      node.outputCount = 0;
+    }
+    if (node.left != null) {
+      allocateOutputs(node.left, depthLeft-1);
+      allocateOutputs(node.right, depthLeft-1);
+    }
+  }
+
+  /** Sorts each node's outputs (so they are in range
+   *  order), and sets hasOutputs.  Nodes depthLeft levels
+   *  below this one must already be done. */
+  void setHasOutputs(Node node, int depthLeft) {
+    if (depthLeft == 0) {
+      return;
+    }
+    if (node.outputs != null) {
+      Arrays.sort(node.outputs);
       node.hasOutputs = true;
     } else {
       node.hasOutputs = false;
     }
 
     if (node.left != null) {
-      setHasOutputs(node.left, byNode);
-      setHasOutputs(node.right, byNode);
+      setHasOutputs(node.left, depthLeft-1);
+      setHasOutputs(node.right, depthLeft-1);
       node.hasOutputs |= node.left.hasOutputs;
       node.hasOutputs |= node.right.hasOutputs;
     }
@@ -411,87 +1029,154 @@ public final class Builder {
     finish(useArrayImpl);
 
     if (useAsm) {
-      StringBuilder sb = new StringBuilder();
-      sb.append('\n');
-      int count = 0;
-      for(LongRange range : ranges) {
-        sb.append("// range ");
-        sb.append(count++);
-        sb.append(": ");
-        sb.append(range);
-        sb.append('\n');
+      byte[] bytes = compileTree(COMPILED_TREE_CLASS, LONG_RANGE_MULTI_SET_TYPE, LOOKUP_METHOD, false);
+      // nocommit allow changing the class loader
+      Class<? extends LongRangeMultiSet> treeClass = new Loader(LongRangeMultiSet.class.getClassLoader())
+        .define(COMPILED_TREE_CLASS, bytes);
+      try {
+        // Used for lookupOverlapping and firstMatch if they
+        // are too large to compile:
+        return treeClass.getConstructor(LongRangeMultiSet.class).newInstance(new SimpleLongRangeMultiSet(root, getRangeMins()));
+      } catch (InstantiationException | IllegalAccessException | NoSuchMethodException | InvocationTargetException e) {
+        throw new RuntimeException(e);
       }
+
+    } else if (useArrayImpl) {
+      return new ArrayLongRangeMultiSet(getBinaryTree(), hardMin, useNarrowKeys(), getRangeMins());
+    } else {
+      return new SimpleLongRangeMultiSet(root, getRangeMins());
+    }
+  }
+
+  /** Compiles the tree to a class with the provided name
+   *  that extends superType and implements lookupMethod,
+   *  whose first argument is the long (or int, if intArg)
+   *  value and second the int[] answers.  Unless intArg, the
+   *  constructor takes the {@link LongRangeMultiSet} to use
+   *  for lookupOverlapping and firstMatch if they are too
+   *  large to compile. */
+  private byte[] compileTree(String className, Type superType, Method lookupMethod, boolean intArg) {
+    StringBuilder sb = new StringBuilder();
+    sb.append('\n');
+    int count = 0;
+    for(LongRange range : ranges) {
+      sb.append("// range ");
+      sb.append(count++);
+      sb.append(": ");
+      sb.append(range);
       sb.append('\n');
-      sb.append("int upto = 0;\n");
-      buildJavaSource(root, 0, sb);
-      String javaSource = sb.toString();
-      //System.out.println("java: " + javaSource);
-
-      ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS);
-      classWriter.visit(Opcodes.V1_7,
-                        Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER | Opcodes.ACC_FINAL | Opcodes.ACC_SYNTHETIC,
-                        COMPILED_TREE_CLASS.replace('.', '/'),
-                        null, LONG_RANGE_MULTI_SET_TYPE.getInternalName(), null);
-      classWriter.visitSource(javaSource, null);
-     
-      Method m = Method.getMethod("void <init> ()");
-      GeneratorAdapter constructor = new GeneratorAdapter(Opcodes.ACC_PUBLIC | Opcodes.ACC_SYNTHETIC,
-                                                          m, null, null, classWriter);
+    }
+    sb.append('\n');
+    sb.append("int upto = 0;\n");
+    buildJavaSource(root, 0, sb);
+    String javaSource = sb.toString();
+    //System.out.println("java: " + javaSource);
+
+    ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS);
+    classWriter.visit(Opcodes.V1_7,
+                      Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER | Opcodes.ACC_FINAL | Opcodes.ACC_SYNTHETIC,
+                      className.replace('.', '/'),
+                      null, superType.getInternalName(), null);
+    classWriter.visitSource(sourceFile(javaSource), null);
+
+    Type ownerType = Type.getObjectType(className.replace('.', '/'));
+    boolean compileOverlap = intArg == false && estimateOverlapBytes(root) <= MAX_METHOD_BYTES;
+    if (intArg == false) {
+      classWriter.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_FINAL | Opcodes.ACC_SYNTHETIC,
+                             "fallback", LONG_RANGE_MULTI_SET_TYPE.getDescriptor(), null, null).visitEnd();
+    }
+   
+    Method m = Method.getMethod("void <init> ()");
+    GeneratorAdapter constructor = new GeneratorAdapter(Opcodes.ACC_PUBLIC | Opcodes.ACC_SYNTHETIC,
+                                                        intArg ? m : Method.getMethod("void <init> (com.changingbits.LongRangeMultiSet)"),
+                                                        null, null, classWriter);
+    constructor.loadThis();
+    constructor.invokeConstructor(superType, m);
+    if (intArg == false) {
       constructor.loadThis();
-      constructor.loadArgs();
-      constructor.invokeConstructor(LONG_RANGE_MULTI_SET_TYPE, m);
-      constructor.returnValue();
-      constructor.endMethod();
+      constructor.loadArg(0);
+      constructor.putField(ownerType, "fallback", LONG_RANGE_MULTI_SET_TYPE);
+    }
+    constructor.returnValue();
+    constructor.endMethod();
 
-      GeneratorAdapter gen = new GeneratorAdapter(Opcodes.ACC_PUBLIC | Opcodes.ACC_SYNTHETIC,
-                                                  LOOKUP_METHOD, null, null, classWriter);
-      //Label labelTop = new Label();
-      //Label labelEnd = new Label();
-      //gen.visitLabel(labelTop);
-      int uptoLocal = gen.newLocal(Type.INT_TYPE);
-      //System.out.println("uptoLocal=" + uptoLocal);
-      // nocommit is this not needed!?
-      //gen.visitLocalVariable("upto", "I", null, labelTop, labelEnd, uptoLocal);
+    GeneratorAdapter gen = new GeneratorAdapter(Opcodes.ACC_PUBLIC | Opcodes.ACC_SYNTHETIC,
+                                                lookupMethod, null, null, classWriter);
+    //Label labelTop = new Label();
+    //Label labelEnd = new Label();
+    //gen.visitLabel(labelTop);
+    int uptoLocal = gen.newLocal(Type.INT_TYPE);
+    //System.out.println("uptoLocal=" + uptoLocal);
+    // nocommit is this not needed!?
+    //gen.visitLocalVariable("upto", "I", null, labelTop, labelEnd, uptoLocal);
+    gen.push(0);
+    gen.storeLocal(uptoLocal, Type.INT_TYPE);
+    int keyLocal = emitKey(gen, intArg);
+    buildAsm(gen, root, uptoLocal, keyLocal);
+    // Return upto:
+    gen.loadLocal(uptoLocal, Type.INT_TYPE);
+    gen.returnValue();
+    //gen.visitLabel(labelEnd);
+    gen.endMethod();
+
+    // If it is too large, lookupOverlapping calls the
+    // fallback multi set instead:
+    if (compileOverlap) {
+      gen = new GeneratorAdapter(Opcodes.ACC_PUBLIC | Opcodes.ACC_SYNTHETIC,
+                                 LOOKUP_OVERLAPPING_METHOD, null, null, classWriter);
+      uptoLocal = gen.newLocal(Type.INT_TYPE);
       gen.push(0);
       gen.storeLocal(uptoLocal, Type.INT_TYPE);
-      buildAsm(gen, root, uptoLocal);
-      // Return upto:
+      // Nothing overlaps if a > b, or if a to b is outside
+      // of hardMin/hardMax:
+      Label labelEnd = new Label();
+      gen.loadArg(0);
+      gen.loadArg(1);
+      gen.ifCmp(Type.LONG_TYPE, GeneratorAdapter.GT, labelEnd);
+      gen.loadArg(1);
+      gen.push(root.start);
+      gen.ifCmp(Type.LONG_TYPE, GeneratorAdapter.LT, labelEnd);
+      gen.loadArg(0);
+      gen.push(root.end);
+      gen.ifCmp(Type.LONG_TYPE, GeneratorAdapter.GT, labelEnd);
+      buildOverlapAsm(gen, root, uptoLocal);
+      gen.visitLabel(labelEnd);
       gen.loadLocal(uptoLocal, Type.INT_TYPE);
       gen.returnValue();
-      //gen.visitLabel(labelEnd);
       gen.endMethod();
-      classWriter.visitEnd();
-
-      byte[] bytes = classWriter.toByteArray();
+    } else if (intArg == false) {
+      gen = new GeneratorAdapter(Opcodes.ACC_PUBLIC | Opcodes.ACC_SYNTHETIC,
+                                 LOOKUP_OVERLAPPING_METHOD, null, null, classWriter);
+      gen.loadThis();
+      gen.getField(ownerType, "fallback", LONG_RANGE_MULTI_SET_TYPE);
+      gen.loadArgs();
+      gen.invokeVirtual(LONG_RANGE_MULTI_SET_TYPE, LOOKUP_OVERLAPPING_METHOD);
+      gen.returnValue();
+      gen.endMethod();
+    }
 
-      // javap -c /x/tmp/my.class
-      /*
-      try {
-        FileOutputStream fos = new FileOutputStream(new File("/x/tmp/my.class"));
-        fos.write(bytes);
-        fos.close();
-      } catch (Exception e) {
-        throw new RuntimeException(e);
-      }
-      */
+    if (intArg == false) {
+      compileFirstMatch(classWriter, ownerType);
+    }
+    classWriter.visitEnd();
 
-      // nocommit allow changing the class loader
-      Class<? extends LongRangeMultiSet> treeClass = new Loader(LongRangeMultiSet.class.getClassLoader())
-        .define(COMPILED_TREE_CLASS, classWriter.toByteArray());
-      try {
-        return treeClass.getConstructor().newInstance();
-      } catch (InstantiationException | IllegalAccessException | NoSuchMethodException | InvocationTargetException e) {
-        throw new RuntimeException(e);
-      }
+    byte[] bytes = classWriter.toByteArray();
 
-    } else if (useArrayImpl) {
-      return new ArrayLongRangeMultiSet(root);
-    } else {
-      return new SimpleLongRangeMultiSet(root);
+    // javap -c /x/tmp/my.class
+    /*
+    try {
+      FileOutputStream fos = new FileOutputStream(new File("/x/tmp/my.class"));
+      fos.write(bytes);
+      fos.close();
+    } catch (Exception e) {
+      throw new RuntimeException(e);
     }
+    */
+
+    return bytes;
   }
 
-  private void buildAsm(GeneratorAdapter gen, Node node, int uptoLocal) {
+  private void buildAsm(GeneratorAdapter gen, Node node, int uptoLocal, int keyLocal) {
 
     if (node.outputs != null) {
       //System.out.println("gen outputs=" + node.outputs);
@@ -516,32 +1201,626 @@ public final class Builder {
         // Recurse on either left or right
         Label labelLeft = new Label();
         Label labelEnd = new Label();
-        gen.loadArg(0);
-        gen.push(node.left.end);
-          
-        gen.ifCmp(Type.LONG_TYPE, GeneratorAdapter.LE, labelLeft);
-        buildAsm(gen, node.right, uptoLocal);
+        emitBranch(gen, keyLocal, GeneratorAdapter.LE, node.left.end, labelLeft);
+        buildAsm(gen, node.right, uptoLocal, keyLocal);
         gen.goTo(labelEnd);
         gen.visitLabel(labelLeft);
-        buildAsm(gen, node.left, uptoLocal);
+        buildAsm(gen, node.left, uptoLocal, keyLocal);
         gen.visitLabel(labelEnd);
       } else if (node.left.hasOutputs) {
         // Recurse only on left
         Label labelEnd = new Label();
-        gen.loadArg(0);
-        gen.push(node.left.end);
-          
-        gen.ifCmp(Type.LONG_TYPE, GeneratorAdapter.GT, labelEnd);
-        buildAsm(gen, node.left, uptoLocal);
+        emitBranch(gen, keyLocal, GeneratorAdapter.GT, node.left.end, labelEnd);
+        buildAsm(gen, node.left, uptoLocal, keyLocal);
         gen.visitLabel(labelEnd);
       } else {
         // Recurse only on right
         Label labelEnd = new Label();
-        gen.loadArg(0);
+        emitBranch(gen, keyLocal, GeneratorAdapter.LE, node.left.end, labelEnd);
+        buildAsm(gen, node.right, uptoLocal, keyLocal);
+        gen.visitLabel(labelEnd);
+      }
+    }
+  }
+
+  /** Adds firstMatch and matchesAny methods, compiled from
+   *  the whole tree, to the class.  If firstMatch is too
+   *  large, it calls firstMatch of the "fallback" {@link
+   *  LongRangeMultiSet} field of owner instead, or, if owner
+   *  is null, is left out so the superclass's is used; if
+   *  matchesAny is too large it is left out, so it calls
+   *  firstMatch. */
+  private void compileFirstMatch(ClassWriter classWriter, Type owner) {
+    Map<Node,int[]> spans = new IdentityHashMap<>();
+    setFirstMatchSpans(root, spans);
+    if (estimateFirstMatchBytes(root, Integer.MAX_VALUE, spans) <= MAX_METHOD_BYTES) {
+      GeneratorAdapter gen = new GeneratorAdapter(Opcodes.ACC_PUBLIC | Opcodes.ACC_SYNTHETIC,
+                                                  FIRST_MATCH_METHOD, null, null, classWriter);
+      buildFirstMatchAsm(gen, root, Integer.MAX_VALUE, emitKey(gen, false), spans);
+      gen.endMethod();
+    } else if (owner != null) {
+      GeneratorAdapter gen = new GeneratorAdapter(Opcodes.ACC_PUBLIC | Opcodes.ACC_SYNTHETIC,
+                                                  FIRST_MATCH_METHOD, null, null, classWriter);
+      gen.loadThis();
+      gen.getField(owner, "fallback", LONG_RANGE_MULTI_SET_TYPE);
+      gen.loadArgs();
+      gen.invokeVirtual(LONG_RANGE_MULTI_SET_TYPE, FIRST_MATCH_METHOD);
+      gen.returnValue();
+      gen.endMethod();
+    }
+    if (estimateMatchesAnyBytes(root) <= MAX_METHOD_BYTES) {
+      GeneratorAdapter gen = new GeneratorAdapter(Opcodes.ACC_PUBLIC | Opcodes.ACC_SYNTHETIC,
+                                                  MATCHES_ANY_METHOD, null, null, classWriter);
+      buildMatchesAnyAsm(gen, root, emitKey(gen, false));
+      gen.endMethod();
+    }
+  }
+
+  /** Records, for each node with outputs below it, the
+   *  lowest and highest {@code firstMatch} of the values
+   *  under it, counting only the ranges of this node and its
+   *  descendants; Integer.MAX_VALUE means no match.  If the
+   *  two are the same, or the ancestors already matched a
+   *  range at or below the lowest, the whole subtree has
+   *  one answer. */
+  private static int[] setFirstMatchSpans(Node node, Map<Node,int[]> spans) {
+    if (node.hasOutputs == false) {
+      return new int[] {Integer.MAX_VALUE, Integer.MAX_VALUE};
+    }
+    // Outputs are sorted, so the first one is the lowest:
+    int own = node.outputs == null ? Integer.MAX_VALUE : node.outputs[0];
+    int[] span;
+    if (node.left == null) {
+      span = new int[] {own, own};
+    } else {
+      int[] left = setFirstMatchSpans(node.left, spans);
+      int[] right = setFirstMatchSpans(node.right, spans);
+      span = new int[] {Math.min(own, Math.min(left[0], right[0])),
+                        Math.min(own, Math.max(left[1], right[1]))};
+    }
+    spans.put(node, span);
+    return span;
+  }
+
+  /** Returns the one {@code firstMatch} (or
+   *  Integer.MAX_VALUE for none) of every value under node,
+   *  given the lowest range matched by its ancestors and
+   *  itself, or -1 if the values have different answers. */
+  private static int uniformFirstMatch(Node node, int best, Map<Node,int[]> spans) {
+    int[] span = spans.get(node);
+    if (span == null) {
+      // No outputs below us:
+      return best;
+    } else if (best <= span[0] || span[0] == span[1]) {
+      return Math.min(best, span[0]);
+    } else {
+      return -1;
+    }
+  }
+
+  /** Emits firstMatch for the subtree under node: like
+   *  {@link #buildAsm}, but returns as soon as every value
+   *  under the current node has the same answer, e.g. when
+   *  no ranges are below it. */
+  private void buildFirstMatchAsm(GeneratorAdapter gen, Node node, int best, int keyLocal, Map<Node,int[]> spans) {
+    if (node.outputs != null) {
+      best = Math.min(best, node.outputs[0]);
+    }
+    int result = uniformFirstMatch(node, best, spans);
+    if (result != -1) {
+      gen.push(result == Integer.MAX_VALUE ? -1 : result);
+      gen.returnValue();
+    } else {
+      // Leaves are always uniform:
+      assert node.left != null;
+      Label labelLeft = new Label();
+      emitBranch(gen, keyLocal, GeneratorAdapter.LE, node.left.end, labelLeft);
+      buildFirstMatchAsm(gen, node.right, best, keyLocal, spans);
+      gen.visitLabel(labelLeft);
+      buildFirstMatchAsm(gen, node.left, best, keyLocal, spans);
+    }
+  }
+
+  /** Emits matchesAny for the subtree under node, returning
+   *  true at the first node with outputs, and false at the
+   *  first node with no outputs below it. */
+  private void buildMatchesAnyAsm(GeneratorAdapter gen, Node node, int keyLocal) {
+    if (node.outputs != null || node.hasOutputs == false) {
+      gen.push(node.outputs != null);
+      gen.returnValue();
+    } else {
+      // Some child has outputs:
+      Label labelLeft = new Label();
+      emitBranch(gen, keyLocal, GeneratorAdapter.LE, node.left.end, labelLeft);
+      buildMatchesAnyAsm(gen, node.right, keyLocal);
+      gen.visitLabel(labelLeft);
+      buildMatchesAnyAsm(gen, node.left, keyLocal);
+    }
+  }
+
+  /** Emits lookupOverlapping for the subtree under node:
+   *  like {@link #buildAsm}, but visits every child that
+   *  intersects a to b, and adds each range only at the one
+   *  visited node that holds max(a, range's min). */
+  private void buildOverlapAsm(GeneratorAdapter gen, Node node, int uptoLocal) {
+
+    if (node.outputs != null) {
+      // Ranges starting in this node are always added, the
+      // others only if a is in this node too (else they
+      // were already added at a node to the left):
+      List<Integer> others = new ArrayList<>();
+      for(int range : node.outputs) {
+        if (ranges[range].minIncl >= node.start) {
+          emitAnswer(gen, 2, uptoLocal, range);
+        } else {
+          others.add(range);
+        }
+      }
+      if (others.isEmpty() == false) {
+        Label labelEnd = new Label();
+        gen.loadArg(0);
+        gen.push(node.start);
+        gen.ifCmp(Type.LONG_TYPE, GeneratorAdapter.LT, labelEnd);
+        for(int range : others) {
+          emitAnswer(gen, 2, uptoLocal, range);
+        }
+        gen.visitLabel(labelEnd);
+      }
+    }
+
+    if (node.left != null) {
+      if (node.left.hasOutputs) {
+        Label labelEnd = new Label();
+        gen.loadArg(0);
         gen.push(node.left.end);
-          
-        gen.ifCmp(Type.LONG_TYPE, GeneratorAdapter.LE, labelEnd);
-        buildAsm(gen, node.right, uptoLocal);
+        gen.ifCmp(Type.LONG_TYPE, GeneratorAdapter.GT, labelEnd);
+        buildOverlapAsm(gen, node.left, uptoLocal);
+        gen.visitLabel(labelEnd);
+      }
+      if (node.right.hasOutputs) {
+        Label labelEnd = new Label();
+        gen.loadArg(1);
+        gen.push(node.right.start);
+        gen.ifCmp(Type.LONG_TYPE, GeneratorAdapter.LT, labelEnd);
+        buildOverlapAsm(gen, node.right, uptoLocal);
+        gen.visitLabel(labelEnd);
+      }
+    }
+  }
+
+  /** Emits answers[upto++] = range, where answers is the
+   *  provided arg. */
+  private static void emitAnswer(GeneratorAdapter gen, int answersArg, int uptoLocal, int range) {
+    gen.loadArg(answersArg);
+    gen.loadLocal(uptoLocal, Type.INT_TYPE);
+    gen.push(range);
+    gen.arrayStore(Type.INT_TYPE);
+    gen.iinc(uptoLocal, 1);
+  }
+
+  /** Returns the min (inclusive) of each range. */
+  private long[] getRangeMins() {
+    long[] mins = new long[ranges.length];
+    for(int i=0;i<ranges.length;i++) {
+      mins[i] = ranges[i].minIncl;
+    }
+    return mins;
+  }
+
+  /** Returns true if all ranges that are not empty share
+   *  the same min (e.g. "latency <= X" buckets), so that
+   *  they are nested and {@link #getNestedMultiSet} can be
+   *  used. */
+  public boolean isNested() {
+    return getNestedOrder() != null;
+  }
+
+  /** If the ranges are nested (see {@link #isNested}),
+   *  returns the indices of the non-empty ones sorted by
+   *  max, else null. */
+  private int[] getNestedOrder() {
+    List<Integer> order = new ArrayList<>();
+    for(int i=0;i<ranges.length;i++) {
+      LongRange range = ranges[i];
+      if (range.minIncl <= range.maxIncl) {
+        if (order.isEmpty() == false && range.minIncl != ranges[order.get(0)].minIncl) {
+          return null;
+        }
+        order.add(i);
+      }
+    }
+    if (order.isEmpty()) {
+      return null;
+    }
+    Collections.sort(order, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer a, Integer b) {
+          return Long.compare(ranges[a].maxIncl, ranges[b].maxIncl);
+        }
+      });
+    int[] result = new int[order.size()];
+    for(int i=0;i<result.length;i++) {
+      result[i] = order.get(i);
+    }
+    return result;
+  }
+
+  /** Build a {@link NestedLongRangeMultiSet}, which does
+   *  not use the tree: since all ranges are nested, the
+   *  ranges matching a value are always a span of the
+   *  ranges sorted by max.  This throws {@code
+   *  IllegalStateException} if the ranges are not nested
+   *  (see {@link #isNested}). */
+  public NestedLongRangeMultiSet getNestedMultiSet() {
+    int[] order = getNestedOrder();
+    if (order == null) {
+      throw new IllegalStateException("ranges are not nested");
+    }
+    long[] maxes = new long[order.length];
+    for(int i=0;i<order.length;i++) {
+      maxes[i] = ranges[order[i]].maxIncl;
+    }
+    return new NestedLongRangeMultiSet(ranges[order[0]].minIncl, maxes, order);
+  }
+
+  /** Build a {@link LongRangeMultiSet} that matches the
+   *  point ranges (min == max) with an open addressing hash
+   *  table, and the other ranges with a tree built by a
+   *  separate builder over only those ranges, using the
+   *  provided engine.  With many point ranges (e.g. specific
+   *  IDs) mixed with a few true intervals, this avoids a
+   *  deep tree (every point adds elementary intervals) and
+   *  large generated code.  The training data, narrow keys
+   *  and auto calibrate settings carry over to the separate
+   *  builder. */
+  public LongRangeMultiSet getPointMultiSet(Engine intervalEngine) {
+    if (intervalEngine == Engine.POINT) {
+      throw new IllegalArgumentException("intervalEngine cannot be POINT");
+    }
+    int[] intervalRanges = getIntervalRanges();
+    Builder intervals = newIntervalBuilder(intervalRanges);
+    return new PointLongRangeMultiSet(newPointTable(),
+                                      intervals == null ? null : intervals.getMultiSet(intervalEngine),
+                                      intervalRanges);
+  }
+
+  /** Like {@link #getPointMultiSet}, for counting. */
+  public LongRangeCounter getPointCounter(Engine intervalEngine) {
+    if (intervalEngine == Engine.POINT) {
+      throw new IllegalArgumentException("intervalEngine cannot be POINT");
+    }
+    int[] intervalRanges = getIntervalRanges();
+    Builder intervals = newIntervalBuilder(intervalRanges);
+    return new PointLongRangeCounter(newPointTable(),
+                                     intervals == null ? null : intervals.getCounter(intervalEngine),
+                                     intervalRanges, ranges.length);
+  }
+
+  /** Returns the indices of the ranges that are not
+   *  points. */
+  private int[] getIntervalRanges() {
+    int count = 0;
+    for(LongRange range : ranges) {
+      if (range.minIncl != range.maxIncl) {
+        count++;
+      }
+    }
+    int[] result = new int[count];
+    count = 0;
+    for(int i=0;i<ranges.length;i++) {
+      if (ranges[i].minIncl != ranges[i].maxIncl) {
+        result[count++] = i;
+      }
+    }
+    return result;
+  }
+
+  private PointTable newPointTable() {
+    int count = 0;
+    for(LongRange range : ranges) {
+      if (range.minIncl == range.maxIncl) {
+        count++;
+      }
+    }
+    LongRange[] points = new LongRange[count];
+    int[] pointRanges = new int[count];
+    count = 0;
+    for(int i=0;i<ranges.length;i++) {
+      if (ranges[i].minIncl == ranges[i].maxIncl) {
+        points[count] = ranges[i];
+        pointRanges[count++] = i;
+      }
+    }
+    return new PointTable(points, pointRanges);
+  }
+
+  /** Returns a builder over just the provided ranges, with
+   *  our settings and training data, or null if there are
+   *  no ranges. */
+  private Builder newIntervalBuilder(int[] intervalRanges) {
+    if (intervalRanges.length == 0) {
+      return null;
+    }
+    LongRange[] subRanges = new LongRange[intervalRanges.length];
+    for(int i=0;i<intervalRanges.length;i++) {
+      subRanges[i] = ranges[intervalRanges[i]];
+    }
+    Builder b = new Builder(subRanges, hardMin, elementaryEnds[elementaryEnds.length-1], pool);
+    b.setNarrowKeys(narrowKeys);
+    b.setAutoCalibrate(autoCalibrate);
+    if (histogram.getCount() > 0) {
+      // Round trip, so the counts are spread over the new
+      // elementary intervals:
+      try {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writeTrainingData(new DataOutputStream(bytes));
+        b.readTrainingData(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+      } catch (IOException ioe) {
+        // Cannot happen: it's all in memory
+        throw new RuntimeException(ioe);
+      }
+    }
+    return b;
+  }
+
+  /** Like {@link #getHybridMultiSet(int)}, using {@link
+   *  #DEFAULT_HYBRID_CODE_BYTES}. */
+  public LongRangeMultiSet getHybridMultiSet() {
+    return getHybridMultiSet(DEFAULT_HYBRID_CODE_BYTES);
+  }
+
+  /** Build a {@link LongRangeMultiSet} that compiles only
+   *  the top of the tree to bytecode, like {@link
+   *  #getMultiSet} with useAsm, and searches the subtrees
+   *  below it in flat arrays.  Nodes are compiled hottest
+   *  first (according to the training data, see {@link
+   *  #record}) until about maxCodeBytes of bytecode is
+   *  generated, so that the method stays small enough to be
+   *  JIT compiled however many ranges there are, while
+   *  frequent values are still looked up by straight-line
+   *  code. */
+  public LongRangeMultiSet getHybridMultiSet(int maxCodeBytes) {
+    finish(false);
+
+    IdentityHashMap<Node,Boolean> hot = pickHotNodes(maxCodeBytes);
+
+    // The roots of the cold subtrees, in the order the
+    // bytecode will call them:
+    List<Node> subtrees = new ArrayList<>();
+    addSubtrees(root, hot, subtrees);
+
+    // Lay out the subtrees, breadth first, so each node's
+    // two children are adjacent:
+    int numNodes = 0;
+    int numOutputs = 0;
+    for(Node node : subtrees) {
+      numNodes += countColdNodes(node);
+      numOutputs += countColdOutputs(node);
+    }
+    boolean narrow = useNarrowKeys();
+    long[] splits = narrow ? null : new long[numNodes];
+    int[] narrowSplits = narrow ? new int[numNodes] : null;
+    int[] children = new int[numNodes];
+    int[] outputStarts = new int[numNodes+1];
+    int[] rangeIndices = new int[numOutputs];
+    Node[] queue = subtrees.toArray(new Node[numNodes]);
+    int nodeUpto = subtrees.size();
+    int outputUpto = 0;
+    for(int i=0;i<numNodes;i++) {
+      Node node = queue[i];
+      outputStarts[i] = outputUpto;
+      if (node.outputs != null) {
+        System.arraycopy(node.outputs, 0, rangeIndices, outputUpto, node.outputs.length);
+        outputUpto += node.outputs.length;
+      }
+      if (node.left != null && (node.left.hasOutputs || node.right.hasOutputs)) {
+        if (narrow) {
+          narrowSplits[i] = narrowKey(node.left.end, hardMin);
+        } else {
+          splits[i] = node.left.end;
+        }
+        children[i] = nodeUpto;
+        queue[nodeUpto++] = node.left;
+        queue[nodeUpto++] = node.right;
+      }
+    }
+    outputStarts[numNodes] = outputUpto;
+    assert nodeUpto == numNodes;
+    assert outputUpto == numOutputs;
+
+    String javaSource = "\n// hybrid: " + hot.size() + " compiled nodes, " + subtrees.size() + " subtrees with " + numNodes + " nodes\n";
+
+    ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS);
+    classWriter.visit(Opcodes.V1_7,
+                      Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER | Opcodes.ACC_FINAL | Opcodes.ACC_SYNTHETIC,
+                      COMPILED_HYBRID_CLASS.replace('.', '/'),
+                      null, HYBRID_LONG_RANGE_MULTI_SET_TYPE.getInternalName(), null);
+    classWriter.visitSource(sourceFile(javaSource), null);
+
+    Method m = Method.getMethod("void <init> (long[], int[], int[], int[], int[], com.changingbits.LongRangeMultiSet)");
+    GeneratorAdapter constructor = new GeneratorAdapter(Opcodes.ACC_PUBLIC | Opcodes.ACC_SYNTHETIC,
+                                                        m, null, null, classWriter);
+    constructor.loadThis();
+    constructor.loadArgs();
+    constructor.invokeConstructor(HYBRID_LONG_RANGE_MULTI_SET_TYPE, m);
+    constructor.returnValue();
+    constructor.endMethod();
+
+    GeneratorAdapter gen = new GeneratorAdapter(Opcodes.ACC_PUBLIC | Opcodes.ACC_SYNTHETIC,
+                                                LOOKUP_METHOD, null, null, classWriter);
+    int uptoLocal = gen.newLocal(Type.INT_TYPE);
+    gen.push(0);
+    gen.storeLocal(uptoLocal, Type.INT_TYPE);
+    int keyLocal = emitKey(gen, false);
+    buildHybridAsm(gen, root, uptoLocal, keyLocal, hot, new int[1]);
+    gen.loadLocal(uptoLocal, Type.INT_TYPE);
+    gen.returnValue();
+    gen.endMethod();
+    // These collapse every subtree whose values share one
+    // answer, so they are usually much smaller than lookup
+    // and are compiled whole; if not, HybridLongRangeMultiSet
+    // walks the tree:
+    compileFirstMatch(classWriter, null);
+    classWriter.visitEnd();
+
+    Class<? extends LongRangeMultiSet> treeClass = new Loader(LongRangeMultiSet.class.getClassLoader())
+      .define(COMPILED_HYBRID_CLASS, classWriter.toByteArray());
+    try {
+      return treeClass.getConstructor(long[].class, int[].class, int[].class, int[].class, int[].class, LongRangeMultiSet.class)
+        .newInstance(splits, narrowSplits, children, outputStarts, rangeIndices, new SimpleLongRangeMultiSet(root, getRangeMins()));
+    } catch (InstantiationException | IllegalAccessException | NoSuchMethodException | InvocationTargetException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /** Greedily picks the nodes to compile: always the root,
+   *  then repeatedly the most frequently visited child of
+   *  an already picked node, while the estimated bytecode
+   *  fits in maxCodeBytes. */
+  private IdentityHashMap<Node,Boolean> pickHotNodes(int maxCodeBytes) {
+    final long[] prefixCounts = new long[elementaryEnds.length+1];
+    for(int i=0;i<elementaryEnds.length;i++) {
+      prefixCounts[i+1] = prefixCounts[i] + Math.max(1, elementaryCounts[i]);
+    }
+
+    PriorityQueue<Node> queue = new PriorityQueue<>(16, new Comparator<Node>() {
+        @Override
+        public int compare(Node a, Node b) {
+          int cmp = Long.compare(visits(b, prefixCounts), visits(a, prefixCounts));
+          if (cmp == 0) {
+            // Deterministic:
+            cmp = Long.compare(a.start, b.start);
+          }
+          return cmp;
+        }
+      });
+
+    IdentityHashMap<Node,Boolean> hot = new IdentityHashMap<>();
+    int bytes = 0;
+    queue.add(root);
+    while (queue.isEmpty() == false) {
+      Node node = queue.peek();
+      int nodeBytes = node.outputs == null ? 0 : 10 * node.outputs.length;
+      boolean hasChildren = node.left != null && (node.left.hasOutputs || node.right.hasOutputs);
+      if (hasChildren) {
+        // The branch, and a subtree call for each child,
+        // until they are compiled too:
+        nodeBytes += 11;
+        if (node.left.hasOutputs) {
+          nodeBytes += 14;
+        }
+        if (node.right.hasOutputs) {
+          nodeBytes += 14;
+        }
+      }
+      if (node != root) {
+        // No longer calls this subtree:
+        nodeBytes -= 14;
+      }
+      if (node != root && bytes + nodeBytes > maxCodeBytes) {
+        break;
+      }
+      queue.poll();
+      bytes += nodeBytes;
+      hot.put(node, Boolean.TRUE);
+      if (hasChildren) {
+        if (node.left.hasOutputs) {
+          queue.add(node.left);
+        }
+        if (node.right.hasOutputs) {
+          queue.add(node.right);
+        }
+      }
+    }
+    return hot;
+  }
+
+  /** How many training values went through this node. */
+  private long visits(Node node, long[] prefixCounts) {
+    return prefixCounts[findElementary(node.end)+1] - prefixCounts[findElementary(node.start)];
+  }
+
+  private void addSubtrees(Node node, IdentityHashMap<Node,Boolean> hot, List<Node> subtrees) {
+    if (hot.containsKey(node) == false) {
+      subtrees.add(node);
+    } else if (node.left != null) {
+      if (node.left.hasOutputs) {
+        addSubtrees(node.left, hot, subtrees);
+      }
+      if (node.right.hasOutputs) {
+        addSubtrees(node.right, hot, subtrees);
+      }
+    }
+  }
+
+  private int countColdNodes(Node node) {
+    int count = 1;
+    if (node.left != null && (node.left.hasOutputs || node.right.hasOutputs)) {
+      count += countColdNodes(node.left) + countColdNodes(node.right);
+    }
+    return count;
+  }
+
+  private int countColdOutputs(Node node) {
+    int count = node.outputs == null ? 0 : node.outputs.length;
+    if (node.left != null && (node.left.hasOutputs || node.right.hasOutputs)) {
+      count += countColdOutputs(node.left) + countColdOutputs(node.right);
+    }
+    return count;
+  }
+
+  /** Like {@link #buildAsm}, except nodes that are not hot
+   *  call lookupSubtree, in the same order as {@link
+   *  #addSubtrees}. */
+  private void buildHybridAsm(GeneratorAdapter gen, Node node, int uptoLocal, int keyLocal, IdentityHashMap<Node,Boolean> hot, int[] subtreeUpto) {
+
+    if (hot.containsKey(node) == false) {
+      // upto = lookupSubtree(subtree, v, answers, upto):
+      gen.loadThis();
+      gen.push(subtreeUpto[0]++);
+      if (keyLocal == -1) {
+        gen.loadArg(0);
+      } else {
+        gen.loadLocal(keyLocal, Type.INT_TYPE);
+      }
+      gen.loadArg(1);
+      gen.loadLocal(uptoLocal, Type.INT_TYPE);
+      gen.invokeVirtual(HYBRID_LONG_RANGE_MULTI_SET_TYPE, keyLocal == -1 ? LOOKUP_SUBTREE_METHOD : LOOKUP_SUBTREE_NARROW_METHOD);
+      gen.storeLocal(uptoLocal, Type.INT_TYPE);
+      return;
+    }
+
+    if (node.outputs != null) {
+      for(int range : node.outputs) {
+        gen.loadArg(1);
+        gen.loadLocal(uptoLocal, Type.INT_TYPE);
+        gen.push(range);
+        gen.arrayStore(Type.INT_TYPE);
+        gen.iinc(uptoLocal, 1);
+      }
+    }
+
+    if (node.left != null && (node.left.hasOutputs || node.right.hasOutputs)) {
+      if (node.left.hasOutputs && node.right.hasOutputs) {
+        // Left subtrees are numbered before right ones, so
+        // emit left first:
+        Label labelRight = new Label();
+        Label labelEnd = new Label();
+        emitBranch(gen, keyLocal, GeneratorAdapter.GT, node.left.end, labelRight);
+        buildHybridAsm(gen, node.left, uptoLocal, keyLocal, hot, subtreeUpto);
+        gen.goTo(labelEnd);
+        gen.visitLabel(labelRight);
+        buildHybridAsm(gen, node.right, uptoLocal, keyLocal, hot, subtreeUpto);
+        gen.visitLabel(labelEnd);
+      } else if (node.left.hasOutputs) {
+        Label labelEnd = new Label();
+        emitBranch(gen, keyLocal, GeneratorAdapter.GT, node.left.end, labelEnd);
+        buildHybridAsm(gen, node.left, uptoLocal, keyLocal, hot, subtreeUpto);
+        gen.visitLabel(labelEnd);
+      } else {
+        Label labelEnd = new Label();
+        emitBranch(gen, keyLocal, GeneratorAdapter.LE, node.left.end, labelEnd);
+        buildHybridAsm(gen, node.right, uptoLocal, keyLocal, hot, subtreeUpto);
         gen.visitLabel(labelEnd);
       }
     }
@@ -549,7 +1828,7 @@ public final class Builder {
 
   /** Increments counts as field members (count0, count1,
    *  ...) instead of a this.intArray[0], ... */
-  private void buildCounterAsm2(GeneratorAdapter gen, Node node, boolean sawOutputs) {
+  private void buildCounterAsm2(GeneratorAdapter gen, Type owner, Node node, int keyLocal, boolean sawOutputs) {
 
     sawOutputs |= node.outputs != null;
 
@@ -558,27 +1837,24 @@ public final class Builder {
       // Recurse on either left or right
       Label labelLeft = new Label();
       Label labelEnd = new Label();
-      gen.loadArg(0);
-      gen.push(node.left.end);
-          
-      gen.ifCmp(Type.LONG_TYPE, GeneratorAdapter.LE, labelLeft);
-      buildCounterAsm2(gen, node.right, sawOutputs);
+      emitBranch(gen, keyLocal, GeneratorAdapter.LE, node.left.end, labelLeft);
+      buildCounterAsm2(gen, owner, node.right, keyLocal, sawOutputs);
       gen.goTo(labelEnd);
       gen.visitLabel(labelLeft);
-      buildCounterAsm2(gen, node.left, sawOutputs);
+      buildCounterAsm2(gen, owner, node.left, keyLocal, sawOutputs);
       gen.visitLabel(labelEnd);
     } else if (sawOutputs) {
       // leaf: this.countN++
       gen.loadThis();
       gen.loadThis();
-      gen.getField(COMPILED_COUNTER_CLASS2_TYPE, "count" + node.leafIndex, Type.INT_TYPE);
+      gen.getField(owner, "count" + node.leafIndex, Type.INT_TYPE);
       gen.push(1);
       gen.visitInsn(Opcodes.IADD);
-      gen.putField(COMPILED_COUNTER_CLASS2_TYPE, "count" + node.leafIndex, Type.INT_TYPE);
+      gen.putField(owner, "count" + node.leafIndex, Type.INT_TYPE);
     }
   }
 
-  private void buildCounterAsm(GeneratorAdapter gen, Node node, boolean sawOutputs) {
+  private void buildCounterAsm(GeneratorAdapter gen, Type owner, Node node, int keyLocal, boolean sawOutputs) {
 
     sawOutputs |= node.outputs != null;
 
@@ -587,19 +1863,16 @@ public final class Builder {
       // Recurse on either left or right
       Label labelLeft = new Label();
       Label labelEnd = new Label();
-      gen.loadArg(0);
-      gen.push(node.left.end);
-          
-      gen.ifCmp(Type.LONG_TYPE, GeneratorAdapter.LE, labelLeft);
-      buildCounterAsm(gen, node.right, sawOutputs);
+      emitBranch(gen, keyLocal, GeneratorAdapter.LE, node.left.end, labelLeft);
+      buildCounterAsm(gen, owner, node.right, keyLocal, sawOutputs);
       gen.goTo(labelEnd);
       gen.visitLabel(labelLeft);
-      buildCounterAsm(gen, node.left, sawOutputs);
+      buildCounterAsm(gen, owner, node.left, keyLocal, sawOutputs);
       gen.visitLabel(labelEnd);
     } else if (sawOutputs) {
       // leaf: elementaryCounts[node.leafIndex]++
       gen.loadThis();
-      gen.getField(BASE_LONG_RANGE_COUNTER_TYPE, "elementaryCounts", INT_ARRAY_TYPE);
+      gen.getField(owner, "elementaryCounts", INT_ARRAY_TYPE);
       gen.push(node.leafIndex);
       gen.dup2();
       gen.arrayLoad(Type.INT_TYPE);
@@ -609,6 +1882,59 @@ public final class Builder {
     }
   }
 
+  /** Emits code that computes the narrow key (see {@link
+   *  #narrowKey}) of the looked up value into a new local,
+   *  returning the local, or -1 (emitting nothing) if keys
+   *  are not narrow.  If intArg is true the looked up value
+   *  is an int, and the key is always used. */
+  private int emitKey(GeneratorAdapter gen, boolean intArg) {
+    if (intArg == false && useNarrowKeys() == false) {
+      return -1;
+    }
+    int keyLocal = gen.newLocal(Type.INT_TYPE);
+    gen.loadArg(0);
+    if (intArg) {
+      // hardMin fits in an int, and int subtraction wraps
+      // the same as the truncated long one:
+      gen.push((int) hardMin);
+      gen.math(GeneratorAdapter.SUB, Type.INT_TYPE);
+    } else {
+      gen.push(hardMin);
+      gen.math(GeneratorAdapter.SUB, Type.LONG_TYPE);
+      gen.cast(Type.LONG_TYPE, Type.INT_TYPE);
+    }
+    gen.push(Integer.MIN_VALUE);
+    gen.math(GeneratorAdapter.XOR, Type.INT_TYPE);
+    gen.storeLocal(keyLocal, Type.INT_TYPE);
+    return keyLocal;
+  }
+
+  /** Emits a jump to label if the looked up value compares
+   *  (mode is {@code GeneratorAdapter.LE} or {@code GT}) to
+   *  bound, using the narrow key if keyLocal is not -1. */
+  private void emitBranch(GeneratorAdapter gen, int keyLocal, int mode, long bound, Label label) {
+    if (keyLocal == -1) {
+      gen.loadArg(0);
+      gen.push(bound);
+      gen.ifCmp(Type.LONG_TYPE, mode, label);
+    } else {
+      gen.loadLocal(keyLocal, Type.INT_TYPE);
+      gen.push(narrowKey(bound, hardMin));
+      gen.ifICmp(mode, label);
+    }
+  }
+
+  /** The java source is stored as the class's source file
+   *  name, which the class file format limits to 65535
+   *  bytes (modified UTF-8), so truncate it if needed. */
+  static String sourceFile(String javaSource) {
+    // Each char takes at most 3 bytes:
+    if (javaSource.length() > 65535/3) {
+      javaSource = javaSource.substring(0, 65535/3 - 100) + "\n// ... truncated\n";
+    }
+    return javaSource;
+  }
+
   static void indent(StringBuilder sb, int depth) {
     for(int i=0;i<depth;i++) {
       sb.append("  ");
@@ -651,81 +1977,92 @@ public final class Builder {
   public LongRangeCounter getCounter(boolean useAsm) {
     finish(false);
     if (useAsm) {
-      StringBuilder sb = new StringBuilder();
-      sb.append('\n');
-      int count = 0;
-      for(LongRange range : ranges) {
-        sb.append("// range ");
-        sb.append(count++);
-        sb.append(": ");
-        sb.append(range);
-        sb.append('\n');
-      }
-      sb.append('\n');
-      buildJavaCounterSource(root, 0, sb, false);
-      String javaSource = sb.toString();
-      //System.out.println("javaSource:\n" + javaSource);
-
-      ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS);
-      classWriter.visit(Opcodes.V1_7,
-                        Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER | Opcodes.ACC_FINAL | Opcodes.ACC_SYNTHETIC,
-                        COMPILED_COUNTER_CLASS.replace('.', '/'),
-                        null, BASE_LONG_RANGE_COUNTER_TYPE.getInternalName(), null);
-      classWriter.visitSource(javaSource, null);
-      Method m = Method.getMethod("void <init> (com.changingbits.Node, int, int)");
-      GeneratorAdapter constructor = new GeneratorAdapter(Opcodes.ACC_PUBLIC | Opcodes.ACC_SYNTHETIC,
-                                                          m, null, null, classWriter);
-      constructor.loadThis();
-      constructor.loadArgs();
-      constructor.invokeConstructor(Type.getType(BaseLongRangeCounter.class), m);
-      constructor.returnValue();
-      constructor.endMethod();
-
-      GeneratorAdapter gen = new GeneratorAdapter(Opcodes.ACC_PUBLIC | Opcodes.ACC_SYNTHETIC,
-                                                  ADD_METHOD, null, null, classWriter);
-      buildCounterAsm(gen, root, false);
-      gen.returnValue();
-      gen.endMethod();
-      classWriter.visitEnd();
-
-      byte[] bytes = classWriter.toByteArray();
-
-      // javap -c /x/tmp/my.class
-      /*
-      try {
-        FileOutputStream fos = new FileOutputStream(new File("/x/tmp/counter.class"));
-        fos.write(bytes);
-        fos.close();
-      } catch (Exception e) {
-        throw new RuntimeException(e);
-      }
-      */
-
+      byte[] bytes = compileCounter(COMPILED_COUNTER_CLASS, BASE_LONG_RANGE_COUNTER_TYPE, ADD_METHOD, false);
       // nocommit allow changing the class loader
       Class<? extends LongRangeCounter> cl = new CounterLoader(LongRangeCounter.class.getClassLoader())
-        .define(COMPILED_COUNTER_CLASS, classWriter.toByteArray());
+        .define(COMPILED_COUNTER_CLASS, bytes);
       try {
-        return cl.getConstructor(Node.class, int.class, int.class).newInstance(root, elementaryIntervals.size(), ranges.length);
+        return cl.getConstructor(Node.class, int.class, int.class).newInstance(root, elementaryEnds.length, ranges.length);
       } catch (InstantiationException | IllegalAccessException | NoSuchMethodException | InvocationTargetException e) {
         throw new RuntimeException(e);
       }
     } else {
-      return new SimpleLongRangeCounter(root, elementaryIntervals, ranges.length);
+      return new SimpleLongRangeCounter(root, hardMin, elementaryEnds, ranges.length, useNarrowKeys());
     }
   }
 
-  private void buildJavaCounterSource(Node node, int depth, StringBuilder sb, boolean sawOutputs) {
-    indent(sb, depth);
-    sb.append("// node: " + node.start + " to " + node.end + "\n");
-
-    sawOutputs |= node.outputs != null;
-
-    if (node.left != null) {
-      indent(sb, depth);
-      sb.append("if (v <= " + node.left.end + ") {\n");
-      buildJavaCounterSource(node.left, depth+1, sb, sawOutputs);
-      indent(sb, depth);
-      sb.append("} else {\n");
+  /** Compiles the counter to a class with the provided
+   *  name that extends superType (whose constructor takes
+   *  the root node, leaf count and range count, and which
+   *  has the int[] elementaryCounts), and implements
+   *  addMethod, taking a long (or int, if intArg) value. */
+  private byte[] compileCounter(String className, Type superType, Method addMethod, boolean intArg) {
+    StringBuilder sb = new StringBuilder();
+    sb.append('\n');
+    int count = 0;
+    for(LongRange range : ranges) {
+      sb.append("// range ");
+      sb.append(count++);
+      sb.append(": ");
+      sb.append(range);
+      sb.append('\n');
+    }
+    sb.append('\n');
+    buildJavaCounterSource(root, 0, sb, false);
+    String javaSource = sb.toString();
+    //System.out.println("javaSource:\n" + javaSource);
+
+    ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS);
+    classWriter.visit(Opcodes.V1_7,
+                      Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER | Opcodes.ACC_FINAL | Opcodes.ACC_SYNTHETIC,
+                      className.replace('.', '/'),
+                      null, superType.getInternalName(), null);
+    classWriter.visitSource(sourceFile(javaSource), null);
+    Method m = Method.getMethod("void <init> (com.changingbits.Node, int, int)");
+    GeneratorAdapter constructor = new GeneratorAdapter(Opcodes.ACC_PUBLIC | Opcodes.ACC_SYNTHETIC,
+                                                        m, null, null, classWriter);
+    constructor.loadThis();
+    constructor.loadArgs();
+    constructor.invokeConstructor(superType, m);
+    constructor.returnValue();
+    constructor.endMethod();
+
+    GeneratorAdapter gen = new GeneratorAdapter(Opcodes.ACC_PUBLIC | Opcodes.ACC_SYNTHETIC,
+                                                addMethod, null, null, classWriter);
+    int keyLocal = emitKey(gen, intArg);
+    buildCounterAsm(gen, superType, root, keyLocal, false);
+    gen.returnValue();
+    gen.endMethod();
+    classWriter.visitEnd();
+
+    byte[] bytes = classWriter.toByteArray();
+
+    // javap -c /x/tmp/my.class
+    /*
+    try {
+      FileOutputStream fos = new FileOutputStream(new File("/x/tmp/counter.class"));
+      fos.write(bytes);
+      fos.close();
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+    */
+
+    return bytes;
+  }
+
+  private void buildJavaCounterSource(Node node, int depth, StringBuilder sb, boolean sawOutputs) {
+    indent(sb, depth);
+    sb.append("// node: " + node.start + " to " + node.end + "\n");
+
+    sawOutputs |= node.outputs != null;
+
+    if (node.left != null) {
+      indent(sb, depth);
+      sb.append("if (v <= " + node.left.end + ") {\n");
+      buildJavaCounterSource(node.left, depth+1, sb, sawOutputs);
+      indent(sb, depth);
+      sb.append("} else {\n");
       buildJavaCounterSource(node.right, depth+1, sb, sawOutputs);
       indent(sb, depth);
       sb.append("}\n");
@@ -764,14 +2101,35 @@ public final class Builder {
 
   public LongRangeCounter getCounter2() {
     finish(false);
+    byte[] bytes = compileCounter2(COMPILED_COUNTER_CLASS2, FIELDS_LONG_RANGE_COUNTER_TYPE, ADD_METHOD, false);
+    // nocommit allow changing the class loader
+    Class<? extends LongRangeCounter> cl = new CounterLoader(LongRangeCounter.class.getClassLoader())
+      .define(COMPILED_COUNTER_CLASS2, bytes);
+    boolean[] tracked = new boolean[elementaryEnds.length];
+    BaseLongRangeCounter.setTracked(root, false, tracked, 0);
+    try {
+      return cl.getConstructor(long.class, long[].class, boolean[].class).newInstance(hardMin, elementaryEnds, tracked);
+    } catch (InstantiationException | IllegalAccessException | NoSuchMethodException | InvocationTargetException e) {
+      throw new RuntimeException(e);
+    }
+  }
 
+  /** Compiles the counter that increments int fields
+   *  instead of an array to a class with the provided name
+   *  that extends superType, and implements addMethod,
+   *  taking a long (or int, if intArg) value, and getCounts.
+   *  If intArg, superType's constructor takes no arguments;
+   *  else superType is {@link FieldsLongRangeCounter} and
+   *  copyCounts is implemented too. */
+  private byte[] compileCounter2(String className, Type superType, Method addMethod, boolean intArg) {
     // Maps each range to the leaf counts that contribute to it:
     Map<Integer,List<Integer>> rangeToLeaf = new HashMap<>();
     buildRangeToLeaf(root, new ArrayList<Integer>(), rangeToLeaf);
 
+    Type owner = Type.getObjectType(className.replace('.', '/'));
     StringBuilder sb = new StringBuilder();
     sb.append('\n');
-    sb.append("public void add(long v) {\n");
+    sb.append(intArg ? "public void add(int v) {\n" : "public void add(long v) {\n");
     int count = 0;
     for(LongRange range : ranges) {
       sb.append("  // range ");
@@ -788,7 +2146,23 @@ public final class Builder {
     sb.append("  int[] counts = new int[");
     sb.append(ranges.length);
     sb.append("];\n");
-    for(int range=0;range<ranges.length;range++) {
+    int[] nestedOrder = getNestedOrder();
+    if (nestedOrder != null) {
+      sb.append("  int sum = 0;\n");
+      int leaf = findElementary(ranges[nestedOrder[0]].minIncl);
+      for(int range : nestedOrder) {
+        int lastLeaf = findElementary(ranges[range].maxIncl);
+        for(;leaf<=lastLeaf;leaf++) {
+          sb.append("  sum += count");
+          sb.append(leaf);
+          sb.append(";\n");
+        }
+        sb.append("  counts[");
+        sb.append(range);
+        sb.append("] = sum;\n");
+      }
+    }
+    for(int range=0;nestedOrder == null && range<ranges.length;range++) {
       List<Integer> elements = rangeToLeaf.get(range);
       if (elements != null) {
         sb.append("  counts[");
@@ -811,12 +2185,12 @@ public final class Builder {
     ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS);
     classWriter.visit(Opcodes.V1_7,
                       Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER | Opcodes.ACC_FINAL | Opcodes.ACC_SYNTHETIC,
-                      COMPILED_COUNTER_CLASS2.replace('.', '/'),
-                      null, LONG_RANGE_COUNTER_TYPE.getInternalName(), null);
-    classWriter.visitSource(javaSource, null);
+                      className.replace('.', '/'),
+                      null, superType.getInternalName(), null);
+    classWriter.visitSource(sourceFile(javaSource), null);
     
     // Define "int countN" members:
-    int numLeaves = elementaryIntervals.size();
+    int numLeaves = elementaryEnds.length;
     for(int i=0;i<numLeaves;i++) {
       classWriter.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_SYNTHETIC,
                              "count" + i,
@@ -826,24 +2200,26 @@ public final class Builder {
     }
 
     // init:
-    Method m = Method.getMethod("void <init> ()");
+    Method m = Method.getMethod(intArg ? "void <init> ()" : "void <init> (long, long[], boolean[])");
     GeneratorAdapter constructor = new GeneratorAdapter(Opcodes.ACC_PUBLIC | Opcodes.ACC_SYNTHETIC,
                                                         m, null, null, classWriter);
     // Init all counters to 0:
     for(int i=0;i<numLeaves;i++) {
       constructor.loadThis();
       constructor.push(0);
-      constructor.putField(COMPILED_COUNTER_CLASS2_TYPE, "count" + i, Type.INT_TYPE);
+      constructor.putField(owner, "count" + i, Type.INT_TYPE);
     }
     constructor.loadThis();
-    constructor.invokeConstructor(LONG_RANGE_COUNTER_TYPE, m);
+    constructor.loadArgs();
+    constructor.invokeConstructor(superType, m);
     constructor.returnValue();
     constructor.endMethod();
 
     // void add(long v):
     GeneratorAdapter gen = new GeneratorAdapter(Opcodes.ACC_PUBLIC | Opcodes.ACC_SYNTHETIC,
-                                                ADD_METHOD, null, null, classWriter);
-    buildCounterAsm2(gen, root, false);
+                                                addMethod, null, null, classWriter);
+    int keyLocal = emitKey(gen, intArg);
+    buildCounterAsm2(gen, owner, root, keyLocal, false);
     gen.returnValue();
     gen.endMethod();
 
@@ -855,18 +2231,43 @@ public final class Builder {
     gen.newArray(Type.INT_TYPE);
     gen.storeLocal(countsLocal);
 
-    for(int range=0;range<ranges.length;range++) {
+    if (nestedOrder != null) {
+      // Nested ranges: each range's count is the count of
+      // the next smaller range plus the leaves in between,
+      // so the code is linear in the number of leaves and
+      // ranges, instead of quadratic:
+      int sumLocal = gen.newLocal(Type.INT_TYPE);
+      gen.push(0);
+      gen.storeLocal(sumLocal);
+      int leaf = findElementary(ranges[nestedOrder[0]].minIncl);
+      for(int range : nestedOrder) {
+        int lastLeaf = findElementary(ranges[range].maxIncl);
+        for(;leaf<=lastLeaf;leaf++) {
+          gen.loadLocal(sumLocal);
+          gen.loadThis();
+          gen.getField(owner, "count" + leaf, Type.INT_TYPE);
+          gen.visitInsn(Opcodes.IADD);
+          gen.storeLocal(sumLocal);
+        }
+        gen.loadLocal(countsLocal);
+        gen.push(range);
+        gen.loadLocal(sumLocal);
+        gen.arrayStore(Type.INT_TYPE);
+      }
+    }
+
+    for(int range=0;nestedOrder == null && range<ranges.length;range++) {
       List<Integer> elements = rangeToLeaf.get(range);
       if (elements != null) {
         gen.loadLocal(countsLocal);
         gen.push(range);
 
         gen.loadThis();
-        gen.getField(COMPILED_COUNTER_CLASS2_TYPE, "count" + elements.get(0), Type.INT_TYPE);
+        gen.getField(owner, "count" + elements.get(0), Type.INT_TYPE);
 
         for(int i=1;i<elements.size();i++) {
           gen.loadThis();
-          gen.getField(COMPILED_COUNTER_CLASS2_TYPE, "count" + elements.get(i), Type.INT_TYPE);
+          gen.getField(owner, "count" + elements.get(i), Type.INT_TYPE);
           gen.visitInsn(Opcodes.IADD);
         }
 
@@ -878,6 +2279,21 @@ public final class Builder {
     gen.returnValue();
     gen.endMethod();
 
+    if (intArg == false) {
+      // void copyCounts(int[] counts):
+      gen = new GeneratorAdapter(Opcodes.ACC_PROTECTED | Opcodes.ACC_SYNTHETIC,
+                                 COPY_COUNTS_METHOD, null, null, classWriter);
+      for(int i=0;i<numLeaves;i++) {
+        gen.loadArg(0);
+        gen.push(i);
+        gen.loadThis();
+        gen.getField(owner, "count" + i, Type.INT_TYPE);
+        gen.arrayStore(Type.INT_TYPE);
+      }
+      gen.returnValue();
+      gen.endMethod();
+    }
+
     classWriter.visitEnd();
 
     byte[] bytes = classWriter.toByteArray();
@@ -893,14 +2309,861 @@ public final class Builder {
     }
     */
 
-    // nocommit allow changing the class loader
-    Class<? extends LongRangeCounter> cl = new CounterLoader(LongRangeCounter.class.getClassLoader())
-      .define(COMPILED_COUNTER_CLASS2, classWriter.toByteArray());
-    try {
-      return cl.getConstructor().newInstance();
-    } catch (InstantiationException | IllegalAccessException | NoSuchMethodException | InvocationTargetException e) {
-      throw new RuntimeException(e);
+    return bytes;
+  }
+
+  /** Build a {@link LongRangeMultiSet} using the provided
+   *  engine; {@link Engine#ASM_FIELDS} is not supported. */
+  public LongRangeMultiSet getMultiSet(Engine engine) {
+    switch(engine) {
+    case LINEAR:
+      return new LinearLongRangeMultiSet(ranges);
+    case SIMPLE:
+      return getMultiSet(false, false);
+    case ARRAY:
+      return getMultiSet(false, true);
+    case ASM:
+      return getMultiSet(true, false);
+    case HYBRID:
+      return getHybridMultiSet();
+    case POINT:
+      return getPointMultiSet(Engine.AUTO);
+    case AUTO:
+      return getMultiSet(pickAutoMultiSetEngine());
+    default:
+      throw new IllegalArgumentException("engine " + engine + " cannot build a LongRangeMultiSet");
+    }
+  }
+
+  /** Build a {@link LongRangeCounter} using the provided
+   *  engine; {@link Engine#LINEAR} and {@link Engine#ARRAY}
+   *  are not supported. */
+  public LongRangeCounter getCounter(Engine engine) {
+    switch(engine) {
+    case SIMPLE:
+      return getCounter(false);
+    case ASM:
+      return getCounter(true);
+    case POINT:
+      return getPointCounter(Engine.AUTO);
+    case ASM_FIELDS:
+      return getCounter2();
+    case AUTO:
+      return getCounter(pickAutoCounterEngine());
+    default:
+      throw new IllegalArgumentException("engine " + engine + " cannot build a LongRangeCounter");
+    }
+  }
+
+  /** Build an {@link IntRangeMultiSet} using the provided
+   *  engine; {@link Engine#ASM} compiles a lookup taking an
+   *  int, and the other engines look up the widened value.
+   *  {@link Engine#ASM_FIELDS} is not supported.  Only
+   *  values from hardMin to hardMax may be looked up, which
+   *  must fit in an int. */
+  public IntRangeMultiSet getIntMultiSet(Engine engine) {
+    checkIntBounds();
+    switch(engine) {
+    case ASM:
+      finish(false);
+      byte[] bytes = compileTree(COMPILED_INT_TREE_CLASS, INT_RANGE_MULTI_SET_TYPE, INT_LOOKUP_METHOD, true);
+      Class<? extends IntRangeMultiSet> treeClass = new Loader(IntRangeMultiSet.class.getClassLoader())
+        .define(COMPILED_INT_TREE_CLASS, bytes, IntRangeMultiSet.class);
+      try {
+        return treeClass.getConstructor().newInstance();
+      } catch (InstantiationException | IllegalAccessException | NoSuchMethodException | InvocationTargetException e) {
+        throw new RuntimeException(e);
+      }
+    case AUTO:
+      return getIntMultiSet(pickAutoMultiSetEngine());
+    case ASM_FIELDS:
+      throw new IllegalArgumentException("engine " + engine + " cannot build an IntRangeMultiSet");
+    default:
+      return new WrappedIntRangeMultiSet(getMultiSet(engine));
+    }
+  }
+
+  /** Build an {@link IntRangeCounter} using the provided
+   *  engine; {@link Engine#ASM} and {@link
+   *  Engine#ASM_FIELDS} compile an add taking an int.  Only
+   *  {@link Engine#SIMPLE}, {@link Engine#ASM}, {@link
+   *  Engine#ASM_FIELDS} and {@link Engine#AUTO} are
+   *  supported.  Only values from hardMin to hardMax may be
+   *  added, which must fit in an int. */
+  public IntRangeCounter getIntCounter(Engine engine) {
+    checkIntBounds();
+    switch(engine) {
+    case SIMPLE:
+      return new WrappedIntRangeCounter(getCounter(false));
+    case ASM:
+      {
+        finish(false);
+        byte[] bytes = compileCounter(COMPILED_INT_COUNTER_CLASS, BASE_INT_RANGE_COUNTER_TYPE, INT_ADD_METHOD, true);
+        Class<? extends IntRangeCounter> cl = new Loader(IntRangeCounter.class.getClassLoader())
+          .define(COMPILED_INT_COUNTER_CLASS, bytes, IntRangeCounter.class);
+        try {
+          return cl.getConstructor(Node.class, int.class, int.class).newInstance(root, elementaryEnds.length, ranges.length);
+        } catch (InstantiationException | IllegalAccessException | NoSuchMethodException | InvocationTargetException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    case ASM_FIELDS:
+      {
+        finish(false);
+        byte[] bytes = compileCounter2(COMPILED_INT_COUNTER_CLASS2, INT_RANGE_COUNTER_TYPE, INT_ADD_METHOD, true);
+        Class<? extends IntRangeCounter> cl = new Loader(IntRangeCounter.class.getClassLoader())
+          .define(COMPILED_INT_COUNTER_CLASS2, bytes, IntRangeCounter.class);
+        try {
+          return cl.getConstructor().newInstance();
+        } catch (InstantiationException | IllegalAccessException | NoSuchMethodException | InvocationTargetException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    case AUTO:
+      return getIntCounter(pickAutoCounterEngine());
+    default:
+      throw new IllegalArgumentException("engine " + engine + " cannot build an IntRangeCounter");
+    }
+  }
+
+  private void checkIntBounds() {
+    if (hardMin < Integer.MIN_VALUE || elementaryEnds[elementaryEnds.length-1] > Integer.MAX_VALUE) {
+      throw new IllegalStateException("hardMin and hardMax must fit in an int; got hardMin=" + hardMin + " hardMax=" + elementaryEnds[elementaryEnds.length-1]);
+    }
+  }
+
+  /** If true (the default), and all values fit in 32 bits
+   *  once rebased (hardMax - hardMin &lt; 2^32), the
+   *  implementations compare 32 bit keys instead of longs;
+   *  see {@link #narrowKey}.  Only values between hardMin
+   *  and hardMax may then be looked up or counted. */
+  public void setNarrowKeys(boolean narrowKeys) {
+    this.narrowKeys = narrowKeys;
+  }
+
+  /** True if implementations should use narrow keys. */
+  boolean useNarrowKeys() {
+    long hardMax = elementaryEnds[elementaryEnds.length-1];
+    return narrowKeys && Long.compareUnsigned(hardMax - hardMin, 0xFFFFFFFFL) <= 0;
+  }
+
+  /** Maps v, which must be within base to base + 2^32 - 1,
+   *  to an int key that sorts (signed) the same way. */
+  static int narrowKey(long v, long base) {
+    return ((int) (v - base)) ^ Integer.MIN_VALUE;
+  }
+
+  /** If true, {@link Engine#AUTO} refines the cost model by
+   *  building each candidate engine and timing it on
+   *  values drawn from the training data (see {@link
+   *  #record}); this makes building slower, typically by
+   *  tens of milliseconds.  Default is false. */
+  public void setAutoCalibrate(boolean autoCalibrate) {
+    this.autoCalibrate = autoCalibrate;
+  }
+
+  /** Returns a human readable explanation of the last
+   *  engine picked by {@link Engine#AUTO}, or null if it
+   *  was not used yet. */
+  public String getAutoDiagnostic() {
+    return autoDiagnostic;
+  }
+
+  private Engine pickAutoMultiSetEngine() {
+    // Never ARRAY: it ignores the training data, and the
+    // tree can only be finished one way:
+    finish(false);
+
+    TreeStats stats = new TreeStats();
+    stats.collect(root, 0, 0);
+    int codeBytes = estimateLookupBytes(root);
+    boolean asmOK = codeBytes <= JIT_MAX_METHOD_BYTES;
+
+    double linearCost = COST_LINEAR_RANGE * ranges.length + COST_MATCH * stats.avgMatches();
+    double simpleCost = COST_SIMPLE_NODE * stats.avgDepth() + COST_MATCH * stats.avgMatches();
+    double asmCost = COST_ASM_NODE * stats.avgDepth() + COST_MATCH * stats.avgMatches();
+
+    List<Engine> candidates = new ArrayList<>();
+    List<Double> costs = new ArrayList<>();
+    candidates.add(Engine.LINEAR);
+    costs.add(linearCost);
+    candidates.add(Engine.SIMPLE);
+    costs.add(simpleCost);
+    if (asmOK) {
+      candidates.add(Engine.ASM);
+      costs.add(asmCost);
+    } else {
+      // Only the top of the tree is compiled:
+      IdentityHashMap<Node,Boolean> hot = pickHotNodes(DEFAULT_HYBRID_CODE_BYTES);
+      double hybridCost = stats.avgHybridCost(hot) + COST_MATCH * stats.avgMatches();
+      candidates.add(Engine.HYBRID);
+      costs.add(hybridCost);
+    }
+
+    StringBuilder why = new StringBuilder();
+    why.append(String.format(Locale.ROOT, "%d ranges, %d elementary intervals, %.1f avg depth, %.1f avg matches; lookup is ~%d bytes of bytecode",
+                             ranges.length, elementaryEnds.length, stats.avgDepth(), stats.avgMatches(), codeBytes));
+    if (!asmOK) {
+      why.append(" (too large for the JIT, so ASM is excluded)");
+    }
+    appendCosts(why, candidates, costs);
+
+    Engine engine = cheapest(candidates, costs);
+
+    if (autoCalibrate) {
+      long[] values = sampleValues();
+      List<Engine> timed = new ArrayList<>();
+      List<LongRangeMultiSet> sets = new ArrayList<>();
+      for(Engine candidate : candidates) {
+        if (candidate != Engine.LINEAR || ranges.length <= CALIBRATE_MAX_LINEAR_RANGES) {
+          timed.add(candidate);
+          sets.add(getMultiSet(candidate));
+        }
+      }
+      long[] nanos = new long[timed.size()];
+      Arrays.fill(nanos, Long.MAX_VALUE);
+      int[] answers = new int[ranges.length];
+      int sum = 0;
+      for(int round=0;round<CALIBRATE_ROUNDS;round++) {
+        for(int i=0;i<timed.size();i++) {
+          LongRangeMultiSet set = sets.get(i);
+          long t0 = System.nanoTime();
+          for(long v : values) {
+            sum += set.lookup(v, answers);
+          }
+          nanos[i] = Math.min(nanos[i], System.nanoTime() - t0);
+        }
+      }
+      engine = timed.get(fastest(nanos));
+      calibrateSink = sum;
+      appendTimes(why, timed, nanos);
+    }
+
+    autoDiagnostic = "AUTO chose " + engine + " multi-set: " + why;
+    return engine;
+  }
+
+  private Engine pickAutoCounterEngine() {
+    finish(false);
+
+    TreeStats stats = new TreeStats();
+    stats.collect(root, 0, 0);
+    int numLeaves = elementaryEnds.length;
+
+    int addBytes = estimateCounterAddBytes(root, false, false);
+    int addFieldsBytes = estimateCounterAddBytes(root, false, true);
+    // Constructor zeros each field, and getCounts sums
+    // them per range:
+    int initFieldsBytes = 5 * numLeaves;
+    int getCountsBytes = isNested() ? 7 * (numLeaves + ranges.length) : estimateGetCountsBytes(root, 0);
+    boolean asmOK = addBytes <= JIT_MAX_METHOD_BYTES;
+    boolean asmFieldsOK = addFieldsBytes <= JIT_MAX_METHOD_BYTES &&
+      initFieldsBytes <= MAX_METHOD_BYTES && getCountsBytes <= MAX_METHOD_BYTES;
+
+    // Binary search steps over the boundaries:
+    int steps = 32 - Integer.numberOfLeadingZeros(numLeaves);
+    double simpleCost = COST_BINARY_SEARCH_STEP * steps;
+    double asmCost = COST_ASM_NODE * stats.avgDepth() + COST_ASM_COUNT;
+    double asmFieldsCost = COST_ASM_NODE * stats.avgDepth() + COST_ASM_FIELDS_COUNT;
+
+    List<Engine> candidates = new ArrayList<>();
+    List<Double> costs = new ArrayList<>();
+    candidates.add(Engine.SIMPLE);
+    costs.add(simpleCost);
+    if (asmOK) {
+      candidates.add(Engine.ASM);
+      costs.add(asmCost);
+    }
+    if (asmFieldsOK) {
+      candidates.add(Engine.ASM_FIELDS);
+      costs.add(asmFieldsCost);
+    }
+
+    StringBuilder why = new StringBuilder();
+    why.append(String.format(Locale.ROOT, "%d ranges, %d elementary intervals, %.1f avg depth; add is ~%d bytes of bytecode (~%d with fields)",
+                             ranges.length, numLeaves, stats.avgDepth(), addBytes, addFieldsBytes));
+    if (!asmOK) {
+      why.append(" (ASM too large for the JIT)");
+    }
+    if (!asmFieldsOK) {
+      why.append(" (ASM_FIELDS too large)");
+    }
+    appendCosts(why, candidates, costs);
+
+    Engine engine = cheapest(candidates, costs);
+
+    if (autoCalibrate) {
+      long[] values = sampleValues();
+      List<LongRangeCounter> counters = new ArrayList<>();
+      for(Engine candidate : candidates) {
+        counters.add(getCounter(candidate));
+      }
+      long[] nanos = new long[candidates.size()];
+      Arrays.fill(nanos, Long.MAX_VALUE);
+      for(int round=0;round<CALIBRATE_ROUNDS;round++) {
+        for(int i=0;i<candidates.size();i++) {
+          LongRangeCounter counter = counters.get(i);
+          long t0 = System.nanoTime();
+          for(long v : values) {
+            counter.add(v);
+          }
+          nanos[i] = Math.min(nanos[i], System.nanoTime() - t0);
+        }
+      }
+      engine = candidates.get(fastest(nanos));
+      appendTimes(why, candidates, nanos);
+    }
+
+    autoDiagnostic = "AUTO chose " + engine + " counter: " + why;
+
+    // The calibrated counters have counts already, so the
+    // caller always makes a new one:
+    return engine;
+  }
+
+  /** Per-lookup averages over the leaves, weighted by the
+   *  training counts. */
+  private final class TreeStats {
+    double weight;
+    double depthSum;
+    double matchSum;
+
+    void collect(Node node, int depth, int matches) {
+      if (node.outputs != null) {
+        matches += node.outputs.length;
+      }
+      if (node.left != null) {
+        collect(node.left, depth+1, matches);
+        collect(node.right, depth+1, matches);
+      } else {
+        // Like finish, unseen intervals count as 1:
+        long count = Math.max(1, elementaryCounts[node.leafIndex]);
+        weight += count;
+        depthSum += (double) count * depth;
+        matchSum += (double) count * matches;
+      }
+    }
+
+    double avgDepth() {
+      return depthSum / weight;
+    }
+
+    /** Average cost of descending the tree when only the
+     *  hot nodes are compiled. */
+    double avgHybridCost(IdentityHashMap<Node,Boolean> hot) {
+      return hybridCost(root, hot, 0) / weight;
+    }
+
+    private double hybridCost(Node node, IdentityHashMap<Node,Boolean> hot, double cost) {
+      if (node.left != null) {
+        boolean isHot = hot.containsKey(node);
+        cost += isHot ? COST_ASM_NODE : COST_ARRAY_NODE;
+        double sum = 0;
+        for(Node child : new Node[] {node.left, node.right}) {
+          double childCost = cost;
+          if (isHot && hot.containsKey(child) == false) {
+            childCost += COST_SUBTREE_CALL;
+          }
+          sum += hybridCost(child, hot, childCost);
+        }
+        return sum;
+      } else {
+        return cost * Math.max(1, elementaryCounts[node.leafIndex]);
+      }
     }
+
+    double avgMatches() {
+      return matchSum / weight;
+    }
+  }
+
+  /** Roughly how many bytes of bytecode {@link #buildAsm}
+   *  generates. */
+  private int estimateLookupBytes(Node node) {
+    // aload, iload, push, iastore, iinc:
+    int bytes = node.outputs == null ? 0 : 10 * node.outputs.length;
+    if (node.left != null && (node.left.hasOutputs || node.right.hasOutputs)) {
+      // lload, ldc2_w, lcmp, if (+ goto):
+      if (node.left.hasOutputs && node.right.hasOutputs) {
+        bytes += 11;
+      } else {
+        bytes += 8;
+      }
+      bytes += estimateLookupBytes(node.left) + estimateLookupBytes(node.right);
+    }
+    return bytes;
+  }
+
+  /** Roughly how many bytes of bytecode {@link
+   *  #buildOverlapAsm} generates. */
+  private int estimateOverlapBytes(Node node) {
+    // aload, iload, push, iastore, iinc, plus lload,
+    // ldc2_w, lcmp, if when a must be checked:
+    int bytes = node.outputs == null ? 0 : 10 * node.outputs.length + 8;
+    if (node.left != null) {
+      if (node.left.hasOutputs) {
+        bytes += 8 + estimateOverlapBytes(node.left);
+      }
+      if (node.right.hasOutputs) {
+        bytes += 8 + estimateOverlapBytes(node.right);
+      }
+    }
+    return bytes;
+  }
+
+  /** Roughly how many bytes of bytecode {@link
+   *  #buildFirstMatchAsm} generates. */
+  private int estimateFirstMatchBytes(Node node, int best, Map<Node,int[]> spans) {
+    if (node.outputs != null) {
+      best = Math.min(best, node.outputs[0]);
+    }
+    if (uniformFirstMatch(node, best, spans) != -1) {
+      // push, ireturn:
+      return 4;
+    }
+    // lload, ldc2_w, lcmp, if:
+    return 9 + estimateFirstMatchBytes(node.left, best, spans) + estimateFirstMatchBytes(node.right, best, spans);
+  }
+
+  /** Roughly how many bytes of bytecode {@link
+   *  #buildMatchesAnyAsm} generates. */
+  private int estimateMatchesAnyBytes(Node node) {
+    if (node.outputs != null || node.hasOutputs == false) {
+      return 2;
+    }
+    return 9 + estimateMatchesAnyBytes(node.left) + estimateMatchesAnyBytes(node.right);
+  }
+
+  /** Roughly how many bytes of bytecode {@link
+   *  #buildCounterAsm} or {@link #buildCounterAsm2}
+   *  generate. */
+  private int estimateCounterAddBytes(Node node, boolean sawOutputs, boolean fields) {
+    sawOutputs |= node.outputs != null;
+    if (node.left != null) {
+      return 11 + estimateCounterAddBytes(node.left, sawOutputs, fields) + estimateCounterAddBytes(node.right, sawOutputs, fields);
+    } else if (sawOutputs) {
+      return fields ? 10 : 12;
+    } else {
+      return 0;
+    }
+  }
+
+  /** Roughly how many bytes of bytecode the getCounts
+   *  generated by {@link #getCounter2} is: each range
+   *  loads and adds the field of every leaf under its
+   *  nodes. */
+  private int estimateGetCountsBytes(Node node, int numOutputs) {
+    if (node.outputs != null) {
+      numOutputs += node.outputs.length;
+    }
+    if (node.left != null) {
+      return estimateGetCountsBytes(node.left, numOutputs) + estimateGetCountsBytes(node.right, numOutputs);
+    } else {
+      // aload_0, getfield, iadd per range covering the leaf:
+      return 5 * numOutputs;
+    }
+  }
+
+  private static Engine cheapest(List<Engine> candidates, List<Double> costs) {
+    int best = 0;
+    for(int i=1;i<candidates.size();i++) {
+      if (costs.get(i) < costs.get(best)) {
+        best = i;
+      }
+    }
+    return candidates.get(best);
+  }
+
+  private static int fastest(long[] nanos) {
+    int best = 0;
+    for(int i=1;i<nanos.length;i++) {
+      if (nanos[i] < nanos[best]) {
+        best = i;
+      }
+    }
+    return best;
+  }
+
+  private static void appendCosts(StringBuilder sb, List<Engine> candidates, List<Double> costs) {
+    sb.append("; model cost");
+    for(int i=0;i<candidates.size();i++) {
+      sb.append(String.format(Locale.ROOT, " %s=%.1f", candidates.get(i), costs.get(i)));
+    }
+  }
+
+  private static void appendTimes(StringBuilder sb, List<Engine> candidates, long[] nanos) {
+    sb.append("; calibrated nsec/value");
+    for(int i=0;i<candidates.size();i++) {
+      sb.append(String.format(Locale.ROOT, " %s=%.1f", candidates.get(i), nanos[i] / (double) CALIBRATE_VALUES));
+    }
+  }
+
+  /** Draws values from the elementary intervals, in
+   *  proportion to the training counts. */
+  private long[] sampleValues() {
+    long[] cumulative = new long[elementaryCounts.length];
+    long total = 0;
+    for(int i=0;i<elementaryCounts.length;i++) {
+      // Like finish, unseen intervals count as 1:
+      total += Math.max(1, elementaryCounts[i]);
+      cumulative[i] = total;
+    }
+    Random random = new Random(17);
+    long[] values = new long[CALIBRATE_VALUES];
+    for(int i=0;i<values.length;i++) {
+      long x = (random.nextLong() & Long.MAX_VALUE) % total;
+      int index = Arrays.binarySearch(cumulative, x+1);
+      if (index < 0) {
+        index = -index-1;
+      }
+      long start = elementaryStart(index);
+      long width = elementaryEnds[index] - start + 1;
+      if (width > 0) {
+        // Random value inside the interval:
+        values[i] = start + (random.nextLong() & Long.MAX_VALUE) % width;
+      } else {
+        // The width overflowed; any value will do:
+        values[i] = start + (random.nextLong() & Long.MAX_VALUE);
+      }
+    }
+    return values;
+  }
+
+  /** Returns an {@link AdaptiveLongRangeMultiSet} with the
+   *  default sampling and rebuild settings. */
+  public AdaptiveLongRangeMultiSet getAdaptiveMultiSet(boolean useAsm, ExecutorService executor) {
+    return getAdaptiveMultiSet(useAsm, executor,
+                               AdaptiveLongRangeMultiSet.DEFAULT_SAMPLE_INTERVAL,
+                               AdaptiveLongRangeMultiSet.DEFAULT_CHECK_SAMPLES,
+                               AdaptiveLongRangeMultiSet.DEFAULT_REBUILD_THRESHOLD);
+  }
+
+  /** Returns a {@link LongRangeMultiSet} that starts from
+   *  this builder's (optionally trained) tree and then
+   *  re-trains itself in the background, using the
+   *  executor, as the looked up values drift.  See {@link
+   *  AdaptiveLongRangeMultiSet} for the parameters. */
+  public AdaptiveLongRangeMultiSet getAdaptiveMultiSet(boolean useAsm, ExecutorService executor,
+                                                       int sampleInterval, int checkSamples, double rebuildThreshold) {
+    return new AdaptiveLongRangeMultiSet(this, useAsm, executor, sampleInterval, checkSamples, rebuildThreshold);
+  }
+
+  /** Returns a {@link LongRangeMultiSet} that can serve
+   *  lookups right away, from the plain java tree, while
+   *  the asm version (see {@link #getMultiSet}) is compiled
+   *  using the executor.  Once that is done it transparently
+   *  takes over; {@link SwappableLongRangeMultiSet#getGeneration}
+   *  changes from 0 to 1 and the listener, if not null, is
+   *  notified.  Do not use this builder again until the
+   *  switch has happened. */
+  public SwappableLongRangeMultiSet getTieredMultiSet(boolean useArrayImpl, ExecutorService executor,
+                                                      SwappableLongRangeMultiSet.Listener listener) {
+    SwappableLongRangeMultiSet set = new SwappableLongRangeMultiSet(getMultiSet(false, useArrayImpl), listener);
+    set.rebuild(this, true, useArrayImpl, executor);
+    return set;
+  }
+
+  /** Returns a {@link LongRangeCounter} that can count
+   *  right away, using the plain java counter, while the
+   *  asm version (see {@link #getCounter2}) is compiled
+   *  using the executor.  The counting thread switches to
+   *  it on its next {@link LongRangeCounter#add} after it
+   *  is ready, carrying forward the counts so far; {@link
+   *  SwappableLongRangeCounter#getGeneration} then changes
+   *  from 0 to 1.  The listener only sees counters replaced
+   *  by later {@link SwappableLongRangeCounter#rebuild}
+   *  calls, and may be null.  Do not use this builder again
+   *  until the switch has happened. */
+  public SwappableLongRangeCounter getTieredCounter(ExecutorService executor, SwappableLongRangeCounter.Listener listener) {
+    SwappableLongRangeCounter counter = new SwappableLongRangeCounter(getCounter(false), listener);
+    counter.upgrade(this, executor);
+    return counter;
+  }
+
+  /** Returns a {@link CachingLongRangeMultiSet} with the
+   *  default settings, in front of a multi set from the
+   *  provided engine. */
+  public CachingLongRangeMultiSet getCachingMultiSet(Engine engine) {
+    return new CachingLongRangeMultiSet(getMultiSet(engine));
+  }
+
+  /** Returns a {@link CachingLongRangeCounter} with the
+   *  default settings (see {@link
+   *  CachingLongRangeMultiSet}), in front of a counter from
+   *  the provided engine. */
+  public CachingLongRangeCounter getCachingCounter(Engine engine) {
+    return getCachingCounter(engine, CachingLongRangeMultiSet.DEFAULT_CACHE_SIZE,
+                             CachingLongRangeMultiSet.DEFAULT_MIN_HIT_RATE);
+  }
+
+  /** Returns a {@link LongRangeCounter} that caches the
+   *  elementary interval of recently added values, in front
+   *  of a counter from the provided engine, which counts the
+   *  values while the cache is bypassed.  The cache has at
+   *  least cacheSize slots, and is bypassed for a while
+   *  when its hit rate drops below minHitRate. */
+  public CachingLongRangeCounter getCachingCounter(Engine engine, int cacheSize, double minHitRate) {
+    LongRangeCounter delegate = getCounter(engine);
+    // The point engine does not need our tree:
+    finish(false);
+    return new CachingLongRangeCounter(delegate, root, hardMin, elementaryEnds, ranges.length, cacheSize, minHitRate);
+  }
+
+  /** Returns a {@link FusedLongRangeCounter} that counts
+   *  the ranges of each builder (facet f is builders[f])
+   *  over its own column, in a single loop over the rows.
+   *
+   *  @param useAsm If true, the loop is compiled with each
+   *  facet's counter tree inlined, unless it would be too
+   *  large for the JIT to compile. */
+  public static FusedLongRangeCounter getFusedCounter(boolean useAsm, Builder... builders) {
+    Node[] roots = new Node[builders.length];
+    int[] numLeaves = new int[builders.length];
+    int[] numRanges = new int[builders.length];
+    // Loop overhead:
+    int bytes = 20;
+    for(int facet=0;facet<builders.length;facet++) {
+      Builder b = builders[facet];
+      b.finish(false);
+      roots[facet] = b.root;
+      numLeaves[facet] = b.elementaryEnds.length;
+      numRanges[facet] = b.ranges.length;
+      // Load the value and compute the key:
+      bytes += 20 + b.estimateCounterAddBytes(b.root, false, false);
+    }
+    if (useAsm && bytes <= JIT_MAX_METHOD_BYTES) {
+      byte[] classBytes = compileFusedCounter(COMPILED_FUSED_COUNTER_CLASS, FUSED_LONG_RANGE_COUNTER_TYPE, builders);
+      Class<? extends FusedLongRangeCounter> cl = new Loader(FusedLongRangeCounter.class.getClassLoader())
+        .define(COMPILED_FUSED_COUNTER_CLASS, classBytes, FusedLongRangeCounter.class);
+      try {
+        return cl.getConstructor(Node[].class, int[].class, int[].class).newInstance(roots, numLeaves, numRanges);
+      } catch (InstantiationException | IllegalAccessException | NoSuchMethodException | InvocationTargetException e) {
+        throw new RuntimeException(e);
+      }
+    }
+    return new SimpleFusedLongRangeCounter(roots, numLeaves, numRanges);
+  }
+
+  /** Compiles a {@link FusedLongRangeCounter} subclass whose
+   *  addRows loops over the rows, and for each row runs
+   *  every builder's counter tree on its column. */
+  private static byte[] compileFusedCounter(String className, Type superType, Builder[] builders) {
+    ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS);
+    classWriter.visit(Opcodes.V1_7,
+                      Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER | Opcodes.ACC_FINAL | Opcodes.ACC_SYNTHETIC,
+                      className.replace('.', '/'),
+                      null, superType.getInternalName(), null);
+
+    Method m = Method.getMethod("void <init> (com.changingbits.Node[], int[], int[])");
+    GeneratorAdapter constructor = new GeneratorAdapter(Opcodes.ACC_PUBLIC | Opcodes.ACC_SYNTHETIC,
+                                                        m, null, null, classWriter);
+    constructor.loadThis();
+    constructor.loadArgs();
+    constructor.invokeConstructor(superType, m);
+    constructor.returnValue();
+    constructor.endMethod();
+
+    GeneratorAdapter gen = new GeneratorAdapter(Opcodes.ACC_PUBLIC | Opcodes.ACC_SYNTHETIC,
+                                                ADD_ROWS_METHOD, null, null, classWriter);
+
+    // Hoist each facet's column and counts into locals:
+    int[] columnLocals = new int[builders.length];
+    int[] countsLocals = new int[builders.length];
+    for(int facet=0;facet<builders.length;facet++) {
+      columnLocals[facet] = gen.newLocal(LONG_ARRAY_TYPE);
+      gen.loadArg(0);
+      gen.push(facet);
+      gen.arrayLoad(LONG_ARRAY_TYPE);
+      gen.storeLocal(columnLocals[facet], LONG_ARRAY_TYPE);
+      countsLocals[facet] = gen.newLocal(INT_ARRAY_TYPE);
+      gen.loadThis();
+      gen.getField(superType, "elementaryCounts", INT_ARRAY_ARRAY_TYPE);
+      gen.push(facet);
+      gen.arrayLoad(INT_ARRAY_TYPE);
+      gen.storeLocal(countsLocals[facet], INT_ARRAY_TYPE);
+    }
+    int valueLocal = gen.newLocal(Type.LONG_TYPE);
+    int keyLocal = gen.newLocal(Type.INT_TYPE);
+
+    // for(int i=start;i<end;i++):
+    Label labelTop = new Label();
+    Label labelEnd = new Label();
+    gen.visitLabel(labelTop);
+    gen.loadArg(1);
+    gen.loadArg(2);
+    gen.ifICmp(GeneratorAdapter.GE, labelEnd);
+    for(int facet=0;facet<builders.length;facet++) {
+      Builder b = builders[facet];
+      gen.loadLocal(columnLocals[facet], LONG_ARRAY_TYPE);
+      gen.loadArg(1);
+      gen.arrayLoad(Type.LONG_TYPE);
+      gen.storeLocal(valueLocal, Type.LONG_TYPE);
+      boolean narrow = b.useNarrowKeys();
+      if (narrow) {
+        gen.loadLocal(valueLocal, Type.LONG_TYPE);
+        gen.push(b.hardMin);
+        gen.math(GeneratorAdapter.SUB, Type.LONG_TYPE);
+        gen.cast(Type.LONG_TYPE, Type.INT_TYPE);
+        gen.push(Integer.MIN_VALUE);
+        gen.math(GeneratorAdapter.XOR, Type.INT_TYPE);
+        gen.storeLocal(keyLocal, Type.INT_TYPE);
+      }
+      b.buildFusedCounterAsm(gen, b.root, valueLocal, narrow ? keyLocal : -1, countsLocals[facet], false);
+    }
+    gen.loadArg(1);
+    gen.push(1);
+    gen.math(GeneratorAdapter.ADD, Type.INT_TYPE);
+    gen.storeArg(1);
+    gen.goTo(labelTop);
+    gen.visitLabel(labelEnd);
+    gen.returnValue();
+    gen.endMethod();
+    classWriter.visitEnd();
+
+    return classWriter.toByteArray();
+  }
+
+  /** Like {@link #buildCounterAsm}, but compares the value
+   *  (or key) in a local and increments the counts array in
+   *  a local. */
+  private void buildFusedCounterAsm(GeneratorAdapter gen, Node node, int valueLocal, int keyLocal, int countsLocal, boolean sawOutputs) {
+
+    sawOutputs |= node.outputs != null;
+
+    if (node.left != null) {
+      // Recurse on either left or right
+      Label labelLeft = new Label();
+      Label labelEnd = new Label();
+      if (keyLocal == -1) {
+        gen.loadLocal(valueLocal, Type.LONG_TYPE);
+        gen.push(node.left.end);
+        gen.ifCmp(Type.LONG_TYPE, GeneratorAdapter.LE, labelLeft);
+      } else {
+        gen.loadLocal(keyLocal, Type.INT_TYPE);
+        gen.push(narrowKey(node.left.end, hardMin));
+        gen.ifICmp(GeneratorAdapter.LE, labelLeft);
+      }
+      buildFusedCounterAsm(gen, node.right, valueLocal, keyLocal, countsLocal, sawOutputs);
+      gen.goTo(labelEnd);
+      gen.visitLabel(labelLeft);
+      buildFusedCounterAsm(gen, node.left, valueLocal, keyLocal, countsLocal, sawOutputs);
+      gen.visitLabel(labelEnd);
+    } else if (sawOutputs) {
+      // leaf: counts[node.leafIndex]++
+      gen.loadLocal(countsLocal, INT_ARRAY_TYPE);
+      gen.push(node.leafIndex);
+      gen.dup2();
+      gen.arrayLoad(Type.INT_TYPE);
+      gen.push(1);
+      gen.visitInsn(Opcodes.IADD);
+      gen.arrayStore(Type.INT_TYPE);
+    }
+  }
+
+  /** Returns a {@link MultiValuedLongRangeCounter}, to
+   *  count documents with several values each at most once
+   *  per range. */
+  public MultiValuedLongRangeCounter getMultiValuedCounter() {
+    return new MultiValuedLongRangeCounter(new ArrayLongRangeMultiSet(getBinaryTree(), hardMin, false, getRangeMins()), ranges.length);
+  }
+
+  /** Returns a {@link MaskedLongRangeMultiSet}, matching
+   *  only the ranges active in mask (bit i&amp;63 of
+   *  mask[i&gt;&gt;&gt;6] is range i); call {@link
+   *  MaskedLongRangeMultiSet#withMask} to toggle ranges
+   *  without building again. */
+  public MaskedLongRangeMultiSet getMaskedMultiSet(long[] mask) {
+    return new MaskedLongRangeMultiSet(new ArrayLongRangeMultiSet(getBinaryTree(), hardMin, false, getRangeMins()), ranges.length, mask);
+  }
+
+  /** Returns a {@link LongRangeFilter}, to test values
+   *  against the union of all ranges, one at a time or in
+   *  bulk.
+   *
+   *  @param useAsm If true, {@link LongRangeFilter#accept}
+   *  is compiled from the tree, like {@link
+   *  LongRangeMultiSet#matchesAny}; else it binary searches
+   *  the pieces of the union. */
+  public LongRangeFilter getFilter(boolean useAsm) {
+    long[][] pieces = getUnionPieces();
+    if (useAsm) {
+      finish(false);
+      // Too large to compile; fall back to Java:
+      if (estimateMatchesAnyBytes(root) <= MAX_METHOD_BYTES) {
+        byte[] bytes = compileFilter(COMPILED_FILTER_CLASS, LONG_RANGE_FILTER_TYPE);
+        Class<? extends LongRangeFilter> filterClass = new Loader(LongRangeFilter.class.getClassLoader())
+          .define(COMPILED_FILTER_CLASS, bytes, LongRangeFilter.class);
+        try {
+          return filterClass.getConstructor(long[].class, long[].class).newInstance(pieces[0], pieces[1]);
+        } catch (InstantiationException | IllegalAccessException | NoSuchMethodException | InvocationTargetException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    }
+    return new SimpleLongRangeFilter(pieces[0], pieces[1]);
+  }
+
+  /** Returns the min and max (both inclusive) of each
+   *  disjoint piece of the union of all ranges, in order,
+   *  by merging adjacent elementary intervals that are
+   *  covered by some range. */
+  private long[][] getUnionPieces() {
+    int numLeaves = elementaryEnds.length;
+    // How many ranges start at each interval, minus how many
+    // ended at the one before:
+    int[] deltas = new int[numLeaves+1];
+    for(LongRange range : ranges) {
+      if (range.minIncl <= range.maxIncl) {
+        deltas[findElementary(range.minIncl)]++;
+        deltas[findElementary(range.maxIncl)+1]--;
+      }
+    }
+    long[] mins = new long[numLeaves];
+    long[] maxes = new long[numLeaves];
+    int numPieces = 0;
+    int covering = 0;
+    boolean inPiece = false;
+    for(int i=0;i<numLeaves;i++) {
+      covering += deltas[i];
+      if (covering > 0) {
+        if (inPiece == false) {
+          mins[numPieces++] = elementaryStart(i);
+          inPiece = true;
+        }
+        maxes[numPieces-1] = elementaryEnds[i];
+      } else {
+        inPiece = false;
+      }
+    }
+    return new long[][] {Arrays.copyOf(mins, numPieces), Arrays.copyOf(maxes, numPieces)};
+  }
+
+  /** Compiles a {@link LongRangeFilter} subclass whose
+   *  constructor takes the pieces of the union and whose
+   *  accept is {@link #buildMatchesAnyAsm} over the tree. */
+  private byte[] compileFilter(String className, Type superType) {
+    ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS);
+    classWriter.visit(Opcodes.V1_7,
+                      Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER | Opcodes.ACC_FINAL | Opcodes.ACC_SYNTHETIC,
+                      className.replace('.', '/'),
+                      null, superType.getInternalName(), null);
+
+    Method m = Method.getMethod("void <init> (long[], long[])");
+    GeneratorAdapter constructor = new GeneratorAdapter(Opcodes.ACC_PUBLIC | Opcodes.ACC_SYNTHETIC,
+                                                        m, null, null, classWriter);
+    constructor.loadThis();
+    constructor.loadArgs();
+    constructor.invokeConstructor(superType, m);
+    constructor.returnValue();
+    constructor.endMethod();
+
+    GeneratorAdapter gen = new GeneratorAdapter(Opcodes.ACC_PUBLIC | Opcodes.ACC_SYNTHETIC,
+                                                ACCEPT_METHOD, null, null, classWriter);
+    buildMatchesAnyAsm(gen, root, emitKey(gen, false));
+    gen.endMethod();
+    classWriter.visitEnd();
+
+    return classWriter.toByteArray();
   }
 
   static final class Loader extends ClassLoader {
@@ -911,6 +3174,10 @@ public final class Builder {
     public Class<? extends LongRangeMultiSet> define(String className, byte[] bytecode) {
       return defineClass(className, bytecode, 0, bytecode.length).asSubclass(LongRangeMultiSet.class);
     }
+
+    public <T> Class<? extends T> define(String className, byte[] bytecode, Class<T> type) {
+      return defineClass(className, bytecode, 0, bytecode.length).asSubclass(type);
+    }
   }
 
   static final class CounterLoader extends ClassLoader {
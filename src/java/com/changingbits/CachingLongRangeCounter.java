@@ -0,0 +1,204 @@
+package com.changingbits;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+
+/** Wraps a {@link LongRangeCounter} with a small direct
+ *  mapped cache from recently added values to their
+ *  elementary interval, for streams that repeat the same
+ *  values often.  A hit just increments that interval's
+ *  count; a miss binary searches the intervals and replaces
+ *  the slot.  The counts are rolled up to the ranges in
+ *  {@link #getCounts}, plus whatever the delegate counted.
+ *
+ *  <p> Like {@link CachingLongRangeMultiSet}, the cache is
+ *  bypassed for a while when its hit rate drops below
+ *  {@code minHitRate}; values are then added to the
+ *  delegate.  {@link #addAll} counts sorted values with a
+ *  single merge instead, like the other counters.
+ *
+ *  <p> See {@link Builder#getCachingCounter} for creating
+ *  an instance of this. */
+
+public final class CachingLongRangeCounter extends LongRangeCounter {
+
+  private final LongRangeCounter delegate;
+  private final Node root;
+  private final int numRanges;
+  private final long hardMin;
+
+  // Max (inclusive) of each elementary interval, and our
+  // count for each:
+  private final long[] elementaryEnds;
+  private final int[] elementaryCounts;
+
+  private final int minWindowHits;
+  private final int shift;
+
+  // Per slot: the cached value and its elementary interval,
+  // or -1 if the slot is empty:
+  private final long[] keys;
+  private final int[] leaves;
+
+  // Same windows as CachingLongRangeMultiSet:
+  private int countdown = CachingLongRangeMultiSet.WINDOW;
+  private int bypassWindows;
+  private int windowHits;
+
+  // Metrics:
+  private long hitCount;
+  private long missCount;
+  private long bypassCount;
+
+  CachingLongRangeCounter(LongRangeCounter delegate, Node root, long hardMin, long[] elementaryEnds, int numRanges,
+                          int cacheSize, double minHitRate) {
+    if (cacheSize < 1 || cacheSize > 1 << 24) {
+      throw new IllegalArgumentException("cacheSize must be 1 .. " + (1 << 24) + "; got " + cacheSize);
+    }
+    if (minHitRate < 0.0 || minHitRate > 1.0) {
+      throw new IllegalArgumentException("minHitRate must be 0.0 .. 1.0; got " + minHitRate);
+    }
+    this.delegate = delegate;
+    this.root = root;
+    this.hardMin = hardMin;
+    this.elementaryEnds = elementaryEnds;
+    this.numRanges = numRanges;
+    elementaryCounts = new int[elementaryEnds.length];
+    minWindowHits = (int) Math.ceil(minHitRate * CachingLongRangeMultiSet.WINDOW);
+    int size = cacheSize == 1 ? 1 : Integer.highestOneBit(cacheSize - 1) << 1;
+    shift = 64 - Integer.numberOfTrailingZeros(size);
+    keys = new long[size];
+    leaves = new int[size];
+    Arrays.fill(leaves, -1);
+  }
+
+  @Override
+  public void add(long v) {
+    if (--countdown == 0) {
+      nextWindow();
+    }
+    if (bypassWindows > 0) {
+      delegate.add(v);
+      return;
+    }
+
+    // See CachingLongRangeMultiSet.lookup:
+    int slot = (int) ((v * 0x9E3779B97F4A7C15L) >>> shift) & (keys.length-1);
+    int leaf = leaves[slot];
+    if (leaf != -1 && keys[slot] == v) {
+      hitCount++;
+      windowHits++;
+      elementaryCounts[leaf]++;
+      return;
+    }
+
+    missCount++;
+    if (v < hardMin || v > elementaryEnds[elementaryEnds.length-1]) {
+      // Let the delegate deal with it:
+      delegate.add(v);
+      return;
+    }
+    // Find the first elementary interval whose max is >= v:
+    int lo = 0;
+    int hi = elementaryEnds.length - 1;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (v <= elementaryEnds[mid]) {
+        hi = mid;
+      } else {
+        lo = mid + 1;
+      }
+    }
+    keys[slot] = v;
+    leaves[slot] = lo;
+    elementaryCounts[lo]++;
+  }
+
+  /** If the values are sorted, counts them with a single
+   *  merge against the elementary intervals, else adds them
+   *  one by one. */
+  @Override
+  public void addAll(long[] values, int off, int len) {
+    if (off < 0 || len < 0 || off > values.length - len) {
+      throw new IndexOutOfBoundsException("off=" + off + " len=" + len + " values.length=" + values.length);
+    }
+    int end = off + len;
+    if ((len > 0 && (values[off] < hardMin || values[end-1] > elementaryEnds[elementaryEnds.length-1])) ||
+        BaseLongRangeCounter.addSorted(elementaryEnds, values, off, end, elementaryCounts, 0) == false) {
+      super.addAll(values, off, len);
+    }
+  }
+
+  private void nextWindow() {
+    countdown = CachingLongRangeMultiSet.WINDOW;
+    if (bypassWindows > 0) {
+      bypassWindows--;
+    } else if (windowHits < minWindowHits) {
+      bypassWindows = CachingLongRangeMultiSet.BYPASS_WINDOWS;
+      bypassCount++;
+    }
+    windowHits = 0;
+  }
+
+  @Override
+  public int[] getCounts() {
+    int[] counts = delegate.getCounts().clone();
+    BaseLongRangeCounter.rollup(root, elementaryCounts, new int[1], counts);
+    return counts;
+  }
+
+  /** Adds our count per elementary interval to the
+   *  delegate's; the delegate's intervals are ours, or
+   *  coarser for the point engine. */
+  @Override
+  public PrefixCounts getPrefixCounts() {
+    return delegate.getPrefixCounts().plus(new PrefixCounts(hardMin, elementaryEnds, elementaryCounts, 0, null));
+  }
+
+  /** Returns how many values were counted from the
+   *  cache. */
+  public long getHitCount() {
+    return hitCount;
+  }
+
+  /** Returns how many values went through the cache but
+   *  missed. */
+  public long getMissCount() {
+    return missCount;
+  }
+
+  /** Returns the fraction of values through the cache that
+   *  hit, or 0.0 if there were none yet; bypassed values
+   *  are not included. */
+  public double getHitRate() {
+    long total = hitCount + missCount;
+    return total == 0 ? 0.0 : (double) hitCount / total;
+  }
+
+  /** Returns how many times the cache turned itself off
+   *  because of a low hit rate. */
+  public long getBypassCount() {
+    return bypassCount;
+  }
+
+  /** Returns true if values currently bypass the cache. */
+  public boolean isBypassed() {
+    return bypassWindows > 0;
+  }
+}
@@ -0,0 +1,206 @@
+package com.changingbits;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+
+/** Wraps any {@link LongRangeMultiSet} with a small direct
+ *  mapped cache from recently looked up values to their
+ *  matched ranges, for streams that repeat the same values
+ *  often (e.g. a few thousand hot IDs, or equal timestamps
+ *  within a batch).  A hit copies the cached matches,
+ *  without walking the tree; a miss looks up the delegate
+ *  and replaces the slot, unless the value matches more
+ *  than {@code maxCachedMatches} ranges.  All cache memory
+ *  is allocated up front.
+ *
+ *  <p> The hit rate is checked every {@link #WINDOW}
+ *  lookups; if it is below {@code minHitRate}, the cache is
+ *  bypassed (lookups go straight to the delegate) for the
+ *  next {@link #BYPASS_WINDOWS} windows, and then tried
+ *  again.  So values that don't repeat only pay a counter
+ *  decrement per lookup.
+ *
+ *  <p> This is not thread safe: use one instance per
+ *  thread, wrapping the same delegate. */
+
+public final class CachingLongRangeMultiSet extends LongRangeMultiSet {
+
+  /** Default number of cache slots. */
+  public static final int DEFAULT_CACHE_SIZE = 4096;
+
+  /** Default for the most matches a cached value may
+   *  have. */
+  public static final int DEFAULT_MAX_CACHED_MATCHES = 8;
+
+  /** Default hit rate below which the cache is
+   *  bypassed. */
+  public static final double DEFAULT_MIN_HIT_RATE = 0.25;
+
+  /** Number of lookups between checks of the hit
+   *  rate. */
+  public static final int WINDOW = 4096;
+
+  /** Number of windows the cache stays bypassed after a
+   *  low hit rate. */
+  public static final int BYPASS_WINDOWS = 16;
+
+  private final LongRangeMultiSet delegate;
+  private final int maxCachedMatches;
+  private final int minWindowHits;
+  private final int shift;
+
+  // Per slot: the cached value, and how many matches it
+  // has, or -1 if the slot is empty:
+  private final long[] keys;
+  private final int[] counts;
+
+  // Matches of slot i start at i*maxCachedMatches:
+  private final int[] matches;
+
+  // Lookups left in the current window, and how many
+  // windows left to bypass the cache:
+  private int countdown = WINDOW;
+  private int bypassWindows;
+  private int windowHits;
+
+  // Metrics:
+  private long hitCount;
+  private long missCount;
+  private long bypassCount;
+
+  /** Creates a cache with at least {@code cacheSize} slots
+   *  (rounded up to a power of 2). */
+  public CachingLongRangeMultiSet(LongRangeMultiSet delegate, int cacheSize, int maxCachedMatches, double minHitRate) {
+    if (cacheSize < 1 || cacheSize > 1 << 24) {
+      throw new IllegalArgumentException("cacheSize must be 1 .. " + (1 << 24) + "; got " + cacheSize);
+    }
+    if (maxCachedMatches < 1) {
+      throw new IllegalArgumentException("maxCachedMatches must be >= 1; got " + maxCachedMatches);
+    }
+    if (minHitRate < 0.0 || minHitRate > 1.0) {
+      throw new IllegalArgumentException("minHitRate must be 0.0 .. 1.0; got " + minHitRate);
+    }
+    this.delegate = delegate;
+    this.maxCachedMatches = maxCachedMatches;
+    minWindowHits = (int) Math.ceil(minHitRate * WINDOW);
+    int size = cacheSize == 1 ? 1 : Integer.highestOneBit(cacheSize - 1) << 1;
+    shift = 64 - Integer.numberOfTrailingZeros(size);
+    keys = new long[size];
+    counts = new int[size];
+    Arrays.fill(counts, -1);
+    matches = new int[size * maxCachedMatches];
+  }
+
+  /** Creates a cache with the default settings. */
+  public CachingLongRangeMultiSet(LongRangeMultiSet delegate) {
+    this(delegate, DEFAULT_CACHE_SIZE, DEFAULT_MAX_CACHED_MATCHES, DEFAULT_MIN_HIT_RATE);
+  }
+
+  @Override
+  public int lookup(long v, int[] answers) {
+    if (--countdown == 0) {
+      nextWindow();
+    }
+    if (bypassWindows > 0) {
+      return delegate.lookup(v, answers);
+    }
+
+    // Fibonacci hash; the top bits are the best mixed.
+    // When there is only one slot the shift is 64, i.e. 0
+    // in java, so mask it away:
+    int slot = (int) ((v * 0x9E3779B97F4A7C15L) >>> shift) & (keys.length-1);
+    int count = counts[slot];
+    if (count != -1 && keys[slot] == v) {
+      hitCount++;
+      windowHits++;
+      System.arraycopy(matches, slot * maxCachedMatches, answers, 0, count);
+      return count;
+    }
+
+    missCount++;
+    count = delegate.lookup(v, answers);
+    if (count <= maxCachedMatches) {
+      keys[slot] = v;
+      counts[slot] = count;
+      System.arraycopy(answers, 0, matches, slot * maxCachedMatches, count);
+    }
+    return count;
+  }
+
+  /** Not cached: goes straight to the delegate. */
+  @Override
+  public int lookupOverlapping(long a, long b, int[] answers) {
+    return delegate.lookupOverlapping(a, b, answers);
+  }
+
+  /** Not cached: goes straight to the delegate. */
+  @Override
+  public int firstMatch(long v) {
+    return delegate.firstMatch(v);
+  }
+
+  /** Not cached: goes straight to the delegate. */
+  @Override
+  public boolean matchesAny(long v) {
+    return delegate.matchesAny(v);
+  }
+
+  private void nextWindow() {
+    countdown = WINDOW;
+    if (bypassWindows > 0) {
+      bypassWindows--;
+    } else if (windowHits < minWindowHits) {
+      bypassWindows = BYPASS_WINDOWS;
+      bypassCount++;
+    }
+    windowHits = 0;
+  }
+
+  /** Returns how many lookups were answered from the
+   *  cache. */
+  public long getHitCount() {
+    return hitCount;
+  }
+
+  /** Returns how many lookups went through the cache but
+   *  missed. */
+  public long getMissCount() {
+    return missCount;
+  }
+
+  /** Returns the fraction of lookups through the cache
+   *  that hit, or 0.0 if there were none yet; bypassed
+   *  lookups are not included. */
+  public double getHitRate() {
+    long total = hitCount + missCount;
+    return total == 0 ? 0.0 : (double) hitCount / total;
+  }
+
+  /** Returns how many times the cache turned itself off
+   *  because of a low hit rate. */
+  public long getBypassCount() {
+    return bypassCount;
+  }
+
+  /** Returns true if lookups currently bypass the
+   *  cache. */
+  public boolean isBypassed() {
+    return bypassWindows > 0;
+  }
+}
@@ -0,0 +1,109 @@
+package com.changingbits;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/** Represents a range over double values.  The builder
+ *  matches doubles by their sortable long key (see {@link
+ *  #toSortableLong}), so values must be encoded the same
+ *  way before lookup, e.g.:
+ *
+ *  <pre>
+ *    Builder b = new Builder(doubleRanges);
+ *    LongRangeMultiSet set = b.getMultiSet(Builder.Engine.AUTO);
+ *    int count = set.lookup(DoubleRange.toSortableLong(v), answers);
+ *  </pre>
+ *
+ *  <p> -0.0 is the same as 0.0, NaN matches no range, and
+ *  NaN bounds are not allowed. */
+public final class DoubleRange extends Range {
+  // Sortable keys of the range, inclusive:
+  final long minIncl;
+  final long maxIncl;
+
+  public final double min;
+  public final double max;
+  public final boolean minInclusive;
+  public final boolean maxInclusive;
+
+  /** Create a DoubleRange. */
+  public DoubleRange(String label, double min, boolean minInclusive, double max, boolean maxInclusive) {
+    super(label);
+    if (Double.isNaN(min) || Double.isNaN(max)) {
+      throw new IllegalArgumentException("min and max must not be NaN; got min=" + min + " max=" + max);
+    }
+    this.min = min;
+    this.max = max;
+    this.minInclusive = minInclusive;
+    this.maxInclusive = maxInclusive;
+
+    // Moving by one key moves to the next double; past
+    // +/-Infinity this lands on keys that no value maps
+    // to, so the range is just empty:
+    long minKey = toSortableLong(min);
+    if (!minInclusive) {
+      minKey++;
+    }
+
+    long maxKey = toSortableLong(max);
+    if (!maxInclusive) {
+      maxKey--;
+    }
+
+    this.minIncl = minKey;
+    this.maxIncl = maxKey;
+  }
+
+  public boolean accept(double value) {
+    long key = toSortableLong(value);
+    return key >= minIncl && key <= maxIncl;
+  }
+
+  /** Returns the equivalent {@link LongRange} over the
+   *  sortable keys. */
+  LongRange toLongRange() {
+    return new LongRange(label, minIncl, true, maxIncl, true);
+  }
+
+  /** Maps a double to a long with the same order: negative
+   *  doubles have their bits, except the sign, flipped.
+   *  -0.0 maps to the same key as 0.0, and NaN (any NaN)
+   *  maps to a key above +Infinity or below -Infinity. */
+  public static long toSortableLong(double v) {
+    // Adding 0.0 turns -0.0 into 0.0:
+    long bits = Double.doubleToRawLongBits(v + 0.0);
+    return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+  }
+
+  /** Like {@link #toSortableLong}, for values[off] to
+   *  values[off+len-1], into dest starting at destOff.  The
+   *  loop has no branches, so the JIT can vectorize it. */
+  public static void toSortableLongs(double[] values, int off, int len, long[] dest, int destOff) {
+    if (off < 0 || len < 0 || off > values.length - len || destOff < 0 || destOff > dest.length - len) {
+      throw new IndexOutOfBoundsException("off=" + off + " len=" + len + " values.length=" + values.length + " destOff=" + destOff + " dest.length=" + dest.length);
+    }
+    for(int i=0;i<len;i++) {
+      long bits = Double.doubleToRawLongBits(values[off+i] + 0.0);
+      dest[destOff+i] = bits ^ ((bits >> 63) & Long.MAX_VALUE);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "DoubleRange(" + (minInclusive ? "[" : "(") + min + " to " + max + (maxInclusive ? "]" : ")") + ")";
+  }
+}
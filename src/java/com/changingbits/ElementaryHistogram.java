@@ -0,0 +1,289 @@
+package com.changingbits;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/** Counts "training data" values per elementary interval
+ *  of a {@link Builder}.  Each thread can fill its own
+ *  histogram (see {@link Builder#newHistogram}), and then
+ *  they are merged into the builder with {@link
+ *  Builder#recordAll(ElementaryHistogram)}.
+ *
+ *  <p> To cap the training cost, only one in every {@code
+ *  sampleInterval} values is counted; since only the
+ *  relative counts shape the tree, this usually makes no
+ *  difference as long as the values are not periodic.
+ *
+ *  <p> A histogram can be saved with {@link #write} and
+ *  loaded into a later builder with {@link #read}, even if
+ *  its ranges changed since.
+ *
+ *  <p> This is not thread safe. */
+
+public final class ElementaryHistogram {
+
+  // Identifies the format written by write():
+  private static final int MAGIC = 0x48495354;
+  private static final int VERSION = 1;
+
+  private final long hardMin;
+
+  // Max value (inclusive) of each elementary interval:
+  private final long[] ends;
+  private final long[] counts;
+  private final int sampleInterval;
+
+  // How many more values until we count one:
+  private int countdown;
+
+  // Interval of the last counted value:
+  private int lastIndex;
+
+  ElementaryHistogram(long hardMin, long[] ends, long[] counts, int sampleInterval) {
+    if (sampleInterval < 1) {
+      throw new IllegalArgumentException("sampleInterval must be >= 1; got " + sampleInterval);
+    }
+    this.hardMin = hardMin;
+    this.ends = ends;
+    this.counts = counts;
+    this.sampleInterval = sampleInterval;
+    countdown = sampleInterval;
+  }
+
+  /** Returns the sample interval. */
+  public int getSampleInterval() {
+    return sampleInterval;
+  }
+
+  /** Records one value; this throws {@code
+   *  IllegalArgumentException} if a counted value is
+   *  outside of the builder's hardMin/hardMax. */
+  public void record(long v) {
+    if (--countdown == 0) {
+      countdown = sampleInterval;
+      count(v);
+    }
+  }
+
+  /** Records values[off] to values[off+len-1]; this is
+   *  the same as calling {@link #record} for each, but
+   *  faster. */
+  public void recordAll(long[] values, int off, int len) {
+    if (off < 0 || len < 0 || off > values.length - len) {
+      throw new IndexOutOfBoundsException("off=" + off + " len=" + len + " values.length=" + values.length);
+    }
+    int end = off + len;
+    int last = lastIndex;
+    int i = off + countdown - 1;
+    // Only visit the sampled values:
+    for(;i<end;i+=sampleInterval) {
+      long v = values[i];
+      if (v < hardMin || v > ends[ends.length-1]) {
+        throw new IllegalArgumentException("value " + v + " is outside hardMin/hardMax");
+      }
+      // Values are often close to the one before, so check
+      // that interval first:
+      if (v > ends[last] || (last > 0 && v <= ends[last-1])) {
+        last = find(v);
+      }
+      counts[last]++;
+    }
+    lastIndex = last;
+    countdown = i - end + 1;
+  }
+
+  /** Adds all counts from the other histogram, which must
+   *  come from the same builder, into this one. */
+  public void merge(ElementaryHistogram other) {
+    if (other.ends != ends) {
+      throw new IllegalArgumentException("histogram is from a different Builder");
+    }
+    for(int i=0;i<counts.length;i++) {
+      counts[i] += other.counts[i];
+    }
+  }
+
+  /** Returns how many values were counted (not including
+   *  those skipped by sampling). */
+  public long getCount() {
+    long total = 0;
+    for(long count : counts) {
+      total += count;
+    }
+    return total;
+  }
+
+  /** Saves the counts and the intervals they belong to in
+   *  a compact binary format: the first interval's start,
+   *  then for each interval the delta from its start to its
+   *  end, and its count, as variable length longs. */
+  public void write(DataOutput out) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeByte(VERSION);
+    out.writeLong(hardMin);
+    writeVLong(out, ends.length);
+    long start = hardMin;
+    for(int i=0;i<ends.length;i++) {
+      // Unsigned, since it may not fit in a signed long:
+      writeVLong(out, ends[i] - start);
+      writeVLong(out, counts[i]);
+      start = ends[i]+1;
+    }
+  }
+
+  /** Adds the counts previously saved with {@link #write}.
+   *  If the elementary intervals are different now (because
+   *  the ranges changed), each saved count is spread over
+   *  the current intervals in proportion to how much of the
+   *  saved interval each one overlaps; counts outside of
+   *  hardMin/hardMax are dropped.  The sample interval does
+   *  not apply here. */
+  public void read(DataInput in) throws IOException {
+    if (in.readInt() != MAGIC) {
+      throw new IOException("not a histogram");
+    }
+    int version = in.readByte();
+    if (version != VERSION) {
+      throw new IOException("unsupported histogram version " + version);
+    }
+    long savedMin = in.readLong();
+    long count = readVLong(in);
+    if (count < 1 || count > Integer.MAX_VALUE) {
+      throw new IOException("invalid interval count " + count);
+    }
+    int numSaved = (int) count;
+    long[] savedEnds = new long[numSaved];
+    long[] savedCounts = new long[numSaved];
+    long start = savedMin;
+    for(int i=0;i<numSaved;i++) {
+      savedEnds[i] = start + readVLong(in);
+      savedCounts[i] = readVLong(in);
+      if (savedCounts[i] < 0 || (i > 0 && Long.compareUnsigned(savedEnds[i] - savedMin, savedEnds[i-1] - savedMin) <= 0)) {
+        throw new IOException("corrupt histogram at interval " + i);
+      }
+      start = savedEnds[i]+1;
+    }
+
+    if (savedMin == hardMin && Arrays.equals(savedEnds, ends)) {
+      // Same intervals:
+      for(int i=0;i<ends.length;i++) {
+        counts[i] += savedCounts[i];
+      }
+    } else {
+      remap(savedMin, savedEnds, savedCounts);
+    }
+  }
+
+  private void remap(long savedMin, long[] savedEnds, long[] savedCounts) {
+    // Walk both sets of intervals together:
+    int i = 0;
+    int j = 0;
+    long start = hardMin;
+    long savedStart = savedMin;
+    // Count assigned so far from the current saved
+    // interval, and how much of it was overlapped:
+    long assigned = 0;
+    double overlapped = 0;
+    while (i < ends.length && j < savedEnds.length) {
+      long lo = Math.max(start, savedStart);
+      long hi = Math.min(ends[i], savedEnds[j]);
+      if (lo <= hi) {
+        overlapped += width(lo, hi);
+        // Round the running total, so the parts add up to
+        // the saved count:
+        long total = Math.round(savedCounts[j] * Math.min(1.0, overlapped / width(savedStart, savedEnds[j])));
+        counts[i] += total - assigned;
+        assigned = total;
+      }
+      if (ends[i] < savedEnds[j]) {
+        start = ends[i]+1;
+        i++;
+      } else {
+        if (ends[i] == savedEnds[j]) {
+          start = ends[i]+1;
+          i++;
+        }
+        savedStart = savedEnds[j]+1;
+        j++;
+        assigned = 0;
+        overlapped = 0;
+      }
+    }
+  }
+
+  /** Number of values from lo to hi inclusive. */
+  private static double width(long lo, long hi) {
+    long delta = hi - lo;
+    // Unsigned:
+    double width = delta >= 0 ? delta : delta + 0x1p64;
+    return width + 1;
+  }
+
+  private static void writeVLong(DataOutput out, long v) throws IOException {
+    while ((v & ~0x7FL) != 0) {
+      out.writeByte((int) ((v & 0x7F) | 0x80));
+      v >>>= 7;
+    }
+    out.writeByte((int) v);
+  }
+
+  private static long readVLong(DataInput in) throws IOException {
+    long v = 0;
+    for(int shift=0;shift<64;shift+=7) {
+      byte b = in.readByte();
+      v |= (b & 0x7FL) << shift;
+      if (b >= 0) {
+        return v;
+      }
+    }
+    throw new IOException("invalid vLong");
+  }
+
+  /** Returns the count per elementary interval; do not
+   *  modify the returned array. */
+  long[] getCounts() {
+    return counts;
+  }
+
+  private void count(long v) {
+    if (v < hardMin || v > ends[ends.length-1]) {
+      throw new IllegalArgumentException("value " + v + " is outside hardMin/hardMax");
+    }
+    lastIndex = find(v);
+    counts[lastIndex]++;
+  }
+
+  private int find(long v) {
+    // Find the first elementary interval whose max is >= v:
+    int lo = 0;
+    int hi = ends.length - 1;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (v <= ends[mid]) {
+        hi = mid;
+      } else {
+        lo = mid + 1;
+      }
+    }
+    return lo;
+  }
+}
@@ -0,0 +1,43 @@
+package com.changingbits;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/** Base class for the asm LongRangeCounter impl that
+ *  counts each leaf in its own int field (see {@link
+ *  Builder#getCounter2}). */
+public abstract class FieldsLongRangeCounter extends LongRangeCounter {
+  private final long hardMin;
+  private final long[] leafEnds;
+  private final boolean[] tracked;
+
+  protected FieldsLongRangeCounter(long hardMin, long[] leafEnds, boolean[] tracked) {
+    this.hardMin = hardMin;
+    this.leafEnds = leafEnds;
+    this.tracked = tracked;
+  }
+
+  /** Copies the count of each leaf into counts. */
+  protected abstract void copyCounts(int[] counts);
+
+  @Override
+  public PrefixCounts getPrefixCounts() {
+    int[] counts = new int[leafEnds.length];
+    copyCounts(counts);
+    return new PrefixCounts(hardMin, leafEnds, counts, 0, tracked);
+  }
+}
@@ -0,0 +1,109 @@
+package com.changingbits;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/** Represents a range over float values.  The builder
+ *  matches floats by their sortable int key (see {@link
+ *  #toSortableInt}), so values must be encoded the same
+ *  way before lookup, e.g.:
+ *
+ *  <pre>
+ *    Builder b = new Builder(floatRanges);
+ *    IntRangeMultiSet set = b.getIntMultiSet(Builder.Engine.AUTO);
+ *    int count = set.lookup(FloatRange.toSortableInt(v), answers);
+ *  </pre>
+ *
+ *  <p> -0.0f is the same as 0.0f, NaN matches no range, and
+ *  NaN bounds are not allowed. */
+public final class FloatRange extends Range {
+  // Sortable keys of the range, inclusive:
+  final int minIncl;
+  final int maxIncl;
+
+  public final float min;
+  public final float max;
+  public final boolean minInclusive;
+  public final boolean maxInclusive;
+
+  /** Create a FloatRange. */
+  public FloatRange(String label, float min, boolean minInclusive, float max, boolean maxInclusive) {
+    super(label);
+    if (Float.isNaN(min) || Float.isNaN(max)) {
+      throw new IllegalArgumentException("min and max must not be NaN; got min=" + min + " max=" + max);
+    }
+    this.min = min;
+    this.max = max;
+    this.minInclusive = minInclusive;
+    this.maxInclusive = maxInclusive;
+
+    // Moving by one key moves to the next float; past
+    // +/-Infinity this lands on keys that no value maps
+    // to, so the range is just empty:
+    int minKey = toSortableInt(min);
+    if (!minInclusive) {
+      minKey++;
+    }
+
+    int maxKey = toSortableInt(max);
+    if (!maxInclusive) {
+      maxKey--;
+    }
+
+    this.minIncl = minKey;
+    this.maxIncl = maxKey;
+  }
+
+  public boolean accept(float value) {
+    int key = toSortableInt(value);
+    return key >= minIncl && key <= maxIncl;
+  }
+
+  /** Returns the equivalent {@link LongRange} over the
+   *  sortable keys. */
+  LongRange toLongRange() {
+    return new LongRange(label, minIncl, true, maxIncl, true);
+  }
+
+  /** Maps a float to an int with the same order: negative
+   *  floats have their bits, except the sign, flipped.
+   *  -0.0f maps to the same key as 0.0f, and NaN (any NaN)
+   *  maps to a key above +Infinity or below -Infinity. */
+  public static int toSortableInt(float v) {
+    // Adding 0.0f turns -0.0f into 0.0f:
+    int bits = Float.floatToRawIntBits(v + 0.0f);
+    return bits ^ ((bits >> 31) & Integer.MAX_VALUE);
+  }
+
+  /** Like {@link #toSortableInt}, for values[off] to
+   *  values[off+len-1], into dest starting at destOff.  The
+   *  loop has no branches, so the JIT can vectorize it. */
+  public static void toSortableInts(float[] values, int off, int len, int[] dest, int destOff) {
+    if (off < 0 || len < 0 || off > values.length - len || destOff < 0 || destOff > dest.length - len) {
+      throw new IndexOutOfBoundsException("off=" + off + " len=" + len + " values.length=" + values.length + " destOff=" + destOff + " dest.length=" + dest.length);
+    }
+    for(int i=0;i<len;i++) {
+      int bits = Float.floatToRawIntBits(values[off+i] + 0.0f);
+      dest[destOff+i] = bits ^ ((bits >> 31) & Integer.MAX_VALUE);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "FloatRange(" + (minInclusive ? "[" : "(") + min + " to " + max + (maxInclusive ? "]" : ")") + ")";
+  }
+}
@@ -0,0 +1,77 @@
+package com.changingbits;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/** Counts several range facets, each over its own column of
+ *  the same rows, in a single loop over the rows: {@link
+ *  #addAll} adds columns[f][i] to facet f for each row i.
+ *  Sharing the loop saves its overhead, and touches each
+ *  row's values together.
+ *
+ *  <p> See {@link Builder#getFusedCounter} for creating an
+ *  instance of this. */
+public abstract class FusedLongRangeCounter {
+
+  private final Node[] roots;
+  private final int[] numRanges;
+
+  /** Count per elementary interval, per facet. */
+  protected final int[][] elementaryCounts;
+
+  protected FusedLongRangeCounter(Node[] roots, int[] numLeaves, int[] numRanges) {
+    this.roots = roots;
+    this.numRanges = numRanges;
+    elementaryCounts = new int[roots.length][];
+    for(int facet=0;facet<roots.length;facet++) {
+      elementaryCounts[facet] = new int[numLeaves[facet]];
+    }
+  }
+
+  /** Returns how many facets this counts. */
+  public int getFacetCount() {
+    return roots.length;
+  }
+
+  /** Adds rows off to off+len-1: for each facet f, this is
+   *  the same as adding columns[f][off] to
+   *  columns[f][off+len-1] to that facet's {@link
+   *  LongRangeCounter}. */
+  public void addAll(long[][] columns, int off, int len) {
+    if (columns.length != roots.length) {
+      throw new IllegalArgumentException("columns.length=" + columns.length + " but there are " + roots.length + " facets");
+    }
+    for(long[] values : columns) {
+      if (off < 0 || len < 0 || off > values.length - len) {
+        throw new IndexOutOfBoundsException("off=" + off + " len=" + len + " values.length=" + values.length);
+      }
+    }
+    addRows(columns, off, off+len);
+  }
+
+  /** Adds rows start to end-1; the columns are already
+   *  checked. */
+  protected abstract void addRows(long[][] columns, int start, int end);
+
+  /** Retrieve the counts of one facet; call this after
+   *  adding all rows. */
+  public int[] getCounts(int facet) {
+    int[] counts = new int[numRanges[facet]];
+    BaseLongRangeCounter.rollup(roots[facet], elementaryCounts[facet], new int[1], counts);
+    return counts;
+  }
+}
@@ -0,0 +1,108 @@
+package com.changingbits;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/** Base class for the asm hybrid impl: the most frequently
+ *  visited nodes at the top of the tree are compiled to
+ *  bytecode, which then calls {@link #lookupSubtree} to
+ *  finish the lookup in the colder subtrees below, which
+ *  are stored in flat arrays.
+ *
+ *  <p> See {@link Builder#getHybridMultiSet} for creating an
+ *  instance of this. */
+public abstract class HybridLongRangeMultiSet extends LongRangeMultiSet {
+
+  // Per subtree node: the max value (inclusive) of its
+  // left child, or its narrow key (see
+  // Builder.narrowKey); only one of these is set:
+  private final long[] splits;
+  private final int[] narrowSplits;
+
+  // Per subtree node: the index of its left child (the right
+  // child is next to it), or 0 if there is nothing more to
+  // match below it:
+  private final int[] children;
+
+  // Slice into rangeIndices for each subtree node's
+  // outputs, from outputStarts[node] to
+  // outputStarts[node+1]:
+  private final int[] outputStarts;
+  private final int[] rangeIndices;
+
+  // Walks the whole tree for lookupOverlapping, and for
+  // firstMatch if that is too large to compile:
+  private final LongRangeMultiSet fallback;
+
+  protected HybridLongRangeMultiSet(long[] splits, int[] narrowSplits, int[] children, int[] outputStarts, int[] rangeIndices,
+                                    LongRangeMultiSet fallback) {
+    this.fallback = fallback;
+    this.splits = splits;
+    this.narrowSplits = narrowSplits;
+    this.children = children;
+    this.outputStarts = outputStarts;
+    this.rangeIndices = rangeIndices;
+  }
+
+  @Override
+  public abstract int lookup(long v, int[] answers);
+
+  @Override
+  public int lookupOverlapping(long a, long b, int[] answers) {
+    return fallback.lookupOverlapping(a, b, answers);
+  }
+
+  /** The compiled subclass overrides this unless it is too
+   *  large. */
+  @Override
+  public int firstMatch(long v) {
+    return fallback.firstMatch(v);
+  }
+
+  /** Adds the outputs matching v in the subtree starting at
+   *  node to answers, starting at upto, and returns the new
+   *  upto. */
+  protected final int lookupSubtree(int node, long v, int[] answers, int upto) {
+    while (true) {
+      int limit = outputStarts[node+1];
+      for(int i=outputStarts[node];i<limit;i++) {
+        answers[upto++] = rangeIndices[i];
+      }
+      int left = children[node];
+      if (left == 0) {
+        return upto;
+      }
+      node = v <= splits[node] ? left : left+1;
+    }
+  }
+
+  /** Like {@link #lookupSubtree}, for the narrow key of the
+   *  value. */
+  protected final int lookupSubtreeNarrow(int node, int key, int[] answers, int upto) {
+    while (true) {
+      int limit = outputStarts[node+1];
+      for(int i=outputStarts[node];i<limit;i++) {
+        answers[upto++] = rangeIndices[i];
+      }
+      int left = children[node];
+      if (left == 0) {
+        return upto;
+      }
+      node = key <= narrowSplits[node] ? left : left+1;
+    }
+  }
+}
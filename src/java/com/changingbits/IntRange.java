@@ -0,0 +1,63 @@
+package com.changingbits;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/** Represents a range over int values. */
+public final class IntRange extends Range {
+  final int minIncl;
+  final int maxIncl;
+
+  public final int min;
+  public final int max;
+  public final boolean minInclusive;
+  public final boolean maxInclusive;
+
+  /** Create an IntRange. */
+  public IntRange(String label, int min, boolean minInclusive, int max, boolean maxInclusive) {
+    super(label);
+    this.min = min;
+    this.max = max;
+    this.minInclusive = minInclusive;
+    this.maxInclusive = maxInclusive;
+
+    if (!minInclusive && min != Integer.MAX_VALUE) {
+      min++;
+    }
+
+    if (!maxInclusive && max != Integer.MIN_VALUE) {
+      max--;
+    }
+
+    this.minIncl = min;
+    this.maxIncl = max;
+  }
+
+  public boolean accept(int value) {
+    return value >= minIncl && value <= maxIncl;
+  }
+
+  /** Returns the equivalent {@link LongRange}. */
+  LongRange toLongRange() {
+    return new LongRange(label, minIncl, true, maxIncl, true);
+  }
+
+  @Override
+  public String toString() {
+    return "IntRange(" + minIncl + " to " + maxIncl + ")";
+  }
+}
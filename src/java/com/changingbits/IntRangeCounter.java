@@ -0,0 +1,44 @@
+package com.changingbits;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/** Like {@link LongRangeCounter}, but for int values.
+ *
+ *  <p> See {@link Builder#getIntCounter} for creating an
+ *  instance of this. */
+
+public abstract class IntRangeCounter {
+  /** Add another value, incrementing the count by 1 for
+   *  each range this value falls under. */
+  public abstract void add(int v);
+
+  /** Adds values[off] to values[off+len-1]; this is the
+   *  same as calling {@link #add} for each. */
+  public void addAll(int[] values, int off, int len) {
+    if (off < 0 || len < 0 || off > values.length - len) {
+      throw new IndexOutOfBoundsException("off=" + off + " len=" + len + " values.length=" + values.length);
+    }
+    int end = off + len;
+    for(int i=off;i<end;i++) {
+      add(values[i]);
+    }
+  }
+
+  /** Retrieve counts; call this after adding all values. */
+  public abstract int[] getCounts();
+}
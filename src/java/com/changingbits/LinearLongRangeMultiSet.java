@@ -37,4 +37,26 @@ class LinearLongRangeMultiSet extends LongRangeMultiSet {
     }
     return upto;
   }
+
+  @Override
+  public int firstMatch(long v) {
+    for(int i=0;i<ranges.length;i++) {
+      if (ranges[i].accept(v)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  @Override
+  public int lookupOverlapping(long a, long b, int[] matchedRanges) {
+    int upto = 0;
+    for(int i=0;i<ranges.length;i++) {
+      LongRange range = ranges[i];
+      if (range.minIncl <= b && range.maxIncl >= a && range.minIncl <= range.maxIncl) {
+        matchedRanges[upto++] = i;
+      }
+    }
+    return upto;
+  }
 }
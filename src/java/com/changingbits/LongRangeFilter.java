@@ -0,0 +1,130 @@
+package com.changingbits;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/** Tests values against the union of all ranges, i.e.
+ *  whether each value matches any range, in bulk with
+ *  {@link #filter}.  The union is computed once, as a few
+ *  disjoint pieces; if there are at most {@link
+ *  #BRANCHLESS_MAX_PIECES} of them, {@link #filter} checks
+ *  each value against all pieces with plain arithmetic
+ *  (no branches to mispredict), else it calls {@link
+ *  #accept} per value.
+ *
+ *  <p> See {@link Builder#getFilter} for creating an
+ *  instance of this. */
+public abstract class LongRangeFilter {
+
+  /** Largest number of union pieces checked without
+   *  branches. */
+  public static final int BRANCHLESS_MAX_PIECES = 8;
+
+  // Min (inclusive) of each disjoint piece of the union, in
+  // order, and its max minus its min:
+  private final long[] pieceMins;
+  private final long[] pieceWidths;
+
+  protected LongRangeFilter(long[] pieceMins, long[] pieceMaxes) {
+    assert pieceMins.length == pieceMaxes.length;
+    this.pieceMins = pieceMins;
+    pieceWidths = new long[pieceMins.length];
+    for(int i=0;i<pieceMins.length;i++) {
+      pieceWidths[i] = pieceMaxes[i] - pieceMins[i];
+    }
+  }
+
+  /** Returns true if v matches any range. */
+  public abstract boolean accept(long v);
+
+  /** Returns how many disjoint pieces the union of the
+   *  ranges has. */
+  public int getPieceCount() {
+    return pieceMins.length;
+  }
+
+  /** Sets bit j (bit j&amp;63 of outBits[j&gt;&gt;&gt;6]) if
+   *  values[off+j] matches any range, and clears it
+   *  otherwise, for j from 0 to len-1; the bits past len in
+   *  the last word are cleared too.  Returns how many values
+   *  matched. */
+  public int filter(long[] values, int off, int len, long[] outBits) {
+    if (off < 0 || len < 0 || off > values.length - len) {
+      throw new IndexOutOfBoundsException("off=" + off + " len=" + len + " values.length=" + values.length);
+    }
+    int numWords = (len + 63) >>> 6;
+    if (outBits.length < numWords) {
+      throw new IllegalArgumentException("outBits.length=" + outBits.length + " is too small for len=" + len);
+    }
+    boolean branchless = pieceMins.length <= BRANCHLESS_MAX_PIECES;
+    int end = off + len;
+    int count = 0;
+    for(int word=0;word<numWords;word++) {
+      int start = off + (word << 6);
+      int limit = Math.min(start + 64, end);
+      long bits = 0;
+      if (branchless) {
+        for(int i=start;i<limit;i++) {
+          bits |= matchBit(values[i]) << (i - start);
+        }
+      } else {
+        for(int i=start;i<limit;i++) {
+          if (accept(values[i])) {
+            bits |= 1L << (i - start);
+          }
+        }
+      }
+      outBits[word] = bits;
+      count += Long.bitCount(bits);
+    }
+    return count;
+  }
+
+  /** Returns 1 if v is in some piece, else 0, without
+   *  branching. */
+  private long matchBit(long v) {
+    long hit = 0;
+    for(int i=0;i<pieceMins.length;i++) {
+      // v is in the piece iff x <= w, unsigned, i.e. iff
+      // w - x does not borrow:
+      long x = v - pieceMins[i];
+      long w = pieceWidths[i];
+      long borrow = ((~w & x) | (~(w ^ x) & (w - x))) >>> 63;
+      hit |= borrow ^ 1;
+    }
+    return hit;
+  }
+
+  /** Returns true if v is in some piece, searching the
+   *  pieces with a binary search. */
+  final boolean acceptPieces(long v) {
+    // Find the last piece whose min is <= v:
+    int lo = 0;
+    int hi = pieceMins.length - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      if (pieceMins[mid] <= v) {
+        lo = mid + 1;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    // Unsigned, since the piece may be wider than
+    // Long.MAX_VALUE:
+    return hi >= 0 && Long.compareUnsigned(v - pieceMins[hi], pieceWidths[hi]) <= 0;
+  }
+}
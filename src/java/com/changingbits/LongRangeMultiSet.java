@@ -31,4 +31,23 @@ public abstract class LongRangeMultiSet {
    *  answers and returns the number of matched
    *  ranges. */
   public abstract int lookup(long v, int[] answers);
+
+  /** For a given interval a to b (inclusive), lookup the
+   *  range indices that overlap it, i.e. that match at least
+   *  one value in the interval.  This places each such range
+   *  index into answers, once, and returns the number of
+   *  overlapping ranges; if a is greater than b nothing
+   *  overlaps. */
+  public abstract int lookupOverlapping(long a, long b, int[] answers);
+
+  /** Returns the lowest index of the ranges that v
+   *  matches, or -1 if it matches none; if the ranges don't
+   *  overlap, this is the one range v falls in. */
+  public abstract int firstMatch(long v);
+
+  /** Returns true if v matches any range.  This default
+   *  calls {@link #firstMatch}. */
+  public boolean matchesAny(long v) {
+    return firstMatch(v) != -1;
+  }
 }
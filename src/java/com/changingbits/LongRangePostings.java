@@ -0,0 +1,153 @@
+package com.changingbits;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+
+/** Collects, for each range, the rows of a block of values
+ *  that fall in it, e.g. to drill down into one range after
+ *  counting.  {@link #fill} runs a {@link LongRangeMultiSet}
+ *  over the block and stores the rows like a CSR matrix: the
+ *  rows of range r are {@code getRows()[getStart(r)]} to
+ *  {@code getRows()[getStart(r+1)-1]}, in increasing order.
+ *  Row j is values[off+j].  The buffers are kept and only
+ *  grown, so reuse one instance across blocks.
+ *
+ *  <p> {@link #fillBits} instead sets one bit per row in a
+ *  bitset per range. */
+public final class LongRangePostings {
+
+  private final int numRanges;
+
+  // Start of each range's rows in rows, and the total
+  // number of rows at the end:
+  private final int[] starts;
+
+  // Next row to fill per range, while scattering:
+  private final int[] nextRows;
+
+  private final int[] answers;
+
+  // Ranges matched by all rows, in row order, and the end of
+  // each row's matches in it:
+  private int[] matches = new int[16];
+  private int[] matchEnds = new int[16];
+
+  private int[] rows = new int[16];
+
+  public LongRangePostings(int numRanges) {
+    this.numRanges = numRanges;
+    starts = new int[numRanges+1];
+    nextRows = new int[numRanges];
+    answers = new int[numRanges];
+  }
+
+  /** Replaces the postings with those of values[off] to
+   *  values[off+len-1], looked up with set, which must have
+   *  been built for numRanges ranges.  Each value is looked
+   *  up once: its matches are saved while the rows per range
+   *  are counted, then scattered into place. */
+  public void fill(LongRangeMultiSet set, long[] values, int off, int len) {
+    if (off < 0 || len < 0 || off > values.length - len) {
+      throw new IndexOutOfBoundsException("off=" + off + " len=" + len + " values.length=" + values.length);
+    }
+    if (matchEnds.length < len) {
+      matchEnds = new int[Math.max(len, 2*matchEnds.length)];
+    }
+    Arrays.fill(starts, 0);
+    int upto = 0;
+    for(int j=0;j<len;j++) {
+      int count = set.lookup(values[off+j], answers);
+      if (matches.length < upto + count) {
+        matches = Arrays.copyOf(matches, Math.max(upto + count, 2*matches.length));
+      }
+      for(int k=0;k<count;k++) {
+        int range = answers[k];
+        matches[upto++] = range;
+        starts[range+1]++;
+      }
+      matchEnds[j] = upto;
+    }
+
+    for(int range=0;range<numRanges;range++) {
+      starts[range+1] += starts[range];
+      nextRows[range] = starts[range];
+    }
+    if (rows.length < upto) {
+      rows = new int[Math.max(upto, 2*rows.length)];
+    }
+    int matchUpto = 0;
+    for(int j=0;j<len;j++) {
+      int end = matchEnds[j];
+      while (matchUpto < end) {
+        rows[nextRows[matches[matchUpto++]]++] = j;
+      }
+    }
+  }
+
+  /** Returns how many rows fell in the range. */
+  public int getCount(int range) {
+    return starts[range+1] - starts[range];
+  }
+
+  /** Returns where the rows of the range start in {@link
+   *  #getRows}; the range's rows end where the next range's
+   *  start, and getStart(numRanges) is the total. */
+  public int getStart(int range) {
+    return starts[range];
+  }
+
+  /** Returns the rows of all ranges, grouped by range; do
+   *  not modify the returned array, which is reused by the
+   *  next {@link #fill}. */
+  public int[] getRows() {
+    return rows;
+  }
+
+  /** Copies the rows of the range into dest, starting at
+   *  destOff, and returns how many were copied. */
+  public int copyRows(int range, int[] dest, int destOff) {
+    int count = getCount(range);
+    System.arraycopy(rows, starts[range], dest, destOff, count);
+    return count;
+  }
+
+  /** Sets bit j (bit j&amp;63 of bits[r][j&gt;&gt;&gt;6]) if
+   *  values[off+j] falls in range r, for j from 0 to len-1,
+   *  and clears all other bits of the first (len+63)/64 words
+   *  of each bits[r]. */
+  public static void fillBits(LongRangeMultiSet set, long[] values, int off, int len, long[][] bits) {
+    if (off < 0 || len < 0 || off > values.length - len) {
+      throw new IndexOutOfBoundsException("off=" + off + " len=" + len + " values.length=" + values.length);
+    }
+    int numWords = (len + 63) >>> 6;
+    for(long[] rangeBits : bits) {
+      if (rangeBits.length < numWords) {
+        throw new IllegalArgumentException("bits length=" + rangeBits.length + " is too small for len=" + len);
+      }
+      Arrays.fill(rangeBits, 0, numWords, 0L);
+    }
+    int[] answers = new int[bits.length];
+    for(int j=0;j<len;j++) {
+      int count = set.lookup(values[off+j], answers);
+      for(int k=0;k<count;k++) {
+        bits[answers[k]][j >>> 6] |= 1L << j;
+      }
+    }
+  }
+}
@@ -0,0 +1,239 @@
+package com.changingbits;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** A view over a tree that only matches the active ranges
+ *  of a mask: bit i&amp;63 of mask[i&gt;&gt;&gt;6] is set if
+ *  range i is active.  Binding a new mask with {@link
+ *  #withMask} shares the tree (built once, as for {@link
+ *  ArrayLongRangeMultiSet}) and only recomputes which
+ *  outputs of each node are active, and which subtrees have
+ *  no active outputs; lookups stop as soon as they reach
+ *  such a subtree.  There is no new class to compile, so
+ *  toggling ranges per query is cheap.
+ *
+ *  <p> See {@link Builder#getMaskedMultiSet} for creating
+ *  an instance of this. */
+public final class MaskedLongRangeMultiSet extends LongRangeMultiSet {
+
+  private final ArrayLongRangeMultiSet tree;
+  private final int numRanges;
+  private final long[] mask;
+
+  // Slice (address + count) into activeIndices for each
+  // node's active outputs:
+  private final int[] activeAddress;
+  private final int[] activeCounts;
+  private final int[] activeIndices;
+
+  // True if the node, or any of its descendents, has
+  // active outputs, i.e. Node.hasOutputs for this mask:
+  private final boolean[] live;
+
+  MaskedLongRangeMultiSet(ArrayLongRangeMultiSet tree, int numRanges, long[] mask) {
+    if (mask.length < (numRanges + 63) >>> 6) {
+      throw new IllegalArgumentException("mask.length=" + mask.length + " is too small for " + numRanges + " ranges");
+    }
+    this.tree = tree;
+    this.numRanges = numRanges;
+    this.mask = mask.clone();
+    int numNodes = tree.starts.length;
+    activeAddress = new int[numNodes];
+    activeCounts = new int[numNodes];
+    live = new boolean[numNodes];
+
+    int[] indices = new int[tree.rangeIndices.length];
+    int upto = 0;
+    // Children have higher IDs than their parent, so going
+    // backwards visits them first:
+    for(int nodeID=numNodes-1;nodeID>=1;nodeID--) {
+      activeAddress[nodeID] = upto;
+      int start = tree.rangeAddress[nodeID];
+      int limit = start + tree.rangeCounts[nodeID];
+      for(int i=start;i<limit;i++) {
+        if (isActive(tree.rangeIndices[i])) {
+          indices[upto++] = tree.rangeIndices[i];
+        }
+      }
+      activeCounts[nodeID] = upto - activeAddress[nodeID];
+      int left = 2*nodeID;
+      live[nodeID] = activeCounts[nodeID] != 0 || (left < numNodes && (live[left] || live[left+1]));
+    }
+    activeIndices = new int[upto];
+    System.arraycopy(indices, 0, activeIndices, 0, upto);
+  }
+
+  /** Returns a view over the same tree with another mask;
+   *  this costs one pass over the nodes and their
+   *  outputs. */
+  public MaskedLongRangeMultiSet withMask(long[] mask) {
+    return new MaskedLongRangeMultiSet(tree, numRanges, mask);
+  }
+
+  /** Returns true if the range is active in this view's
+   *  mask. */
+  public boolean isActive(int range) {
+    return (mask[range >>> 6] & (1L << range)) != 0;
+  }
+
+  /** Returns a new counter that counts the active ranges
+   *  each added value falls in; inactive ranges always
+   *  have count 0. */
+  public LongRangeCounter getCounter() {
+    final int[] counts = new int[numRanges];
+    // Indexed by nodeID:
+    final int[] nodeCounts = new int[live.length];
+    return new LongRangeCounter() {
+      @Override
+      public void add(long v) {
+        MaskedLongRangeMultiSet.this.add(v, counts, nodeCounts);
+      }
+
+      @Override
+      public PrefixCounts getPrefixCounts() {
+        List<Long> ends = new ArrayList<>();
+        List<Integer> intervalCounts = new ArrayList<>();
+        addIntervals(1, nodeCounts, ends, intervalCounts);
+        long[] endsArray = new long[ends.size()];
+        int[] countsArray = new int[ends.size()];
+        for(int i=0;i<endsArray.length;i++) {
+          endsArray[i] = ends.get(i);
+          countsArray[i] = intervalCounts.get(i);
+        }
+        return new PrefixCounts(tree.starts[1], endsArray, countsArray, 0, null);
+      }
+
+      @Override
+      public int[] getCounts() {
+        return counts.clone();
+      }
+    };
+  }
+
+  /** Increments counts[range] for each active range v
+   *  matches, and nodeCounts[nodeID] for the node where
+   *  the lookup stops. */
+  void add(long v, int[] counts, int[] nodeCounts) {
+    int nodeID = 1;
+    while (live[nodeID]) {
+      int start = activeAddress[nodeID];
+      int limit = start + activeCounts[nodeID];
+      for(int i=start;i<limit;i++) {
+        counts[activeIndices[i]]++;
+      }
+      int childID = child(nodeID, v);
+      if (childID == -1) {
+        break;
+      }
+      nodeID = childID;
+    }
+    nodeCounts[nodeID]++;
+  }
+
+  /** Lookups stop at a live leaf, or at the first node
+   *  that is not live, so those nodes' intervals (in
+   *  order) partition the values, and each was counted
+   *  exactly. */
+  private void addIntervals(int nodeID, int[] nodeCounts, List<Long> ends, List<Integer> counts) {
+    int left = 2*nodeID;
+    if (live[nodeID] && left < live.length) {
+      addIntervals(left, nodeCounts, ends, counts);
+      addIntervals(left+1, nodeCounts, ends, counts);
+    } else {
+      ends.add(tree.ends[nodeID]);
+      counts.add(nodeCounts[nodeID]);
+    }
+  }
+
+  @Override
+  public int lookup(long v, int[] answers) {
+    int upto = 0;
+    int nodeID = 1;
+    while (live[nodeID]) {
+      int start = activeAddress[nodeID];
+      int limit = start + activeCounts[nodeID];
+      for(int i=start;i<limit;i++) {
+        answers[upto++] = activeIndices[i];
+      }
+      nodeID = child(nodeID, v);
+      if (nodeID == -1) {
+        break;
+      }
+    }
+    return upto;
+  }
+
+  @Override
+  public int lookupOverlapping(long a, long b, int[] answers) {
+    // Inactive ranges are dropped after the lookup:
+    int count = tree.lookupOverlapping(a, b, answers);
+    int upto = 0;
+    for(int i=0;i<count;i++) {
+      if (isActive(answers[i])) {
+        answers[upto++] = answers[i];
+      }
+    }
+    return upto;
+  }
+
+  @Override
+  public int firstMatch(long v) {
+    // Active outputs are sorted too, so each node's first
+    // one is its lowest:
+    int best = Integer.MAX_VALUE;
+    int nodeID = 1;
+    while (live[nodeID]) {
+      if (activeCounts[nodeID] != 0) {
+        best = Math.min(best, activeIndices[activeAddress[nodeID]]);
+      }
+      nodeID = child(nodeID, v);
+      if (nodeID == -1) {
+        break;
+      }
+    }
+    return best == Integer.MAX_VALUE ? -1 : best;
+  }
+
+  @Override
+  public boolean matchesAny(long v) {
+    int nodeID = 1;
+    while (live[nodeID]) {
+      if (activeCounts[nodeID] != 0) {
+        return true;
+      }
+      nodeID = child(nodeID, v);
+      if (nodeID == -1) {
+        break;
+      }
+    }
+    return false;
+  }
+
+  /** Returns the child of nodeID that v falls in, or -1 if
+   *  nodeID is a leaf. */
+  private int child(int nodeID, long v) {
+    int left = 2*nodeID;
+    if (left >= live.length) {
+      return -1;
+    }
+    return v <= tree.ends[left] ? left : left+1;
+  }
+}
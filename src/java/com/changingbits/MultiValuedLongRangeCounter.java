@@ -0,0 +1,145 @@
+package com.changingbits;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+
+/** Counts documents that have several values each, such as
+ *  all event timestamps of one document: each document is
+ *  counted at most once per range, no matter how many of its
+ *  values fall in that range.  Call {@link #startDoc},
+ *  {@link #add} per value and {@link #endDoc}, or {@link
+ *  #addDoc}.
+ *
+ *  <p> Each value walks the tree from the root, like {@link
+ *  ArrayLongRangeMultiSet}.  Nodes and ranges are marked with
+ *  the current document's generation instead of a flag, so
+ *  nothing needs clearing between documents: a node already
+ *  marked by an earlier value of the document has had its
+ *  outputs counted, and a range already marked was reached
+ *  through another node.
+ *
+ *  <p> See {@link Builder#getMultiValuedCounter} for creating
+ *  an instance of this. */
+public final class MultiValuedLongRangeCounter {
+
+  private final ArrayLongRangeMultiSet tree;
+  private final int[] counts;
+
+  // True if the node, or any of its descendents, has
+  // outputs:
+  private final boolean[] hasOutputs;
+
+  // Generation of the last document that reached each node
+  // or range:
+  private final int[] nodeGens;
+  private final int[] rangeGens;
+
+  // Generation of the current document, or 0 if there is
+  // none:
+  private int gen;
+  private int lastGen;
+
+  MultiValuedLongRangeCounter(ArrayLongRangeMultiSet tree, int numRanges) {
+    this.tree = tree;
+    counts = new int[numRanges];
+    int numNodes = tree.starts.length;
+    hasOutputs = new boolean[numNodes];
+    // Children have higher IDs than their parent, so going
+    // backwards visits them first:
+    for(int nodeID=numNodes-1;nodeID>=1;nodeID--) {
+      int left = 2*nodeID;
+      hasOutputs[nodeID] = tree.rangeCounts[nodeID] != 0 || (left < numNodes && (hasOutputs[left] || hasOutputs[left+1]));
+    }
+    nodeGens = new int[numNodes];
+    rangeGens = new int[numRanges];
+  }
+
+  /** Starts a new document. */
+  public void startDoc() {
+    if (gen != 0) {
+      throw new IllegalStateException("startDoc called twice without endDoc");
+    }
+    if (lastGen == Integer.MAX_VALUE) {
+      // Generations wrapped: forget all marks
+      Arrays.fill(nodeGens, 0);
+      Arrays.fill(rangeGens, 0);
+      lastGen = 0;
+    }
+    gen = ++lastGen;
+  }
+
+  /** Adds one value of the current document, incrementing
+   *  the count of each range it falls in unless another
+   *  value of the document already did. */
+  public void add(long v) {
+    if (gen == 0) {
+      throw new IllegalStateException("add called before startDoc");
+    }
+    int nodeID = 1;
+    while (hasOutputs[nodeID]) {
+      if (nodeGens[nodeID] != gen) {
+        nodeGens[nodeID] = gen;
+        int start = tree.rangeAddress[nodeID];
+        int limit = start + tree.rangeCounts[nodeID];
+        for(int i=start;i<limit;i++) {
+          int range = tree.rangeIndices[i];
+          if (rangeGens[range] != gen) {
+            rangeGens[range] = gen;
+            counts[range]++;
+          }
+        }
+      }
+      int left = 2*nodeID;
+      if (left >= hasOutputs.length) {
+        break;
+      }
+      nodeID = v <= tree.ends[left] ? left : left+1;
+    }
+  }
+
+  /** Ends the current document. */
+  public void endDoc() {
+    if (gen == 0) {
+      throw new IllegalStateException("endDoc called before startDoc");
+    }
+    gen = 0;
+  }
+
+  /** Adds one document whose values are values[off] to
+   *  values[off+len-1]; this is the same as calling {@link
+   *  #startDoc}, {@link #add} for each value, then {@link
+   *  #endDoc}. */
+  public void addDoc(long[] values, int off, int len) {
+    if (off < 0 || len < 0 || off > values.length - len) {
+      throw new IndexOutOfBoundsException("off=" + off + " len=" + len + " values.length=" + values.length);
+    }
+    startDoc();
+    int end = off + len;
+    for(int i=off;i<end;i++) {
+      add(values[i]);
+    }
+    endDoc();
+  }
+
+  /** Retrieve the number of documents that matched each
+   *  range; call this after adding all documents. */
+  public int[] getCounts() {
+    return counts.clone();
+  }
+}
@@ -0,0 +1,123 @@
+package com.changingbits;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/** Fast path for nested ranges that all share the same min,
+ *  e.g. "latency <= X" buckets: with the ranges sorted by
+ *  max, a value matches a single span of them, so {@link
+ *  #lookupSpan} returns that span instead of writing each
+ *  matched range index.
+ *
+ *  <p> See {@link Builder#getNestedMultiSet} for creating an
+ *  instance of this. */
+public final class NestedLongRangeMultiSet extends LongRangeMultiSet {
+
+  private final long min;
+
+  // Max (inclusive) of each range, sorted:
+  private final long[] maxes;
+
+  // Range index at each position in maxes:
+  private final int[] order;
+
+  // Lowest range index from each position to the end, for
+  // firstMatch:
+  private final int[] firstRanges;
+
+  NestedLongRangeMultiSet(long min, long[] maxes, int[] order) {
+    this.min = min;
+    this.maxes = maxes;
+    this.order = order;
+    firstRanges = new int[order.length];
+    int first = Integer.MAX_VALUE;
+    for(int i=order.length-1;i>=0;i--) {
+      first = Math.min(first, order[i]);
+      firstRanges[i] = first;
+    }
+  }
+
+  /** Returns how many ranges there are, in sorted order,
+   *  i.e. the limit of the positions returned by {@link
+   *  #lookupSpan}; empty ranges are left out. */
+  public int getSize() {
+    return order.length;
+  }
+
+  /** Returns the range index at the provided position in
+   *  sorted order. */
+  public int getRangeIndex(int position) {
+    return order[position];
+  }
+
+  /** Finds the ranges matching v, as positions from span[0]
+   *  (inclusive) to span[1] (exclusive) in sorted order
+   *  (see {@link #getRangeIndex}), and returns how many
+   *  there are. */
+  public int lookupSpan(long v, int[] span) {
+    int from = v < min ? order.length : firstMaxAtLeast(v);
+    span[0] = from;
+    span[1] = order.length;
+    return order.length - from;
+  }
+
+  @Override
+  public int lookup(long v, int[] answers) {
+    int from = v < min ? order.length : firstMaxAtLeast(v);
+    int upto = 0;
+    for(int i=from;i<order.length;i++) {
+      answers[upto++] = order[i];
+    }
+    return upto;
+  }
+
+  @Override
+  public int firstMatch(long v) {
+    int from = v < min ? order.length : firstMaxAtLeast(v);
+    return from == order.length ? -1 : firstRanges[from];
+  }
+
+  @Override
+  public boolean matchesAny(long v) {
+    // The range with the largest max matches, if any does:
+    return order.length != 0 && v >= min && v <= maxes[order.length-1];
+  }
+
+  @Override
+  public int lookupOverlapping(long a, long b, int[] answers) {
+    if (a > b || b < min) {
+      return 0;
+    }
+    return lookup(Math.max(a, min), answers);
+  }
+
+  /** Returns the first position whose max is >= v, or the
+   *  size if there is none. */
+  private int firstMaxAtLeast(long v) {
+    int lo = 0;
+    int hi = maxes.length;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (maxes[mid] >= v) {
+        hi = mid;
+      } else {
+        lo = mid + 1;
+      }
+    }
+    return lo;
+  }
+}
@@ -41,6 +41,9 @@ class Node {
   // True if we, or any of our descendents, have outputs:
   boolean hasOutputs;
 
+  // Only used by Builder while assigning outputs:
+  int outputCount;
+
   public Node(long start, long end, Node left, Node right, int leafIndex) {
     this.start = start;
     this.end = end;
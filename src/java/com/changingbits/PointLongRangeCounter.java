@@ -0,0 +1,101 @@
+package com.changingbits;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/** Counts point ranges (min == max) with a hash lookup,
+ *  and the other ranges with a counter built over just
+ *  them.
+ *
+ *  <p> See {@link Builder#getPointCounter} for creating an
+ *  instance of this. */
+final class PointLongRangeCounter extends LongRangeCounter {
+
+  private final PointTable points;
+  private final int[] pointCounts;
+
+  // Null if all ranges are points:
+  private final LongRangeCounter intervals;
+
+  // Maps the range indices of intervals back to ours:
+  private final int[] intervalRanges;
+
+  private final int numRanges;
+
+  PointLongRangeCounter(PointTable points, LongRangeCounter intervals, int[] intervalRanges, int numRanges) {
+    this.points = points;
+    this.intervals = intervals;
+    this.intervalRanges = intervalRanges;
+    this.numRanges = numRanges;
+    pointCounts = new int[points.size()];
+  }
+
+  @Override
+  public void add(long v) {
+    if (intervals != null) {
+      intervals.add(v);
+    }
+    int ord = points.find(v);
+    if (ord != -1) {
+      pointCounts[ord]++;
+    }
+  }
+
+  @Override
+  public void addAll(long[] values, int off, int len) {
+    if (off < 0 || len < 0 || off > values.length - len) {
+      throw new IndexOutOfBoundsException("off=" + off + " len=" + len + " values.length=" + values.length);
+    }
+    if (intervals != null) {
+      // May be much faster than one by one:
+      intervals.addAll(values, off, len);
+    }
+    int end = off + len;
+    for(int i=off;i<end;i++) {
+      int ord = points.find(values[i]);
+      if (ord != -1) {
+        pointCounts[ord]++;
+      }
+    }
+  }
+
+  /** The intervals counter counts every value, including
+   *  those at points, and the points are counted exactly on
+   *  top, even where they split its intervals. */
+  @Override
+  public PrefixCounts getPrefixCounts() {
+    return PrefixCounts.withPoints(intervals == null ? null : intervals.getPrefixCounts(),
+                                   points.getPoints(), pointCounts);
+  }
+
+  @Override
+  public int[] getCounts() {
+    int[] counts = new int[numRanges];
+    if (intervals != null) {
+      int[] intervalCounts = intervals.getCounts();
+      for(int i=0;i<intervalCounts.length;i++) {
+        counts[intervalRanges[i]] = intervalCounts[i];
+      }
+    }
+    for(int ord=0;ord<pointCounts.length;ord++) {
+      if (pointCounts[ord] != 0) {
+        points.addCount(ord, pointCounts[ord], counts);
+      }
+    }
+    return counts;
+  }
+}
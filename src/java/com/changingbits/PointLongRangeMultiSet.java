@@ -0,0 +1,99 @@
+package com.changingbits;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/** Matches point ranges (min == max) with a hash lookup,
+ *  and the other ranges with a multi-set built over just
+ *  them, so many single value ranges don't make the tree
+ *  deep.
+ *
+ *  <p> See {@link Builder#getPointMultiSet} for creating an
+ *  instance of this. */
+final class PointLongRangeMultiSet extends LongRangeMultiSet {
+
+  private final PointTable points;
+
+  // Null if all ranges are points:
+  private final LongRangeMultiSet intervals;
+
+  // Maps the range indices of intervals back to ours:
+  private final int[] intervalRanges;
+
+  PointLongRangeMultiSet(PointTable points, LongRangeMultiSet intervals, int[] intervalRanges) {
+    this.points = points;
+    this.intervals = intervals;
+    this.intervalRanges = intervalRanges;
+  }
+
+  @Override
+  public int lookup(long v, int[] answers) {
+    int upto = 0;
+    if (intervals != null) {
+      upto = intervals.lookup(v, answers);
+      for(int i=0;i<upto;i++) {
+        answers[i] = intervalRanges[answers[i]];
+      }
+    }
+    int ord = points.find(v);
+    if (ord != -1) {
+      upto = points.addRanges(ord, answers, upto);
+    }
+    return upto;
+  }
+
+  @Override
+  public int firstMatch(long v) {
+    int best = -1;
+    if (intervals != null) {
+      best = intervals.firstMatch(v);
+      if (best != -1) {
+        // intervalRanges is sorted, so this is still the
+        // lowest:
+        best = intervalRanges[best];
+      }
+    }
+    int ord = points.find(v);
+    if (ord != -1) {
+      int first = points.firstRange(ord);
+      if (best == -1 || first < best) {
+        best = first;
+      }
+    }
+    return best;
+  }
+
+  @Override
+  public boolean matchesAny(long v) {
+    return points.find(v) != -1 || (intervals != null && intervals.matchesAny(v));
+  }
+
+  @Override
+  public int lookupOverlapping(long a, long b, int[] answers) {
+    if (a > b) {
+      return 0;
+    }
+    int upto = 0;
+    if (intervals != null) {
+      upto = intervals.lookupOverlapping(a, b, answers);
+      for(int i=0;i<upto;i++) {
+        answers[i] = intervalRanges[answers[i]];
+      }
+    }
+    return points.addRanges(a, b, answers, upto);
+  }
+}
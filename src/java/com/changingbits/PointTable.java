@@ -0,0 +1,171 @@
+package com.changingbits;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/** Open addressing hash table from each distinct point
+ *  value to the indices of the point ranges (min == max)
+ *  on it, used by the point engines (see {@link
+ *  Builder#getPointMultiSet}). */
+final class PointTable {
+
+  // Hash slots, at most half full; ordinals[slot] is -1 if
+  // the slot is empty:
+  private final long[] keys;
+  private final int[] ordinals;
+  private final int shift;
+
+  // Distinct point values, sorted; ordinal is the index
+  // here:
+  private final long[] points;
+
+  // Slice of rangeIndices for each ordinal, from
+  // rangeStarts[ord] to rangeStarts[ord+1]:
+  private final int[] rangeStarts;
+  private final int[] rangeIndices;
+
+  /** Indexes the provided ranges, which must all be points;
+   *  rangeIDs[i] is the index reported for ranges[i]. */
+  PointTable(final LongRange[] ranges, int[] rangeIDs) {
+    // Sort by point value, then by range index:
+    long[] sorted = new long[ranges.length];
+    Integer[] order = new Integer[ranges.length];
+    for(int i=0;i<ranges.length;i++) {
+      assert ranges[i].minIncl == ranges[i].maxIncl;
+      order[i] = i;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer a, Integer b) {
+          return Long.compare(ranges[a].minIncl, ranges[b].minIncl);
+        }
+      });
+
+    int distinct = 0;
+    for(int i=0;i<ranges.length;i++) {
+      sorted[i] = ranges[order[i]].minIncl;
+      if (i == 0 || sorted[i] != sorted[i-1]) {
+        distinct++;
+      }
+    }
+    points = new long[distinct];
+    rangeStarts = new int[distinct+1];
+    rangeIndices = new int[ranges.length];
+    int ord = -1;
+    for(int i=0;i<ranges.length;i++) {
+      if (i == 0 || sorted[i] != sorted[i-1]) {
+        ord++;
+        points[ord] = sorted[i];
+        rangeStarts[ord] = i;
+      }
+      rangeIndices[i] = rangeIDs[order[i]];
+    }
+    rangeStarts[distinct] = ranges.length;
+
+    int bits = 1;
+    while ((1 << bits) < 2 * distinct) {
+      bits++;
+    }
+    shift = 64 - bits;
+    keys = new long[1 << bits];
+    ordinals = new int[1 << bits];
+    Arrays.fill(ordinals, -1);
+    int mask = keys.length - 1;
+    for(int i=0;i<distinct;i++) {
+      int slot = slot(points[i]);
+      while (ordinals[slot] != -1) {
+        slot = (slot + 1) & mask;
+      }
+      keys[slot] = points[i];
+      ordinals[slot] = i;
+    }
+  }
+
+  private int slot(long v) {
+    // Fibonacci hashing: the top bits of the product are
+    // well mixed:
+    return (int) ((v * 0x9E3779B97F4A7C15L) >>> shift);
+  }
+
+  /** Returns the number of distinct point values. */
+  int size() {
+    return points.length;
+  }
+
+  /** Returns the distinct point values, sorted, indexed by
+   *  ordinal; do not modify the returned array. */
+  long[] getPoints() {
+    return points;
+  }
+
+  /** Returns the ordinal of v, or -1 if no point range
+   *  matches it. */
+  int find(long v) {
+    int mask = keys.length - 1;
+    int slot = slot(v);
+    while (true) {
+      int ord = ordinals[slot];
+      if (ord == -1 || keys[slot] == v) {
+        return ord;
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  /** Adds the range indices of the point with this ordinal
+   *  to answers, starting at upto, and returns the new
+   *  upto. */
+  int addRanges(int ord, int[] answers, int upto) {
+    int limit = rangeStarts[ord+1];
+    for(int i=rangeStarts[ord];i<limit;i++) {
+      answers[upto++] = rangeIndices[i];
+    }
+    return upto;
+  }
+
+  /** Returns the lowest range index of the point with this
+   *  ordinal. */
+  int firstRange(int ord) {
+    return rangeIndices[rangeStarts[ord]];
+  }
+
+  /** Adds the count to each range of the point with this
+   *  ordinal. */
+  void addCount(int ord, int count, int[] counts) {
+    int limit = rangeStarts[ord+1];
+    for(int i=rangeStarts[ord];i<limit;i++) {
+      counts[rangeIndices[i]] += count;
+    }
+  }
+
+  /** Adds the range indices of all points from a to b
+   *  (inclusive) to answers, starting at upto, and returns
+   *  the new upto. */
+  int addRanges(long a, long b, int[] answers, int upto) {
+    int ord = Arrays.binarySearch(points, a);
+    if (ord < 0) {
+      ord = -ord-1;
+    }
+    for(;ord<points.length && points[ord] <= b;ord++) {
+      upto = addRanges(ord, answers, upto);
+    }
+    return upto;
+  }
+}
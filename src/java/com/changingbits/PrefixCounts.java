@@ -0,0 +1,257 @@
+package com.changingbits;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+
+/** A snapshot of a counter's count per elementary interval,
+ *  as prefix sums, so the count of any range whose ends
+ *  line up with the elementary intervals (e.g. the union of
+ *  several adjacent ranges, or a sub-window) is answered
+ *  with two binary searches, without re-counting.
+ *
+ *  <p> See {@link LongRangeCounter#getPrefixCounts} for
+ *  creating an instance of this. */
+public final class PrefixCounts {
+  private final long hardMin;
+
+  // Max value (inclusive) of each elementary interval:
+  private final long[] ends;
+
+  // prefix[i] is the sum of the counts of the intervals
+  // before interval i:
+  private final long[] prefix;
+
+  // If not null, untracked[i] is how many intervals before
+  // interval i were not counted by the counter:
+  private final int[] untracked;
+
+  // If not null, the exact count of each of these single
+  // values (sorted), which need not line up with the
+  // intervals:
+  private final long[] points;
+  private final long[] pointCounts;
+
+  /** Copies counts[countsOffset] to
+   *  counts[countsOffset+ends.length-1]; tracked is null if
+   *  all intervals were counted. */
+  PrefixCounts(long hardMin, long[] ends, int[] counts, int countsOffset, boolean[] tracked) {
+    this.hardMin = hardMin;
+    this.ends = ends;
+    prefix = new long[ends.length+1];
+    for(int i=0;i<ends.length;i++) {
+      prefix[i+1] = prefix[i] + counts[countsOffset+i];
+    }
+    if (tracked != null) {
+      untracked = new int[ends.length+1];
+      for(int i=0;i<ends.length;i++) {
+        untracked[i+1] = untracked[i] + (tracked[i] ? 0 : 1);
+      }
+    } else {
+      untracked = null;
+    }
+    points = null;
+    pointCounts = null;
+  }
+
+  private PrefixCounts(long hardMin, long[] ends, long[] counts, boolean[] tracked, long[] points, long[] pointCounts) {
+    this.hardMin = hardMin;
+    this.ends = ends;
+    prefix = new long[ends.length+1];
+    boolean allTracked = true;
+    for(int i=0;i<ends.length;i++) {
+      prefix[i+1] = prefix[i] + counts[i];
+      allTracked &= tracked[i];
+    }
+    if (allTracked == false) {
+      untracked = new int[ends.length+1];
+      for(int i=0;i<ends.length;i++) {
+        untracked[i+1] = untracked[i] + (tracked[i] ? 0 : 1);
+      }
+    } else {
+      untracked = null;
+    }
+    this.points = points;
+    this.pointCounts = pointCounts;
+  }
+
+  /** Returns prefix counts over the intervals of
+   *  intervals (null if only the points were counted) that
+   *  also know the exact count of each of the points
+   *  (sorted), which may fall inside those intervals. */
+  static PrefixCounts withPoints(PrefixCounts intervals, long[] points, int[] counts) {
+    long[] pointCounts = new long[points.length];
+    for(int i=0;i<points.length;i++) {
+      pointCounts[i] = counts[i];
+    }
+    if (intervals == null) {
+      return new PrefixCounts(Long.MIN_VALUE, new long[0], new long[0], new boolean[0], points, pointCounts);
+    }
+    return new PrefixCounts(intervals.hardMin, intervals.ends, intervals.getCounts(), intervals.getTracked(), points, pointCounts);
+  }
+
+  /** Returns new prefix counts that add the counts of
+   *  other, whose intervals must each lie inside one of
+   *  ours, e.g. because they were split from ours by more
+   *  ranges. */
+  PrefixCounts plus(PrefixCounts other) {
+    if (other.points != null) {
+      throw new IllegalArgumentException("cannot add the counts of points");
+    }
+    long[] counts = getCounts();
+    boolean[] tracked = getTracked();
+    long[] newPointCounts = pointCounts == null ? null : pointCounts.clone();
+    int upto = 0;
+    for(int i=0;i<other.ends.length;i++) {
+      long start = i == 0 ? other.hardMin : other.ends[i-1]+1;
+      long end = other.ends[i];
+      long count = other.prefix[i+1] - other.prefix[i];
+      if (ends.length > 0) {
+        // Find our interval holding other's:
+        while (upto < ends.length && ends[upto] < end) {
+          upto++;
+        }
+        if (upto == ends.length || start < (upto == 0 ? hardMin : ends[upto-1]+1)) {
+          throw new IllegalArgumentException("interval " + start + " to " + end + " does not line up with the intervals");
+        }
+        counts[upto] += count;
+        if (other.untracked != null && other.untracked[i+1] != other.untracked[i]) {
+          tracked[upto] = false;
+        }
+      }
+      if (points != null && start == end) {
+        int ord = Arrays.binarySearch(points, start);
+        if (ord >= 0) {
+          newPointCounts[ord] += count;
+        }
+      }
+    }
+    return new PrefixCounts(hardMin, ends, counts, tracked, points, newPointCounts);
+  }
+
+  /** Returns the count of each interval. */
+  private long[] getCounts() {
+    long[] counts = new long[ends.length];
+    for(int i=0;i<ends.length;i++) {
+      counts[i] = prefix[i+1] - prefix[i];
+    }
+    return counts;
+  }
+
+  /** Returns whether each interval was counted. */
+  private boolean[] getTracked() {
+    boolean[] tracked = new boolean[ends.length];
+    for(int i=0;i<ends.length;i++) {
+      tracked[i] = untracked == null || untracked[i+1] == untracked[i];
+    }
+    return tracked;
+  }
+
+  /** Returns the index of v in points, or -1. */
+  private int pointIndex(long v) {
+    if (points == null) {
+      return -1;
+    }
+    return Math.max(-1, Arrays.binarySearch(points, v));
+  }
+
+  /** Returns the total count of all values. */
+  public long getTotalCount() {
+    if (ends.length == 0 && points != null) {
+      // Only the points were counted:
+      long total = 0;
+      for(long count : pointCounts) {
+        total += count;
+      }
+      return total;
+    }
+    return prefix[ends.length];
+  }
+
+  /** Returns true if min is the start, and max is the end,
+   *  of an elementary interval (or min is greater than
+   *  max, or min and max are the same counted point), so
+   *  that {@link #getCount(long,long)} can count min to max
+   *  exactly. */
+  public boolean isAligned(long min, long max) {
+    if (min > max || (min == max && pointIndex(min) != -1)) {
+      return true;
+    }
+    return startIndex(min) >= 0 && endIndex(max) >= 0;
+  }
+
+  /** Returns how many values were from min to max
+   *  (inclusive).  This throws {@code
+   *  IllegalArgumentException} if min or max is not on an
+   *  elementary interval boundary (see {@link #isAligned}),
+   *  or if the counter did not count some of the values in
+   *  between. */
+  public long getCount(long min, long max) {
+    if (min > max) {
+      return 0;
+    }
+    if (min == max) {
+      int ord = pointIndex(min);
+      if (ord != -1) {
+        return pointCounts[ord];
+      }
+    }
+    int start = startIndex(min);
+    if (start < 0) {
+      throw new IllegalArgumentException("min=" + min + " is not the start of an elementary interval");
+    }
+    int end = endIndex(max);
+    if (end < 0) {
+      throw new IllegalArgumentException("max=" + max + " is not the end of an elementary interval");
+    }
+    if (untracked != null && untracked[end+1] != untracked[start]) {
+      throw new IllegalArgumentException("values from " + min + " to " + max + " were not all counted");
+    }
+    return prefix[end+1] - prefix[start];
+  }
+
+  /** Like {@link #getCount(long,long)}, for the values the
+   *  range accepts. */
+  public long getCount(LongRange range) {
+    return getCount(range.minIncl, range.maxIncl);
+  }
+
+  /** Returns the interval starting at v, or -1. */
+  private int startIndex(long v) {
+    if (ends.length == 0) {
+      return -1;
+    }
+    if (v == hardMin) {
+      return 0;
+    }
+    if (v < hardMin) {
+      return -1;
+    }
+    int index = Arrays.binarySearch(ends, v-1);
+    return index < 0 || index == ends.length-1 ? -1 : index+1;
+  }
+
+  /** Returns the interval ending at v, or -1. */
+  private int endIndex(long v) {
+    if (v < hardMin) {
+      return -1;
+    }
+    int index = Arrays.binarySearch(ends, v);
+    return index < 0 ? -1 : index;
+  }
+}
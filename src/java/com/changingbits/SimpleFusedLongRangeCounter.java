@@ -0,0 +1,45 @@
+package com.changingbits;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/** Java impl that walks each facet's tree per row; this is
+ *  used if you pass false to {@link Builder#getFusedCounter},
+ *  or if the compiled loop would be too large for the JIT. */
+final class SimpleFusedLongRangeCounter extends FusedLongRangeCounter {
+
+  private final Node[] roots;
+
+  SimpleFusedLongRangeCounter(Node[] roots, int[] numLeaves, int[] numRanges) {
+    super(roots, numLeaves, numRanges);
+    this.roots = roots;
+  }
+
+  @Override
+  protected void addRows(long[][] columns, int start, int end) {
+    for(int i=start;i<end;i++) {
+      for(int facet=0;facet<roots.length;facet++) {
+        long v = columns[facet][i];
+        Node node = roots[facet];
+        while (node.left != null) {
+          node = v <= node.left.end ? node.left : node.right;
+        }
+        elementaryCounts[facet][node.leafIndex]++;
+      }
+    }
+  }
+}
@@ -18,7 +18,6 @@ package com.changingbits;
  */
 
 import java.util.Arrays;
-import java.util.List;
 
 /** Java impl that counts each value into its elementary
  *  interval, and in the end rolls up to the original
@@ -29,20 +28,43 @@ class SimpleLongRangeCounter extends LongRangeCounter {
   private final int[] elementaryCounts;
   private final long[] boundaries;
 
-  public SimpleLongRangeCounter(Node root, List<LongRange> elementaryIntervals, int numRanges) {
+  // Max (inclusive) of each elementary interval, for
+  // addAll:
+  private final long[] elementaryEnds;
+
+  // If not null, the narrow keys (see Builder.narrowKey) of
+  // the boundaries, used instead of them:
+  private final int[] narrowBoundaries;
+  private final long hardMin;
+
+  public SimpleLongRangeCounter(Node root, long hardMin, long[] elementaryEnds, int numRanges, boolean narrow) {
     this.root = root;
     this.numRanges = numRanges;
-    boundaries = new long[elementaryIntervals.size()+1];
-    boundaries[0] = Long.MIN_VALUE;
-    for(int i=0;i<elementaryIntervals.size();i++) {
-      boundaries[i+1] = elementaryIntervals.get(i).maxIncl;
+    this.hardMin = hardMin;
+    this.elementaryEnds = elementaryEnds;
+    if (narrow) {
+      boundaries = null;
+      narrowBoundaries = new int[elementaryEnds.length+1];
+      narrowBoundaries[0] = Integer.MIN_VALUE;
+      for(int i=0;i<elementaryEnds.length;i++) {
+        narrowBoundaries[i+1] = Builder.narrowKey(elementaryEnds[i], hardMin);
+      }
+    } else {
+      narrowBoundaries = null;
+      boundaries = new long[elementaryEnds.length+1];
+      boundaries[0] = Long.MIN_VALUE;
+      System.arraycopy(elementaryEnds, 0, boundaries, 1, elementaryEnds.length);
     }
-    elementaryCounts = new int[boundaries.length];
+    elementaryCounts = new int[elementaryEnds.length+1];
     //System.out.println("boundaries=" + Arrays.toString(boundaries));
   }
 
   @Override
   public void add(long v) {
+    if (narrowBoundaries != null) {
+      addNarrow(Builder.narrowKey(v, hardMin));
+      return;
+    }
 
     // Binary search to find matched elementary range; we
     // are guaranteed to find a match because the last
@@ -67,6 +89,45 @@ class SimpleLongRangeCounter extends LongRangeCounter {
     elementaryCounts[1]++;
   }
 
+  private void addNarrow(int key) {
+    // Same as add, on the narrow keys:
+    int lo = 0;
+    int hi = narrowBoundaries.length - 1;
+    while (hi >= lo) {
+      int mid = (lo + hi) >>> 1;
+      if (key <= narrowBoundaries[mid]) {
+        hi = mid - 1;
+      } else if (key > narrowBoundaries[mid+1]) {
+        lo = mid + 1;
+      } else {
+        elementaryCounts[mid+1]++;
+        return;
+      }
+    }
+    assert lo == 0;
+    elementaryCounts[1]++;
+  }
+
+  /** If the values are sorted, counts them with a single
+   *  merge against the elementary intervals, else adds them
+   *  one by one. */
+  @Override
+  public void addAll(long[] values, int off, int len) {
+    if (off < 0 || len < 0 || off > values.length - len) {
+      throw new IndexOutOfBoundsException("off=" + off + " len=" + len + " values.length=" + values.length);
+    }
+    // Our elementaryCounts[0] is unused:
+    if (BaseLongRangeCounter.addSorted(elementaryEnds, values, off, off+len, elementaryCounts, 1) == false) {
+      super.addAll(values, off, len);
+    }
+  }
+
+  @Override
+  public PrefixCounts getPrefixCounts() {
+    // Our elementaryCounts[0] is unused:
+    return new PrefixCounts(hardMin, elementaryEnds, elementaryCounts, 1, null);
+  }
+
   @Override
   public int[] getCounts() {
     int[] counts = new int[numRanges];
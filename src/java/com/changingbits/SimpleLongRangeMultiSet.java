@@ -23,9 +23,13 @@ package com.changingbits;
 class SimpleLongRangeMultiSet extends LongRangeMultiSet {
 
   private final Node root;
+
+  // Min (inclusive) of each range, for lookupOverlapping:
+  private final long[] rangeMins;
     
-  SimpleLongRangeMultiSet(Node root) {
+  SimpleLongRangeMultiSet(Node root, long[] rangeMins) {
     this.root = root;
+    this.rangeMins = rangeMins;
   }
 
   @Override
@@ -49,4 +53,70 @@ class SimpleLongRangeMultiSet extends LongRangeMultiSet {
 
     return upto;
   }
+
+  @Override
+  public int firstMatch(long v) {
+    // Outputs are sorted, so the first one is the lowest:
+    int best = Integer.MAX_VALUE;
+    Node node = root;
+    while (node.hasOutputs) {
+      if (node.outputs != null) {
+        best = Math.min(best, node.outputs[0]);
+      }
+      if (node.left == null) {
+        break;
+      }
+      node = v <= node.left.end ? node.left : node.right;
+    }
+    return best == Integer.MAX_VALUE ? -1 : best;
+  }
+
+  @Override
+  public boolean matchesAny(long v) {
+    Node node = root;
+    while (node.hasOutputs) {
+      if (node.outputs != null) {
+        return true;
+      }
+      // We have no outputs, so some child does:
+      node = v <= node.left.end ? node.left : node.right;
+    }
+    return false;
+  }
+
+  @Override
+  public int lookupOverlapping(long a, long b, int[] answers) {
+    if (a > b || b < root.start || a > root.end) {
+      return 0;
+    }
+    return lookupOverlapping(root, a, b, answers, 0);
+  }
+
+  private int lookupOverlapping(Node node, long a, long b, int[] answers, int upto) {
+    if (node.outputs != null) {
+      // A range may be on several of the visited nodes, but
+      // only one of them holds max(a, range's min):
+      if (a >= node.start) {
+        for(int range : node.outputs) {
+          answers[upto++] = range;
+        }
+      } else {
+        for(int range : node.outputs) {
+          if (rangeMins[range] >= node.start) {
+            answers[upto++] = range;
+          }
+        }
+      }
+    }
+    if (node.left != null) {
+      if (a <= node.left.end) {
+        upto = lookupOverlapping(node.left, a, b, answers, upto);
+      }
+      if (b >= node.right.start) {
+        upto = lookupOverlapping(node.right, a, b, answers, upto);
+      }
+    }
+
+    return upto;
+  }
 }
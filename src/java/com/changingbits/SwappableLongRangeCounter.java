@@ -0,0 +1,230 @@
+package com.changingbits;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/** A {@link LongRangeCounter} whose underlying counter can
+ *  be replaced, e.g. when the ranges are reloaded, without
+ *  pausing the counting thread.  A replacement is built in
+ *  the background from a new {@link Builder} and queued;
+ *  the counting thread picks it up on its next call to
+ *  {@link #add} or {@link #getCounts}, at which point the
+ *  old counter is finished and its counts are handed to
+ *  the {@link Listener}, so nothing counted under the old
+ *  ranges is lost.
+ *
+ *  <p> A counter for the same ranges may instead be
+ *  adopted as an upgrade (see {@link Builder#getTieredCounter}),
+ *  in which case the old counts are carried forward into
+ *  {@link #getCounts} rather than handed to the listener.
+ *
+ *  <p> Like all counters, this is not thread safe: one
+ *  thread adds values, while any thread may request a
+ *  swap or rebuild.  The listener is invoked by the
+ *  counting thread. */
+
+public final class SwappableLongRangeCounter extends LongRangeCounter {
+
+  /** Receives the final counts of each counter that was
+   *  replaced. */
+  public interface Listener {
+    /** Called once per replaced counter; generation is 0
+     *  for the initial counter and increments with each
+     *  handover. */
+    void retired(long generation, int[] counts);
+  }
+
+  private static final class Pending {
+    final LongRangeCounter counter;
+    final boolean carryCounts;
+
+    Pending(LongRangeCounter counter, boolean carryCounts) {
+      this.counter = counter;
+      this.carryCounts = carryCounts;
+    }
+  }
+
+  private final Listener listener;
+  private final AtomicReference<Pending> pending = new AtomicReference<>();
+  private final AtomicLong nextTicket = new AtomicLong();
+
+  // Guarded by this:
+  private long offeredTicket;
+
+  // Only touched by the counting thread:
+  private LongRangeCounter current;
+  private int[] carried;
+  private PrefixCounts carriedPrefixCounts;
+
+  // Written only by the counting thread:
+  private volatile long generation;
+
+  /** Creates this; if listener is null, the counts of
+   *  replaced counters are discarded. */
+  public SwappableLongRangeCounter(LongRangeCounter initial, Listener listener) {
+    if (initial == null) {
+      throw new NullPointerException("initial must not be null");
+    }
+    this.current = initial;
+    this.listener = listener;
+    offeredTicket = nextTicket.incrementAndGet();
+  }
+
+  @Override
+  public void add(long v) {
+    if (pending.get() != null) {
+      handover();
+    }
+    current.add(v);
+  }
+
+  @Override
+  public void addAll(long[] values, int off, int len) {
+    if (pending.get() != null) {
+      handover();
+    }
+    current.addAll(values, off, len);
+  }
+
+  /** Returns the counts of the current counter, first
+   *  handing over to a pending replacement if there is
+   *  one. */
+  @Override
+  public int[] getCounts() {
+    if (pending.get() != null) {
+      handover();
+    }
+    return currentCounts();
+  }
+
+  /** Returns the generation of the current counter, i.e.
+   *  how many replacements (including upgrades) the
+   *  counting thread has adopted so far. */
+  public long getGeneration() {
+    return generation;
+  }
+
+  /** Queues the provided counter to replace the current
+   *  one on the next {@link #add} or {@link #getCounts}.
+   *  Returns false if a newer replacement was already
+   *  queued. */
+  public boolean swap(LongRangeCounter newCounter) {
+    if (newCounter == null) {
+      throw new NullPointerException("newCounter must not be null");
+    }
+    return offer(nextTicket.incrementAndGet(), newCounter, false);
+  }
+
+  /** Builds a new counter from the provided {@link
+   *  Builder} using the executor and queues it once it is
+   *  done.  The returned future is true if the counter was
+   *  queued, or false if a newer swap or rebuild won.  The
+   *  builder must not be used by any other thread until
+   *  the future is done. */
+  public Future<Boolean> rebuild(final Builder builder, final boolean useAsm, ExecutorService executor) {
+    final long ticket = nextTicket.incrementAndGet();
+    return executor.submit(new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+          return offer(ticket, builder.getCounter(useAsm), false);
+        }
+      });
+  }
+
+  /** Like {@link #rebuild}, except the builder must have
+   *  the same ranges as the current counter, which is
+   *  replaced by the faster {@link Builder#getCounter2}
+   *  counter and its counts carried forward. */
+  Future<Boolean> upgrade(final Builder builder, ExecutorService executor) {
+    final long ticket = nextTicket.incrementAndGet();
+    return executor.submit(new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+          return offer(ticket, builder.getCounter2(), true);
+        }
+      });
+  }
+
+  private synchronized boolean offer(long ticket, LongRangeCounter counter, boolean carryCounts) {
+    if (ticket < offeredTicket) {
+      return false;
+    }
+    offeredTicket = ticket;
+    // Replaces any not-yet-adopted counter; it has no
+    // counts yet so nothing is lost:
+    pending.set(new Pending(counter, carryCounts));
+    return true;
+  }
+
+  /** Returns the prefix counts of the current counter,
+   *  first handing over to a pending replacement if there
+   *  is one, plus any counts carried forward by an
+   *  upgrade. */
+  @Override
+  public PrefixCounts getPrefixCounts() {
+    if (pending.get() != null) {
+      handover();
+    }
+    return currentPrefixCounts();
+  }
+
+  private PrefixCounts currentPrefixCounts() {
+    PrefixCounts prefixCounts = current.getPrefixCounts();
+    if (carriedPrefixCounts != null) {
+      prefixCounts = prefixCounts.plus(carriedPrefixCounts);
+    }
+    return prefixCounts;
+  }
+
+  private int[] currentCounts() {
+    int[] counts = current.getCounts();
+    if (carried != null) {
+      for(int i=0;i<counts.length;i++) {
+        counts[i] += carried[i];
+      }
+    }
+    return counts;
+  }
+
+  private void handover() {
+    Pending next = pending.getAndSet(null);
+    if (next != null) {
+      int[] counts = currentCounts();
+      // Upgrades have the same elementary intervals:
+      PrefixCounts prefixCounts = next.carryCounts ? currentPrefixCounts() : null;
+      long retiredGeneration = generation;
+      current = next.counter;
+      generation = retiredGeneration+1;
+      if (next.carryCounts) {
+        carried = counts;
+        carriedPrefixCounts = prefixCounts;
+      } else {
+        carried = null;
+        carriedPrefixCounts = null;
+        if (listener != null) {
+          listener.retired(retiredGeneration, counts);
+        }
+      }
+    }
+  }
+}
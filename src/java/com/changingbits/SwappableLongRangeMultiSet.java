@@ -0,0 +1,151 @@
+package com.changingbits;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Holds the current {@link LongRangeMultiSet} and lets you
+ *  replace it, e.g. when the ranges are reloaded, without
+ *  ever blocking lookups.  Each lookup does a single
+ *  volatile read and then runs whichever implementation is
+ *  current; a replacement is built in the background from
+ *  a new {@link Builder} and published atomically once it
+ *  is ready (read-copy-update).
+ *
+ *  <p> Range indices returned by {@link #lookup} refer to
+ *  the ranges of whichever implementation served that
+ *  call; if you need several lookups to see the same
+ *  ranges, call {@link #current} once and use that. */
+
+public final class SwappableLongRangeMultiSet extends LongRangeMultiSet {
+
+  /** Notified each time a new implementation is
+   *  published. */
+  public interface Listener {
+    /** Called, by the thread that published it, right after
+     *  newSet starts serving lookups. */
+    void published(long generation, LongRangeMultiSet newSet);
+  }
+
+  private final Listener listener;
+
+  private volatile LongRangeMultiSet current;
+
+  // Increments for each swap/rebuild request, so an older
+  // rebuild that finishes late never replaces a newer one:
+  private final AtomicLong nextTicket = new AtomicLong();
+
+  // Guarded by this:
+  private long publishedTicket;
+  private long generation;
+
+  public SwappableLongRangeMultiSet(LongRangeMultiSet initial) {
+    this(initial, null);
+  }
+
+  /** Creates this, notifying the listener (if it is not
+   *  null) on each swap. */
+  public SwappableLongRangeMultiSet(LongRangeMultiSet initial, Listener listener) {
+    if (initial == null) {
+      throw new NullPointerException("initial must not be null");
+    }
+    this.listener = listener;
+    current = initial;
+    publishedTicket = nextTicket.incrementAndGet();
+  }
+
+  @Override
+  public int lookup(long v, int[] answers) {
+    return current.lookup(v, answers);
+  }
+
+  @Override
+  public int lookupOverlapping(long a, long b, int[] answers) {
+    return current.lookupOverlapping(a, b, answers);
+  }
+
+  @Override
+  public int firstMatch(long v) {
+    return current.firstMatch(v);
+  }
+
+  @Override
+  public boolean matchesAny(long v) {
+    return current.matchesAny(v);
+  }
+
+  /** Returns the implementation currently serving
+   *  lookups. */
+  public LongRangeMultiSet current() {
+    return current;
+  }
+
+  /** Returns how many times a new implementation was
+   *  published. */
+  public synchronized long getGeneration() {
+    return generation;
+  }
+
+  /** Immediately publishes the provided implementation,
+   *  returning the previous one. */
+  public LongRangeMultiSet swap(LongRangeMultiSet newSet) {
+    if (newSet == null) {
+      throw new NullPointerException("newSet must not be null");
+    }
+    return publish(nextTicket.incrementAndGet(), newSet);
+  }
+
+  /** Builds a new implementation from the provided {@link
+   *  Builder} using the executor, and publishes it once it
+   *  is done.  The returned future holds the implementation
+   *  that was replaced, or null if a newer swap or rebuild
+   *  was published first (in which case this result is
+   *  discarded).  The builder must not be used by any other
+   *  thread until the future is done. */
+  public Future<LongRangeMultiSet> rebuild(final Builder builder, final boolean useAsm, final boolean useArrayImpl, ExecutorService executor) {
+    final long ticket = nextTicket.incrementAndGet();
+    return executor.submit(new Callable<LongRangeMultiSet>() {
+        @Override
+        public LongRangeMultiSet call() {
+          return publish(ticket, builder.getMultiSet(useAsm, useArrayImpl));
+        }
+      });
+  }
+
+  private LongRangeMultiSet publish(long ticket, LongRangeMultiSet newSet) {
+    LongRangeMultiSet old;
+    long newGeneration;
+    synchronized(this) {
+      if (ticket < publishedTicket) {
+        // A newer implementation is already live:
+        return null;
+      }
+      publishedTicket = ticket;
+      newGeneration = ++generation;
+      old = current;
+      current = newSet;
+    }
+    if (listener != null) {
+      listener.published(newGeneration, newSet);
+    }
+    return old;
+  }
+}
@@ -0,0 +1,99 @@
+package com.changingbits;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.lang.management.ManagementFactory;
+import java.text.NumberFormat;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+// ant compile; javac -cp build/java src/test/com/changingbits/PerfTestBuild.java; java -Xmx8g -cp build/java:src/test:lib/asm-4.1.jar:lib/asm-commons-4.1.jar  com.changingbits.PerfTestBuild [rangeCount [threadCount]]
+
+/** Measures time and allocated bytes to build the tree for
+ *  many IPv4-like ranges. */
+public class PerfTestBuild {
+
+  private static int RANGE_COUNT = 1000000;
+  private static int ITERS = 5;
+
+  public static void main(String[] args) {
+    int rangeCount = RANGE_COUNT;
+    if (args.length > 0) {
+      rangeCount = Integer.parseInt(args[0]);
+    }
+    // If > 0, build in parallel with this many threads:
+    int threadCount = 0;
+    if (args.length > 1) {
+      threadCount = Integer.parseInt(args[1]);
+    }
+    ForkJoinPool pool = threadCount > 0 ? new ForkJoinPool(threadCount) : null;
+
+    Random r = new Random(17);
+    LongRange[] ranges = new LongRange[rangeCount];
+    for(int i=0;i<rangeCount;i++) {
+      // Like a CIDR block: random start, power of 2 size:
+      long min = r.nextInt() & 0xFFFFFFFFL;
+      long max = Math.min(0xFFFFFFFFL, min + (1L << r.nextInt(16)) - 1);
+      ranges[i] = new LongRange("range " + i, min, true, max, true);
+    }
+    System.out.println(rangeCount + " ranges, " + (pool == null ? "sequential" : threadCount + " threads"));
+
+    NumberFormat nf = NumberFormat.getInstance(Locale.ROOT);
+    nf.setMaximumFractionDigits(1);
+
+    long bestInit = Long.MAX_VALUE;
+    long bestFinish = Long.MAX_VALUE;
+    long initBytes = 0;
+    long finishBytes = 0;
+    for(int iter=0;iter<ITERS;iter++) {
+      long bytes0 = allocatedBytes();
+      long t0 = System.nanoTime();
+      Builder b = new Builder(ranges, 0, 0xFFFFFFFFL, pool);
+      long t1 = System.nanoTime();
+      long bytes1 = allocatedBytes();
+      b.getCounter(false);
+      long t2 = System.nanoTime();
+      long bytes2 = allocatedBytes();
+
+      initBytes = bytes1 - bytes0;
+      finishBytes = bytes2 - bytes1;
+      bestInit = Math.min(bestInit, t1-t0);
+      bestFinish = Math.min(bestFinish, t2-t1);
+      System.out.println(String.format(Locale.ROOT, "  iter %d: init %s msec, finish %s msec",
+                                       iter, nf.format((t1-t0)/1000000.0), nf.format((t2-t1)/1000000.0)));
+    }
+
+    System.out.println(String.format(Locale.ROOT, "  best: init %s msec (%s MB allocated), finish %s msec (%s MB allocated)",
+                                     nf.format(bestInit/1000000.0), nf.format(initBytes/1024./1024.),
+                                     nf.format(bestFinish/1000000.0), nf.format(finishBytes/1024./1024.)));
+    if (pool != null) {
+      pool.shutdown();
+    }
+  }
+
+  /** Bytes allocated so far by this thread, or 0 if the JVM
+   *  doesn't support measuring that. */
+  private static long allocatedBytes() {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return 0;
+  }
+}
@@ -0,0 +1,88 @@
+package com.changingbits;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Locale;
+import java.util.Random;
+
+// ant compile; javac -cp build/java src/test/com/changingbits/PerfTestCache.java; java -cp build/java:src/test:lib/asm-4.1.jar:lib/asm-commons-4.1.jar  com.changingbits.PerfTestCache [hotCount]
+
+/** Compares lookups with and without {@link
+ *  CachingLongRangeMultiSet}, for values drawn from a small
+ *  hot set, and for uniform values. */
+public class PerfTestCache {
+
+  private static int DATA_COUNT = 2000000;
+  private static int RANGE_COUNT = 1000;
+  private static int HOT_COUNT = 2000;
+  private static int MAX_VALUE = 1000000;
+  private static int ITERS = 20;
+
+  public static void main(String[] args) {
+    int hotCount = HOT_COUNT;
+    if (args.length > 0) {
+      hotCount = Integer.parseInt(args[0]);
+    }
+
+    Random r = new Random(17);
+    LongRange[] ranges = new LongRange[RANGE_COUNT];
+    for(int i=0;i<RANGE_COUNT;i++) {
+      long min = r.nextInt(MAX_VALUE);
+      ranges[i] = new LongRange("range " + i, min, true, min + r.nextInt(MAX_VALUE/RANGE_COUNT*4), true);
+    }
+
+    long[] hot = new long[hotCount];
+    for(int i=0;i<hotCount;i++) {
+      hot[i] = r.nextInt(MAX_VALUE);
+    }
+    long[] hotValues = new long[DATA_COUNT];
+    long[] uniformValues = new long[DATA_COUNT];
+    for(int i=0;i<DATA_COUNT;i++) {
+      hotValues[i] = hot[r.nextInt(hotCount)];
+      uniformValues[i] = r.nextInt(MAX_VALUE);
+    }
+    System.out.println(RANGE_COUNT + " ranges, " + hotCount + " hot values");
+
+    for(Builder.Engine engine : new Builder.Engine[] {Builder.Engine.SIMPLE, Builder.Engine.ASM}) {
+      LongRangeMultiSet set = new Builder(ranges, 0, MAX_VALUE).getMultiSet(engine);
+      CachingLongRangeMultiSet cached = new CachingLongRangeMultiSet(set);
+      System.out.println(String.format(Locale.ROOT, "  %s: hot %.1f vs %.1f cached; uniform %.1f vs %.1f cached mvals/sec",
+                                       engine, run(set, hotValues), run(cached, hotValues),
+                                       run(set, uniformValues), run(cached, uniformValues)));
+      System.out.println(String.format(Locale.ROOT, "    hit rate %.3f, bypassed %d times",
+                                       cached.getHitRate(), cached.getBypassCount()));
+    }
+  }
+
+  private static double run(LongRangeMultiSet set, long[] values) {
+    int[] answers = new int[RANGE_COUNT];
+    long best = Long.MAX_VALUE;
+    long sum = 0;
+    for(int iter=0;iter<ITERS;iter++) {
+      long t0 = System.nanoTime();
+      for(long v : values) {
+        sum += set.lookup(v, answers);
+      }
+      best = Math.min(best, System.nanoTime()-t0);
+    }
+    if (sum == 0) {
+      System.out.println("no matches");
+    }
+    return values.length / (best/1000.0);
+  }
+}
@@ -62,6 +62,16 @@ public class PerfTestCounter {
         System.out.println("  range " + i + ": " + ranges[i]);
       }
 
+      Builder auto = new Builder(ranges, 0, 10000);
+      for(int i=0;i<values.length;i+=100) {
+        auto.record(values[i]);
+      }
+      auto.setAutoCalibrate(true);
+      auto.getMultiSet(Builder.Engine.AUTO);
+      System.out.println("\n" + auto.getAutoDiagnostic());
+      auto.getCounter(Builder.Engine.AUTO);
+      System.out.println(auto.getAutoDiagnostic());
+
       System.out.println("\nTEST: java segment tree");
       testSegmentTree(values, ranges, false, false);
       // Always slower than java segment tree:
@@ -0,0 +1,84 @@
+package com.changingbits;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Locale;
+import java.util.Random;
+
+// ant compile; javac -cp build/java src/test/com/changingbits/PerfTestHybrid.java; java -cp build/java:src/test:lib/asm-4.1.jar:lib/asm-commons-4.1.jar  com.changingbits.PerfTestHybrid [rangeCount]
+
+/** Compares the hybrid engine against the others, for many
+ *  ranges and skewed values. */
+public class PerfTestHybrid {
+
+  private static int DATA_COUNT = 2000000;
+  private static int RANGE_COUNT = 5000;
+  private static int MAX_VALUE = 1000000;
+  private static int ITERS = 20;
+
+  public static void main(String[] args) {
+    int rangeCount = RANGE_COUNT;
+    if (args.length > 0) {
+      rangeCount = Integer.parseInt(args[0]);
+    }
+
+    Random r = new Random(17);
+    LongRange[] ranges = new LongRange[rangeCount];
+    for(int i=0;i<rangeCount;i++) {
+      long min = r.nextInt(MAX_VALUE);
+      ranges[i] = new LongRange("range " + i, min, true, min + r.nextInt(MAX_VALUE/rangeCount*4), true);
+    }
+
+    // 90% of values fall in 1% of the space:
+    long[] values = new long[DATA_COUNT];
+    for(int i=0;i<values.length;i++) {
+      if (r.nextInt(10) != 0) {
+        values[i] = MAX_VALUE/2 + r.nextInt(MAX_VALUE/100);
+      } else {
+        values[i] = r.nextInt(MAX_VALUE);
+      }
+    }
+    System.out.println(rangeCount + " ranges");
+
+    for(Builder.Engine engine : new Builder.Engine[] {Builder.Engine.SIMPLE, Builder.Engine.ARRAY, Builder.Engine.ASM, Builder.Engine.HYBRID}) {
+      Builder b = new Builder(ranges, 0, 2*MAX_VALUE);
+      if (engine != Builder.Engine.ARRAY) {
+        b.recordAll(values, 0, values.length);
+      }
+      LongRangeMultiSet set;
+      try {
+        set = b.getMultiSet(engine);
+      } catch (RuntimeException re) {
+        // E.g. the compiled tree exceeds the 64KB method limit:
+        System.out.println("  " + engine + ": failed: " + re);
+        continue;
+      }
+      int[] answers = new int[ranges.length];
+      long best = Long.MAX_VALUE;
+      long sum = 0;
+      for(int iter=0;iter<ITERS;iter++) {
+        long t0 = System.nanoTime();
+        for(long v : values) {
+          sum += set.lookup(v, answers);
+        }
+        best = Math.min(best, System.nanoTime()-t0);
+      }
+      System.out.println(String.format(Locale.ROOT, "  %s: %.1f mvals/sec (sum=%d)", engine, DATA_COUNT / (best/1000.0), sum));
+    }
+  }
+}
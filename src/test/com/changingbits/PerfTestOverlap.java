@@ -0,0 +1,72 @@
+package com.changingbits;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Locale;
+import java.util.Random;
+
+// ant compile; javac -cp build/java src/test/com/changingbits/PerfTestOverlap.java; java -cp build/java:src/test:lib/asm-4.1.jar:lib/asm-commons-4.1.jar  com.changingbits.PerfTestOverlap [rangeCount]
+
+/** Compares lookupOverlapping across engines, against a
+ *  linear scan of the ranges, for time-window like
+ *  queries. */
+public class PerfTestOverlap {
+
+  private static int QUERY_COUNT = 200000;
+  private static int RANGE_COUNT = 1000;
+  private static int MAX_VALUE = 1000000;
+  private static int ITERS = 20;
+
+  public static void main(String[] args) {
+    int rangeCount = RANGE_COUNT;
+    if (args.length > 0) {
+      rangeCount = Integer.parseInt(args[0]);
+    }
+
+    Random r = new Random(17);
+    LongRange[] ranges = new LongRange[rangeCount];
+    for(int i=0;i<rangeCount;i++) {
+      long min = r.nextInt(MAX_VALUE);
+      ranges[i] = new LongRange("range " + i, min, true, min + r.nextInt(MAX_VALUE/rangeCount*4), true);
+    }
+
+    // Short windows:
+    long[] as = new long[QUERY_COUNT];
+    long[] bs = new long[QUERY_COUNT];
+    for(int i=0;i<QUERY_COUNT;i++) {
+      as[i] = r.nextInt(MAX_VALUE);
+      bs[i] = as[i] + r.nextInt(MAX_VALUE/1000);
+    }
+    System.out.println(rangeCount + " ranges");
+
+    for(Builder.Engine engine : new Builder.Engine[] {Builder.Engine.LINEAR, Builder.Engine.SIMPLE, Builder.Engine.ARRAY, Builder.Engine.ASM}) {
+      LongRangeMultiSet set = new Builder(ranges, 0, 2*MAX_VALUE).getMultiSet(engine);
+      int[] answers = new int[ranges.length];
+      long best = Long.MAX_VALUE;
+      long sum = 0;
+      for(int iter=0;iter<ITERS;iter++) {
+        long t0 = System.nanoTime();
+        for(int i=0;i<QUERY_COUNT;i++) {
+          sum += set.lookupOverlapping(as[i], bs[i], answers);
+        }
+        best = Math.min(best, System.nanoTime()-t0);
+      }
+      System.out.println(String.format(Locale.ROOT, "  %s: %.2f mqueries/sec (sum=%d)", engine, QUERY_COUNT / (best/1000.0), sum));
+    }
+  }
+}
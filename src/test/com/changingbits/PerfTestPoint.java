@@ -0,0 +1,86 @@
+package com.changingbits;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Locale;
+import java.util.Random;
+
+// ant compile; javac -cp build/java src/test/com/changingbits/PerfTestPoint.java; java -cp build/java:src/test:lib/asm-4.1.jar:lib/asm-commons-4.1.jar  com.changingbits.PerfTestPoint [rangeCount]
+
+/** Compares the point engine against the others, for many
+ *  single value ranges (e.g. enum codes) plus a few
+ *  intervals. */
+public class PerfTestPoint {
+
+  private static int DATA_COUNT = 2000000;
+  private static int RANGE_COUNT = 2000;
+  private static int MAX_VALUE = 1000000;
+  private static int ITERS = 20;
+
+  public static void main(String[] args) {
+    int rangeCount = RANGE_COUNT;
+    if (args.length > 0) {
+      rangeCount = Integer.parseInt(args[0]);
+    }
+
+    Random r = new Random(17);
+    LongRange[] ranges = new LongRange[rangeCount];
+    for(int i=0;i<rangeCount;i++) {
+      long min = r.nextInt(MAX_VALUE);
+      if (i < 10) {
+        ranges[i] = new LongRange("range " + i, min, true, min + r.nextInt(MAX_VALUE/10), true);
+      } else {
+        ranges[i] = new LongRange("point " + i, min, true, min, true);
+      }
+    }
+
+    // Half the values hit a point:
+    long[] values = new long[DATA_COUNT];
+    for(int i=0;i<values.length;i++) {
+      if (r.nextBoolean()) {
+        values[i] = ranges[r.nextInt(rangeCount)].minIncl;
+      } else {
+        values[i] = r.nextInt(MAX_VALUE);
+      }
+    }
+    System.out.println(rangeCount + " ranges");
+
+    for(Builder.Engine engine : new Builder.Engine[] {Builder.Engine.SIMPLE, Builder.Engine.ARRAY, Builder.Engine.ASM, Builder.Engine.POINT}) {
+      Builder b = new Builder(ranges, 0, 2*MAX_VALUE);
+      LongRangeMultiSet set;
+      try {
+        set = b.getMultiSet(engine);
+      } catch (RuntimeException re) {
+        // E.g. the compiled tree exceeds the 64KB method limit:
+        System.out.println("  " + engine + ": failed: " + re);
+        continue;
+      }
+      int[] answers = new int[ranges.length];
+      long best = Long.MAX_VALUE;
+      long sum = 0;
+      for(int iter=0;iter<ITERS;iter++) {
+        long t0 = System.nanoTime();
+        for(long v : values) {
+          sum += set.lookup(v, answers);
+        }
+        best = Math.min(best, System.nanoTime()-t0);
+      }
+      System.out.println(String.format(Locale.ROOT, "  %s: %.1f mvals/sec (sum=%d)", engine, DATA_COUNT / (best/1000.0), sum));
+    }
+  }
+}
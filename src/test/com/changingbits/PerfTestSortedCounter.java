@@ -0,0 +1,77 @@
+package com.changingbits;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+// ant compile; javac -cp build/java src/test/com/changingbits/PerfTestSortedCounter.java; java -Xmx4g -cp build/java:src/test:lib/asm-4.1.jar:lib/asm-commons-4.1.jar  com.changingbits.PerfTestSortedCounter [valueCount]
+
+/** Compares counting a sorted column with {@link
+ *  LongRangeCounter#addAll} against adding each value. */
+public class PerfTestSortedCounter {
+
+  private static int VALUE_COUNT = 20000000;
+  private static int RANGE_COUNT = 1000;
+  private static int MAX_VALUE = 1000000;
+  private static int ITERS = 5;
+
+  public static void main(String[] args) {
+    int valueCount = VALUE_COUNT;
+    if (args.length > 0) {
+      valueCount = Integer.parseInt(args[0]);
+    }
+
+    Random r = new Random(17);
+    LongRange[] ranges = new LongRange[RANGE_COUNT];
+    for(int i=0;i<RANGE_COUNT;i++) {
+      long min = r.nextInt(MAX_VALUE);
+      ranges[i] = new LongRange("range " + i, min, true, min + r.nextInt(MAX_VALUE/RANGE_COUNT*4), true);
+    }
+
+    long[] values = new long[valueCount];
+    for(int i=0;i<valueCount;i++) {
+      values[i] = r.nextInt(MAX_VALUE);
+    }
+    Arrays.sort(values);
+    System.out.println(valueCount + " sorted values, " + RANGE_COUNT + " ranges");
+
+    for(Builder.Engine engine : new Builder.Engine[] {Builder.Engine.SIMPLE, Builder.Engine.ASM}) {
+      for(boolean bulk : new boolean[] {false, true}) {
+        long best = Long.MAX_VALUE;
+        int[] counts = null;
+        for(int iter=0;iter<ITERS;iter++) {
+          LongRangeCounter c = new Builder(ranges, 0, MAX_VALUE).getCounter(engine);
+          long t0 = System.nanoTime();
+          if (bulk) {
+            c.addAll(values, 0, values.length);
+          } else {
+            for(long v : values) {
+              c.add(v);
+            }
+          }
+          best = Math.min(best, System.nanoTime()-t0);
+          counts = c.getCounts();
+        }
+        System.out.println(String.format(Locale.ROOT, "  %s %s: %.1f msec (counts[0]=%d)",
+                                         engine, bulk ? "addAll" : "add", best/1000000.0, counts[0]));
+      }
+    }
+  }
+}
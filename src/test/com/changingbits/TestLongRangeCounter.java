@@ -17,12 +17,18 @@ package com.changingbits;
  * limitations under the License.
  */
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 public class TestLongRangeCounter {
@@ -186,6 +192,538 @@ public class TestLongRangeCounter {
     }
   }
 
+  @Test
+  public void testSwap() throws Exception {
+    LongRange[] ranges1 = new LongRange[] {
+        new LongRange("a", 0, true, 10, false),
+        new LongRange("b", 5, true, 20, false),
+      };
+    LongRange[] ranges2 = new LongRange[] {
+        new LongRange("c", 100, true, 200, false),
+        new LongRange("d", 0, true, 150, false),
+        new LongRange("e", 50, true, 60, true),
+      };
+
+    final List<int[]> retired = new ArrayList<>();
+    SwappableLongRangeCounter c = new SwappableLongRangeCounter(new Builder(ranges1).getCounter(random.nextBoolean()),
+                                                                new SwappableLongRangeCounter.Listener() {
+                                                                  @Override
+                                                                  public void retired(long generation, int[] counts) {
+                                                                    assertEquals(retired.size(), generation);
+                                                                    retired.add(counts);
+                                                                  }
+                                                                });
+
+    int[] expected1 = new int[ranges1.length];
+    for(int i=0;i<200;i++) {
+      long v = random.nextInt(300) - 50;
+      c.add(v);
+      count(ranges1, expected1, v);
+    }
+
+    ExecutorService exec = Executors.newSingleThreadExecutor();
+    try {
+      assertTrue(c.rebuild(new Builder(ranges2), random.nextBoolean(), exec).get());
+    } finally {
+      exec.shutdown();
+    }
+
+    // Not handed over until the counting thread calls in:
+    assertEquals(0, retired.size());
+    assertEquals(0, c.getGeneration());
+
+    int[] expected2 = new int[ranges2.length];
+    for(int i=0;i<200;i++) {
+      long v = random.nextInt(300) - 50;
+      c.add(v);
+      count(ranges2, expected2, v);
+    }
+    assertEquals(1, c.getGeneration());
+    assertEquals(1, retired.size());
+    assertTrue(Arrays.equals(expected1, retired.get(0)));
+    assertTrue(Arrays.equals(expected2, c.getCounts()));
+
+    // Swap back, handing over on getCounts:
+    assertTrue(c.swap(new Builder(ranges1).getCounter2()));
+    assertTrue(Arrays.equals(new int[ranges1.length], c.getCounts()));
+    assertEquals(2, retired.size());
+    assertTrue(Arrays.equals(expected2, retired.get(1)));
+  }
+
+  @Test
+  public void testTiered() throws Exception {
+    LongRange[] ranges = new LongRange[] {
+        new LongRange("a", 0, true, 10, false),
+        new LongRange("b", 0, true, 20, false),
+        new LongRange("c", 10, true, 30, false),
+        new LongRange("d", 15, true, 50, false),
+      };
+    Builder b = new Builder(ranges);
+    maybeTrain(b, 0, 100);
+
+    ExecutorService exec = Executors.newSingleThreadExecutor();
+    SwappableLongRangeCounter c = b.getTieredCounter(exec, null);
+    int[] expected = new int[ranges.length];
+    for(int i=0;i<200;i++) {
+      long v = random.nextInt(100) - 20;
+      c.add(v);
+      count(ranges, expected, v);
+    }
+    exec.shutdown();
+    assertTrue(exec.awaitTermination(1, TimeUnit.MINUTES));
+    for(int i=0;i<200;i++) {
+      long v = random.nextInt(100) - 20;
+      c.add(v);
+      count(ranges, expected, v);
+    }
+    assertEquals(1, c.getGeneration());
+    assertTrue(Arrays.equals(expected, c.getCounts()));
+  }
+
+  @Test
+  public void testEngines() {
+    LongRange[] ranges = new LongRange[] {
+        new LongRange("a", 0, true, 10, false),
+        new LongRange("b", 0, true, 20, false),
+        new LongRange("c", 10, true, 30, false),
+        new LongRange("d", 15, true, 50, false),
+      };
+    for(Builder.Engine engine : Builder.Engine.values()) {
+      Builder b = new Builder(ranges, -100, 100);
+      maybeTrain(b, -100, 100);
+      if (engine == Builder.Engine.LINEAR || engine == Builder.Engine.ARRAY || engine == Builder.Engine.HYBRID) {
+        try {
+          b.getCounter(engine);
+          assertTrue("expected exception", false);
+        } catch (IllegalArgumentException iae) {
+          // expected
+        }
+        continue;
+      }
+      b.setAutoCalibrate(random.nextBoolean());
+      LongRangeCounter c = b.getCounter(engine);
+      if (engine == Builder.Engine.AUTO) {
+        assertTrue(b.getAutoDiagnostic(), b.getAutoDiagnostic().startsWith("AUTO chose "));
+      } else {
+        assertEquals(null, b.getAutoDiagnostic());
+      }
+      int[] expected = new int[ranges.length];
+      for(int i=0;i<200;i++) {
+        long v = random.nextInt(200) - 100;
+        c.add(v);
+        count(ranges, expected, v);
+      }
+      assertTrue(Arrays.equals(expected, c.getCounts()));
+    }
+  }
+
+  @Test
+  public void testNarrowKeys() {
+    long hardMin = Integer.MAX_VALUE;
+    long hardMax = hardMin + 0xFFFFFFFFL;
+    LongRange[] ranges = new LongRange[10];
+    for(int i=0;i<ranges.length;i++) {
+      long min = hardMin + (random.nextLong() & 0xFFFFFFFFL);
+      long max = Math.min(hardMax, min + (random.nextLong() & 0x7FFFFFFFL));
+      ranges[i] = new LongRange("r" + i, min, random.nextBoolean(), max, random.nextBoolean());
+    }
+    for(Builder.Engine engine : new Builder.Engine[] {Builder.Engine.SIMPLE, Builder.Engine.ASM, Builder.Engine.ASM_FIELDS}) {
+      Builder b = new Builder(ranges, hardMin, hardMax);
+      b.setNarrowKeys(random.nextBoolean());
+      LongRangeCounter c = b.getCounter(engine);
+      int[] expected = new int[ranges.length];
+      for(int i=0;i<200;i++) {
+        long v;
+        if (random.nextBoolean()) {
+          v = hardMin + (random.nextLong() & 0xFFFFFFFFL);
+        } else {
+          // Near a range's ends, or the bounds:
+          LongRange range = ranges[random.nextInt(ranges.length)];
+          v = random.nextBoolean() ? range.minIncl : range.maxIncl;
+          v += random.nextInt(3) - 1;
+          v = Math.max(hardMin, Math.min(hardMax, v));
+        }
+        c.add(v);
+        count(ranges, expected, v);
+      }
+      assertTrue(Arrays.equals(expected, c.getCounts()));
+    }
+  }
+
+  @Test
+  public void testIntRanges() {
+    IntRange[] ranges = new IntRange[1+random.nextInt(20)];
+    LongRange[] longRanges = new LongRange[ranges.length];
+    for(int i=0;i<ranges.length;i++) {
+      int min = random.nextInt();
+      int max = (int) Math.min(Integer.MAX_VALUE, (long) min + random.nextInt(Integer.MAX_VALUE));
+      ranges[i] = new IntRange("r" + i, min, random.nextBoolean(), max, random.nextBoolean());
+      longRanges[i] = ranges[i].toLongRange();
+    }
+    int[] values = new int[1000];
+    int[] expected = new int[ranges.length];
+    for(int i=0;i<values.length;i++) {
+      if (random.nextBoolean()) {
+        values[i] = random.nextInt();
+      } else {
+        // Near a range's ends:
+        IntRange range = ranges[random.nextInt(ranges.length)];
+        values[i] = (random.nextBoolean() ? range.minIncl : range.maxIncl) + random.nextInt(3) - 1;
+      }
+      count(longRanges, expected, values[i]);
+    }
+    for(Builder.Engine engine : new Builder.Engine[] {Builder.Engine.SIMPLE, Builder.Engine.ASM, Builder.Engine.ASM_FIELDS, Builder.Engine.AUTO}) {
+      IntRangeCounter c = new Builder(ranges).getIntCounter(engine);
+      // Add in random chunks:
+      int upto = 0;
+      while (upto < values.length) {
+        int len = Math.min(values.length - upto, random.nextInt(100));
+        if (len == 1) {
+          c.add(values[upto]);
+        } else {
+          c.addAll(values, upto, len);
+        }
+        upto += len;
+      }
+      assertTrue("engine=" + engine, Arrays.equals(expected, c.getCounts()));
+    }
+  }
+
+  @Test
+  public void testAddAll() {
+    int iters = atLeast(10);
+    for(int iter=0;iter<iters;iter++) {
+      LongRange[] ranges = new LongRange[1+random.nextInt(30)];
+      for(int i=0;i<ranges.length;i++) {
+        long min = random.nextInt(1000);
+        long max = min + random.nextInt(random.nextBoolean() ? 10 : 500);
+        ranges[i] = new LongRange("r" + i, min, random.nextBoolean(), max, random.nextBoolean());
+      }
+      long[] values = new long[random.nextInt(5000)];
+      for(int i=0;i<values.length;i++) {
+        // Lots of duplicates, and values on the boundaries:
+        if (random.nextBoolean()) {
+          LongRange range = ranges[random.nextInt(ranges.length)];
+          values[i] = random.nextBoolean() ? range.minIncl : range.maxIncl;
+        } else {
+          values[i] = random.nextInt(random.nextBoolean() ? 50 : 2001);
+        }
+      }
+      boolean sorted = random.nextInt(4) != 0;
+      if (sorted) {
+        Arrays.sort(values);
+      }
+      int[] expected = new int[ranges.length];
+      for(long v : values) {
+        count(ranges, expected, v);
+      }
+      for(Builder.Engine engine : new Builder.Engine[] {Builder.Engine.SIMPLE, Builder.Engine.ASM, Builder.Engine.ASM_FIELDS}) {
+        Builder b = new Builder(ranges, 0, 2000);
+        b.setNarrowKeys(random.nextBoolean());
+        LongRangeCounter c = b.getCounter(engine);
+        if (random.nextBoolean()) {
+          c = new SwappableLongRangeCounter(c, null);
+        }
+        // Add in random chunks (each is sorted too):
+        int upto = 0;
+        while (upto < values.length) {
+          int len = Math.min(values.length - upto, random.nextBoolean() ? random.nextInt(10) : random.nextInt(values.length+1));
+          c.addAll(values, upto, len);
+          upto += len;
+        }
+        assertTrue("engine=" + engine + " sorted=" + sorted, Arrays.equals(expected, c.getCounts()));
+      }
+    }
+  }
+
+  @Test
+  public void testFused() {
+    int iters = atLeast(10);
+    for(int iter=0;iter<iters;iter++) {
+      int numFacets = 1+random.nextInt(4);
+      int numRows = random.nextInt(3000);
+      LongRange[][] facetRanges = new LongRange[numFacets][];
+      long[][] columns = new long[numFacets][];
+      Builder[] builders = new Builder[numFacets];
+      for(int facet=0;facet<numFacets;facet++) {
+        LongRange[] ranges = new LongRange[1+random.nextInt(30)];
+        for(int i=0;i<ranges.length;i++) {
+          long min = random.nextInt(1000);
+          long max = min + random.nextInt(random.nextBoolean() ? 10 : 500);
+          ranges[i] = new LongRange("r" + i, min, random.nextBoolean(), max, random.nextBoolean());
+        }
+        facetRanges[facet] = ranges;
+        columns[facet] = new long[numRows];
+        for(int i=0;i<numRows;i++) {
+          columns[facet][i] = random.nextInt(2001);
+        }
+        // Wide bounds disable narrow keys:
+        builders[facet] = new Builder(ranges, 0, random.nextBoolean() ? 2000 : Long.MAX_VALUE);
+      }
+      FusedLongRangeCounter c = Builder.getFusedCounter(random.nextBoolean(), builders);
+      assertEquals(numFacets, c.getFacetCount());
+      // Add in random chunks:
+      int upto = 0;
+      while (upto < numRows) {
+        int len = Math.min(numRows - upto, random.nextInt(500));
+        c.addAll(columns, upto, len);
+        upto += len;
+      }
+      for(int facet=0;facet<numFacets;facet++) {
+        int[] expected = new int[facetRanges[facet].length];
+        for(long v : columns[facet]) {
+          count(facetRanges[facet], expected, v);
+        }
+        assertTrue("facet=" + facet, Arrays.equals(expected, c.getCounts(facet)));
+      }
+    }
+  }
+
+  @Test
+  public void testMultiValued() {
+    int iters = atLeast(10);
+    for(int iter=0;iter<iters;iter++) {
+      LongRange[] ranges = new LongRange[1+random.nextInt(30)];
+      for(int i=0;i<ranges.length;i++) {
+        long min = random.nextInt(1000);
+        long max = min + random.nextInt(random.nextBoolean() ? 10 : 500);
+        ranges[i] = new LongRange("r" + i, min, random.nextBoolean(), max, random.nextBoolean());
+      }
+      Builder b = new Builder(ranges, 0, 2000);
+      if (random.nextBoolean()) {
+        // The tree is already built, not as ARRAY needs it:
+        b.getCounter(random.nextBoolean() ? Builder.Engine.AUTO : Builder.Engine.SIMPLE);
+      }
+      MultiValuedLongRangeCounter c = b.getMultiValuedCounter();
+      int[] expected = new int[ranges.length];
+      int numDocs = random.nextInt(500);
+      for(int doc=0;doc<numDocs;doc++) {
+        // Values are often close, so they share ranges:
+        long[] values = new long[random.nextInt(10)];
+        long base = random.nextInt(2001);
+        for(int i=0;i<values.length;i++) {
+          values[i] = Math.min(2000, base + random.nextInt(random.nextBoolean() ? 20 : 600));
+        }
+        for(int range=0;range<ranges.length;range++) {
+          for(long v : values) {
+            if (ranges[range].accept(v)) {
+              expected[range]++;
+              break;
+            }
+          }
+        }
+        if (random.nextBoolean()) {
+          c.addDoc(values, 0, values.length);
+        } else {
+          c.startDoc();
+          for(long v : values) {
+            c.add(v);
+          }
+          c.endDoc();
+        }
+      }
+      assertTrue(Arrays.equals(expected, c.getCounts()));
+    }
+  }
+
+  @Test
+  public void testPrefixCounts() throws InterruptedException {
+    int iters = atLeast(10);
+    for(int iter=0;iter<iters;iter++) {
+      LongRange[] ranges = new LongRange[1+random.nextInt(20)];
+      for(int i=0;i<ranges.length;i++) {
+        long min = random.nextInt(1000);
+        long max = random.nextInt(4) == 0 ? min : min + random.nextInt(200);
+        ranges[i] = new LongRange("r" + i, min, true, max, true);
+      }
+      long[] values = new long[1000];
+      for(int i=0;i<values.length;i++) {
+        values[i] = random.nextInt(1201);
+      }
+      for(String name : new String[] {"SIMPLE", "ASM", "ASM_FIELDS", "AUTO", "POINT", "caching", "tiered"}) {
+        Builder b = new Builder(ranges, 0, 1200);
+        LongRangeCounter c;
+        // True if every interval is counted:
+        boolean exact = name.equals("SIMPLE");
+        if (name.equals("caching")) {
+          exact = random.nextBoolean();
+          c = b.getCachingCounter(exact ? Builder.Engine.SIMPLE : Builder.Engine.POINT, 16, 0.5);
+        } else if (name.equals("tiered")) {
+          ExecutorService exec = Executors.newSingleThreadExecutor();
+          c = b.getTieredCounter(exec, null);
+          for(int i=0;i<values.length/2;i++) {
+            c.add(values[i]);
+          }
+          exec.shutdown();
+          assertTrue(exec.awaitTermination(1, TimeUnit.MINUTES));
+        } else {
+          c = b.getCounter(Builder.Engine.valueOf(name));
+        }
+        for(int i=name.equals("tiered") ? values.length/2 : 0;i<values.length;i++) {
+          c.add(values[i]);
+        }
+        PrefixCounts prefixCounts = c.getPrefixCounts();
+        long[] ends = b.getElementaryBoundaries();
+
+        for(int i=0;i<100;i++) {
+          // Any span of elementary intervals:
+          int start = random.nextInt(ends.length);
+          int end = start + random.nextInt(ends.length - start);
+          long min = start == 0 ? 0 : ends[start-1]+1;
+          long max = ends[end];
+          if (prefixCounts.isAligned(min, max) == false) {
+            // The point engine's intervals are only split by
+            // the other ranges:
+            assertTrue(name, name.equals("POINT") || name.equals("AUTO") || name.equals("caching"));
+            try {
+              prefixCounts.getCount(min, max);
+              assertTrue("expected exception", false);
+            } catch (IllegalArgumentException iae) {
+              // expected
+            }
+            continue;
+          }
+          long expected = 0;
+          for(long v : values) {
+            if (v >= min && v <= max) {
+              expected++;
+            }
+          }
+          long actual;
+          try {
+            actual = prefixCounts.getCount(min, max);
+          } catch (IllegalArgumentException iae) {
+            // The compiled counters skip intervals no range
+            // covers:
+            assertTrue(name, exact == false);
+            continue;
+          }
+          assertEquals(expected, actual);
+        }
+
+        // The original ranges are always aligned:
+        int[] counts = c.getCounts();
+        for(int i=0;i<ranges.length;i++) {
+          assertEquals(counts[i], prefixCounts.getCount(ranges[i]));
+        }
+
+        if (exact) {
+          assertEquals(values.length, prefixCounts.getTotalCount());
+        }
+
+        // Misaligned:
+        long v = ranges[0].minIncl + 1;
+        if (v <= ranges[0].maxIncl && prefixCounts.isAligned(v, ranges[0].maxIncl) == false) {
+          try {
+            prefixCounts.getCount(v, ranges[0].maxIncl);
+            assertTrue("expected exception", false);
+          } catch (IllegalArgumentException iae) {
+            // expected
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testNested() {
+    // Like SLO buckets: latency <= X:
+    LongRange[] ranges = new LongRange[500];
+    for(int i=0;i<ranges.length;i++) {
+      ranges[i] = new LongRange("<= " + i, 0, true, random.nextInt(10000), true);
+    }
+    Builder b = new Builder(ranges, 0, 20000);
+    assertTrue(b.isNested());
+    // Summing every covered leaf per range would be too
+    // large for getCounts:
+    LongRangeCounter c = b.getCounter(Builder.Engine.ASM_FIELDS);
+    int[] expected = new int[ranges.length];
+    for(int i=0;i<1000;i++) {
+      long v = random.nextInt(20001);
+      c.add(v);
+      count(ranges, expected, v);
+    }
+    assertTrue(Arrays.equals(expected, c.getCounts()));
+  }
+
+  @Test
+  public void testPoints() {
+    LongRange[] ranges = new LongRange[1+random.nextInt(500)];
+    for(int i=0;i<ranges.length;i++) {
+      long min = random.nextLong();
+      if (random.nextInt(20) == 0) {
+        ranges[i] = new LongRange("r" + i, min, true, min + (random.nextLong() >>> 8), true);
+      } else {
+        ranges[i] = new LongRange("p" + i, min, true, min, true);
+      }
+    }
+    for(Builder.Engine engine : new Builder.Engine[] {Builder.Engine.SIMPLE, Builder.Engine.ASM, Builder.Engine.ASM_FIELDS}) {
+      LongRangeCounter c = new Builder(ranges).getPointCounter(engine);
+      int[] expected = new int[ranges.length];
+      long[] values = new long[1000];
+      for(int i=0;i<values.length;i++) {
+        values[i] = random.nextBoolean() ? ranges[random.nextInt(ranges.length)].minIncl : random.nextLong();
+        count(ranges, expected, values[i]);
+      }
+      if (random.nextBoolean()) {
+        Arrays.sort(values);
+      }
+      c.addAll(values, 0, values.length);
+      assertTrue("engine=" + engine, Arrays.equals(expected, c.getCounts()));
+    }
+  }
+
+  @Test
+  public void testCaching() {
+    LongRange[] ranges = new LongRange[1+random.nextInt(100)];
+    for(int i=0;i<ranges.length;i++) {
+      long min = random.nextInt(10000);
+      long max = min + random.nextInt(random.nextBoolean() ? 100 : 5000);
+      ranges[i] = new LongRange("r" + i, min, random.nextBoolean(), max, random.nextBoolean());
+    }
+    long[] hot = new long[8];
+    for(int i=0;i<hot.length;i++) {
+      hot[i] = random.nextInt(20001);
+    }
+    for(Builder.Engine engine : new Builder.Engine[] {Builder.Engine.SIMPLE, Builder.Engine.ASM, Builder.Engine.ASM_FIELDS, Builder.Engine.POINT}) {
+      CachingLongRangeCounter c = new Builder(ranges, 0, 20000).getCachingCounter(engine, 1024, 0.5);
+      int[] expected = new int[ranges.length];
+      // Hot values, then values that don't repeat (which
+      // turn off the cache), then hot values again:
+      for(int phase=0;phase<3;phase++) {
+        for(int i=0;i<3*CachingLongRangeMultiSet.WINDOW;i++) {
+          long v = phase == 1 ? random.nextInt(20001) : hot[random.nextInt(hot.length)];
+          count(ranges, expected, v);
+          c.add(v);
+        }
+        if (phase == 1) {
+          assertTrue(c.isBypassed());
+        }
+      }
+      assertTrue(c.getBypassCount() > 0);
+      assertTrue(c.getHitRate() > 0.5);
+
+      long[] values = new long[1000];
+      for(int i=0;i<values.length;i++) {
+        values[i] = random.nextInt(20001);
+        count(ranges, expected, values[i]);
+      }
+      if (random.nextBoolean()) {
+        Arrays.sort(values);
+      }
+      c.addAll(values, 0, values.length);
+      assertTrue("engine=" + engine, Arrays.equals(expected, c.getCounts()));
+    }
+  }
+
+  private static void count(LongRange[] ranges, int[] counts, long v) {
+    for(int j=0;j<ranges.length;j++) {
+      if (ranges[j].accept(v)) {
+        counts[j]++;
+      }
+    }
+  }
+
   private void doRandomRanges(LongRange[] ranges, Builder b, long min, long max) {
 
     for(int iter=0;iter<10;iter++) {
@@ -17,12 +17,26 @@ package com.changingbits;
  * limitations under the License.
  */
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class TestLongRangeMultiSet {
@@ -133,6 +147,973 @@ public class TestLongRangeMultiSet {
     verify(ranges, set, 0);
   }
 
+  @Test
+  public void testEdgeRanges() {
+    LongRange[] ranges = new LongRange[] {
+        new LongRange("a", 0, true, 4, true),
+        // Starts right after a ends, and is a single point:
+        new LongRange("b", 5, true, 5, true),
+        // Empty:
+        new LongRange("c", 7, false, 8, false),
+        new LongRange("d", 5, true, 10, true),
+        new LongRange("e", 10, true, 10, true),
+      };
+    for(int iter=0;iter<4;iter++) {
+      LongRangeMultiSet set = new Builder(ranges, -5, 20).getMultiSet((iter & 1) != 0, (iter & 2) != 0);
+      for(long x = -5; x <= 20; x++) {
+        verify(ranges, set, x);
+      }
+    }
+
+    // hardMin == hardMax:
+    ranges = new LongRange[] {
+      new LongRange("a", 5, true, 5, true)};
+    LongRangeMultiSet set = new Builder(ranges, 5, 5).getMultiSet(random.nextBoolean(), random.nextBoolean());
+    verify(ranges, set, 5);
+    set = new Builder(new LongRange[0], 5, 5).getMultiSet(random.nextBoolean(), random.nextBoolean());
+    verify(new LongRange[0], set, 5);
+  }
+
+  @Test
+  public void testRecordAll() throws Exception {
+    LongRange[] ranges = new LongRange[50];
+    for(int i=0;i<ranges.length;i++) {
+      long min = random.nextInt(1000);
+      ranges[i] = new LongRange("r" + i, min, true, min + random.nextInt(100), true);
+    }
+    final long[] values = new long[10000];
+    for(int i=0;i<values.length;i++) {
+      // Skewed:
+      values[i] = random.nextInt(1 + random.nextInt(1100));
+    }
+
+    int sampleInterval = 1+random.nextInt(5);
+    Builder b1 = new Builder(ranges, 0, 1100);
+    b1.setTrainingSampleInterval(sampleInterval);
+    for(long v : values) {
+      b1.record(v);
+    }
+
+    // Same values, in random sized chunks, split across 2
+    // threads:
+    final Builder b2 = new Builder(ranges, 0, 1100);
+    b2.setTrainingSampleInterval(sampleInterval);
+    final ElementaryHistogram h1 = b2.newHistogram();
+    final ElementaryHistogram h2 = b2.newHistogram();
+    assertEquals(sampleInterval, h1.getSampleInterval());
+    final int half = sampleInterval * (values.length / sampleInterval / 2);
+    Thread t = new Thread() {
+        @Override
+        public void run() {
+          recordChunks(h2, values, half, values.length);
+        }
+      };
+    t.start();
+    recordChunks(h1, values, 0, half);
+    t.join();
+    b2.recordAll(h1);
+    b2.recordAll(h2);
+
+    assertEquals(values.length / sampleInterval, h1.getCount() + h2.getCount());
+    assertTrue(Arrays.equals(b1.getLeafDepths(), b2.getLeafDepths()));
+
+    try {
+      b2.recordAll(new Builder(ranges, 0, 1100).newHistogram());
+      assertTrue("expected exception", false);
+    } catch (IllegalStateException ise) {
+      // expected: b2 is finished
+    }
+    try {
+      new Builder(ranges, 0, 1100).recordAll(h1);
+      assertTrue("expected exception", false);
+    } catch (IllegalArgumentException iae) {
+      // expected: different builder
+    }
+  }
+
+  @Test
+  public void testSaveTrainingData() throws Exception {
+    LongRange[] ranges = new LongRange[20];
+    for(int i=0;i<ranges.length;i++) {
+      long min = random.nextInt(1000);
+      ranges[i] = new LongRange("r" + i, min, true, min + random.nextInt(100), true);
+    }
+    Builder b1 = new Builder(ranges, 0, 1100);
+    long[] values = new long[5000];
+    for(int i=0;i<values.length;i++) {
+      values[i] = random.nextInt(1 + random.nextInt(1100));
+    }
+    b1.recordAll(values, 0, values.length);
+    int[] depths = b1.getLeafDepths();
+
+    // Saved after building: building must not have changed
+    // the counts:
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    b1.writeTrainingData(new DataOutputStream(bytes));
+
+    // Same ranges: same tree:
+    Builder b2 = new Builder(ranges, 0, 1100);
+    b2.readTrainingData(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    assertTrue(Arrays.equals(depths, b2.getLeafDepths()));
+
+    // Changed ranges: counts are spread over the new
+    // intervals, without losing any:
+    LongRange[] ranges2 = Arrays.copyOf(ranges, ranges.length+1);
+    ranges2[ranges.length] = new LongRange("new", 17, true, 555, false);
+    Builder b3 = new Builder(ranges2, 0, 1100);
+    ElementaryHistogram h = b3.newHistogram();
+    h.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    assertEquals(values.length, h.getCount());
+    b3.recordAll(h);
+    for(long v=0;v<=1100;v++) {
+      verify(ranges2, b3.getMultiSet(false, false), v);
+    }
+
+    // Narrower bounds, ending on a saved boundary: counts
+    // outside are dropped:
+    long[] ends = b1.getElementaryBoundaries();
+    long max = ends[ends.length/2];
+    Builder b4 = new Builder(new LongRange[0], 0, max);
+    h = b4.newHistogram();
+    h.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    long expected = 0;
+    for(long v : values) {
+      if (v <= max) {
+        expected++;
+      }
+    }
+    assertEquals(expected, h.getCount());
+
+    // Full long range round trips too:
+    Builder b5 = new Builder(ranges);
+    b5.record(Long.MIN_VALUE);
+    b5.record(Long.MAX_VALUE);
+    b5.record(17);
+    bytes = new ByteArrayOutputStream();
+    b5.writeTrainingData(new DataOutputStream(bytes));
+    h = new Builder(ranges).newHistogram();
+    h.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    assertEquals(3, h.getCount());
+  }
+
+  private void recordChunks(ElementaryHistogram h, long[] values, int start, int end) {
+    // Not the test's Random, since this runs in 2 threads:
+    Random r = new Random(start);
+    int upto = start;
+    while (upto < end) {
+      int len = Math.min(end - upto, r.nextInt(100));
+      h.recordAll(values, upto, len);
+      upto += len;
+    }
+  }
+
+  @Test
+  public void testEngines() {
+    LongRange[] ranges = new LongRange[] {
+        new LongRange("a", 0, true, 10, false),
+        new LongRange("b", 0, true, 20, false),
+        new LongRange("c", 10, true, 30, false),
+        new LongRange("d", 15, true, 50, false),
+      };
+    for(Builder.Engine engine : Builder.Engine.values()) {
+      Builder b = new Builder(ranges, -100, 100);
+      if (engine == Builder.Engine.ASM_FIELDS) {
+        try {
+          b.getMultiSet(engine);
+          assertTrue("expected exception", false);
+        } catch (IllegalArgumentException iae) {
+          // expected
+        }
+        continue;
+      }
+      if (engine != Builder.Engine.ARRAY) {
+        for(int i=0;i<100;i++) {
+          b.record(random.nextInt(200) - 100);
+        }
+      }
+      b.setAutoCalibrate(random.nextBoolean());
+      LongRangeMultiSet set = b.getMultiSet(engine);
+      for(long v=-100;v<=100;v++) {
+        verify(ranges, set, v);
+      }
+    }
+  }
+
+  @Test
+  public void testAutoEngine() {
+    // Few ranges: scanning them all is cheapest:
+    LongRange[] ranges = new LongRange[] {
+      new LongRange("a", 0, true, 10, false)};
+    Builder b = new Builder(ranges, 0, 100);
+    b.getMultiSet(Builder.Engine.AUTO);
+    assertTrue(b.getAutoDiagnostic(), b.getAutoDiagnostic().startsWith("AUTO chose LINEAR "));
+
+    // Many disjoint ranges: a tree wins:
+    ranges = new LongRange[200];
+    for(int i=0;i<ranges.length;i++) {
+      ranges[i] = new LongRange("r" + i, 10*i, true, 10*i+5, true);
+    }
+    b = new Builder(ranges, 0, 2000);
+    LongRangeMultiSet set = b.getMultiSet(Builder.Engine.AUTO);
+    assertTrue(b.getAutoDiagnostic(), b.getAutoDiagnostic().startsWith("AUTO chose ASM "));
+    for(long v=0;v<=2000;v++) {
+      verify(ranges, set, v);
+    }
+
+    // So many that the compiled tree is too large to JIT:
+    ranges = new LongRange[5000];
+    for(int i=0;i<ranges.length;i++) {
+      ranges[i] = new LongRange("r" + i, 10*i, true, 10*i+5, true);
+    }
+    b = new Builder(ranges, 0, 50000);
+    set = b.getMultiSet(Builder.Engine.AUTO);
+    assertTrue(b.getAutoDiagnostic(), b.getAutoDiagnostic().startsWith("AUTO chose HYBRID "));
+    for(int i=0;i<1000;i++) {
+      verify(ranges, set, random.nextInt(50001));
+    }
+  }
+
+  @Test
+  public void testNarrowKeys() {
+    // Span is exactly 2^32 values, from a negative base:
+    long hardMin = -5000000000L;
+    long hardMax = hardMin + 0xFFFFFFFFL;
+    LongRange[] ranges = new LongRange[10];
+    long[] points = new long[4*ranges.length+2];
+    points[0] = hardMin;
+    points[1] = hardMax;
+    for(int i=0;i<ranges.length;i++) {
+      long min = hardMin + (random.nextLong() & 0xFFFFFFFFL);
+      long max = Math.min(hardMax, min + (random.nextLong() & 0x7FFFFFFFL));
+      ranges[i] = new LongRange("r" + i, min, true, max, true);
+      points[4*i+2] = min;
+      points[4*i+3] = max;
+      points[4*i+4] = Math.max(hardMin, min-1);
+      points[4*i+5] = Math.min(hardMax, max+1);
+    }
+    for(boolean narrow : new boolean[] {false, true}) {
+      Builder b = new Builder(ranges, hardMin, hardMax);
+      b.setNarrowKeys(narrow);
+      assertEquals(narrow, b.useNarrowKeys());
+      for(Builder.Engine engine : new Builder.Engine[] {Builder.Engine.SIMPLE, Builder.Engine.ASM, Builder.Engine.HYBRID}) {
+        LongRangeMultiSet set = engine == Builder.Engine.HYBRID ? b.getHybridMultiSet(random.nextInt(100)) : b.getMultiSet(engine);
+        for(long v : points) {
+          verify(ranges, set, v);
+        }
+      }
+      Builder arrayBuilder = new Builder(ranges, hardMin, hardMax);
+      arrayBuilder.setNarrowKeys(narrow);
+      LongRangeMultiSet set = arrayBuilder.getMultiSet(Builder.Engine.ARRAY);
+      for(long v : points) {
+        verify(ranges, set, v);
+      }
+
+      // Retraining keeps the setting:
+      assertEquals(narrow, b.retrain(new long[b.getElementaryBoundaries().length]).useNarrowKeys());
+    }
+
+    // One more value does not fit:
+    assertTrue(new Builder(ranges, hardMin, hardMax).useNarrowKeys());
+    assertTrue(new Builder(ranges, hardMin, hardMax+1).useNarrowKeys() == false);
+    assertTrue(new Builder(ranges).useNarrowKeys() == false);
+  }
+
+  @Test
+  public void testIntRanges() {
+    int iters = atLeast(10);
+    for(int iter=0;iter<iters;iter++) {
+      // Sometimes bounded, sometimes the full int range:
+      int hardMin = random.nextBoolean() ? Integer.MIN_VALUE : random.nextInt(1000) - 500;
+      int hardMax = random.nextBoolean() ? Integer.MAX_VALUE : hardMin + random.nextInt(100000);
+      long span = (long) hardMax - hardMin;
+      IntRange[] ranges = new IntRange[1+random.nextInt(30)];
+      int[] points = new int[2*ranges.length+2];
+      points[0] = hardMin;
+      points[1] = hardMax;
+      for(int i=0;i<ranges.length;i++) {
+        int min = (int) (hardMin + (random.nextLong() & Long.MAX_VALUE) % (span+1));
+        int max = (int) Math.min(hardMax, min + (random.nextLong() & Long.MAX_VALUE) % (span/4+1));
+        ranges[i] = new IntRange("r" + i, min, random.nextBoolean(), max, random.nextBoolean());
+        points[2*i+2] = min;
+        points[2*i+3] = max;
+      }
+      LongRange[] longRanges = new LongRange[ranges.length];
+      for(int i=0;i<ranges.length;i++) {
+        longRanges[i] = ranges[i].toLongRange();
+      }
+      for(Builder.Engine engine : Builder.Engine.values()) {
+        if (engine == Builder.Engine.ASM_FIELDS) {
+          continue;
+        }
+        IntRangeMultiSet set = new Builder(ranges, hardMin, hardMax).getIntMultiSet(engine);
+        for(int v : points) {
+          verify(longRanges, set, v);
+          if (v > hardMin) {
+            verify(longRanges, set, v-1);
+          }
+          if (v < hardMax) {
+            verify(longRanges, set, v+1);
+          }
+        }
+      }
+    }
+
+    // Bounds must fit in an int:
+    try {
+      new Builder(new LongRange[0], 0, 1L << 32).getIntMultiSet(Builder.Engine.ASM);
+      assertTrue("expected exception", false);
+    } catch (IllegalStateException ise) {
+      // expected
+    }
+  }
+
+  private void verify(LongRange[] ranges, final IntRangeMultiSet set, final int v) {
+    // Check the int lookup as if it were a long one:
+    verify(ranges, new LongRangeMultiSet() {
+        @Override
+        public int lookup(long unused, int[] answers) {
+          return set.lookup(v, answers);
+        }
+
+        @Override
+        public int lookupOverlapping(long a, long b, int[] answers) {
+          // Not used by verify:
+          throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int firstMatch(long unused) {
+          // Not used by verify:
+          throw new UnsupportedOperationException();
+        }
+      }, v);
+  }
+
+  private static final double[] SPECIAL_DOUBLES = new double[] {
+    Double.NEGATIVE_INFINITY, -Double.MAX_VALUE, -1.0, -Double.MIN_VALUE, -0.0,
+    0.0, Double.MIN_VALUE, 1.0, Double.MAX_VALUE, Double.POSITIVE_INFINITY};
+
+  private double randomDouble() {
+    if (random.nextInt(4) == 0) {
+      return SPECIAL_DOUBLES[random.nextInt(SPECIAL_DOUBLES.length)];
+    } else {
+      return random.nextInt(21) - 10 + (random.nextBoolean() ? 0.5 : 0.0);
+    }
+  }
+
+  @Test
+  public void testDoubleRanges() {
+    int iters = atLeast(10);
+    for(int iter=0;iter<iters;iter++) {
+      DoubleRange[] ranges = new DoubleRange[1+random.nextInt(20)];
+      for(int i=0;i<ranges.length;i++) {
+        double a = randomDouble();
+        double b = randomDouble();
+        ranges[i] = new DoubleRange("r" + i, Math.min(a, b), random.nextBoolean(), Math.max(a, b), random.nextBoolean());
+      }
+      double[] values = new double[200];
+      for(int i=0;i<values.length;i++) {
+        values[i] = random.nextInt(10) == 0 ? Double.NaN : randomDouble();
+      }
+      long[] keys = new long[values.length];
+      DoubleRange.toSortableLongs(values, 0, values.length, keys, 0);
+      Builder.Engine engine = random.nextBoolean() ? Builder.Engine.ASM : Builder.Engine.SIMPLE;
+      LongRangeMultiSet set = new Builder(ranges).getMultiSet(engine);
+      int[] answers = new int[ranges.length];
+      for(int i=0;i<values.length;i++) {
+        assertEquals(DoubleRange.toSortableLong(values[i]), keys[i]);
+        int count = set.lookup(keys[i], answers);
+        Arrays.sort(answers, 0, count);
+        int upto = 0;
+        for(int j=0;j<ranges.length;j++) {
+          // Compare to plain double comparisons:
+          DoubleRange range = ranges[j];
+          boolean expected = (range.minInclusive ? values[i] >= range.min : values[i] > range.min) &&
+            (range.maxInclusive ? values[i] <= range.max : values[i] < range.max);
+          assertEquals(expected, range.accept(values[i]));
+          if (expected) {
+            assertTrue("v=" + values[i] + " range=" + range, upto < count && answers[upto] == j);
+            upto++;
+          }
+        }
+        assertEquals("v=" + values[i], upto, count);
+      }
+    }
+
+    try {
+      new DoubleRange("nan", Double.NaN, true, 1.0, true);
+      assertTrue("expected exception", false);
+    } catch (IllegalArgumentException iae) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testFloatRanges() {
+    FloatRange[] ranges = new FloatRange[] {
+      new FloatRange("negative", Float.NEGATIVE_INFINITY, true, 0.0f, false),
+      new FloatRange("zero", -0.0f, true, 0.0f, true),
+      new FloatRange("unit", 0.0f, false, 1.0f, true),
+      new FloatRange("above unit", 1.0f, false, Float.POSITIVE_INFINITY, true),
+      new FloatRange("empty", Float.POSITIVE_INFINITY, false, Float.POSITIVE_INFINITY, true),
+    };
+    float[] values = new float[] {Float.NEGATIVE_INFINITY, -1.0f, -Float.MIN_VALUE, -0.0f, 0.0f,
+                                  Float.MIN_VALUE, 1.0f, Math.nextUp(1.0f), Float.POSITIVE_INFINITY, Float.NaN};
+    int[][] expected = new int[][] {{0}, {0}, {0}, {1}, {1}, {2}, {2}, {3}, {3}, {}};
+    int[] keys = new int[values.length];
+    FloatRange.toSortableInts(values, 0, values.length, keys, 0);
+    for(Builder.Engine engine : new Builder.Engine[] {Builder.Engine.SIMPLE, Builder.Engine.ARRAY, Builder.Engine.ASM}) {
+      IntRangeMultiSet set = new Builder(ranges).getIntMultiSet(engine);
+      int[] answers = new int[ranges.length];
+      for(int i=0;i<values.length;i++) {
+        int count = set.lookup(keys[i], answers);
+        assertTrue("v=" + values[i], Arrays.equals(expected[i], Arrays.copyOf(answers, count)));
+      }
+    }
+  }
+
+  @Test
+  public void testLookupOverlapping() {
+    int iters = atLeast(20);
+    for(int iter=0;iter<iters;iter++) {
+      LongRange[] ranges = new LongRange[1+random.nextInt(50)];
+      for(int i=0;i<ranges.length;i++) {
+        long min = random.nextInt(1000);
+        long max = min + random.nextInt(random.nextBoolean() ? 20 : 500);
+        ranges[i] = new LongRange("r" + i, min, random.nextBoolean(), max, random.nextBoolean());
+      }
+      LongRangeMultiSet linear = new LinearLongRangeMultiSet(ranges);
+      for(Builder.Engine engine : new Builder.Engine[] {Builder.Engine.SIMPLE, Builder.Engine.ARRAY, Builder.Engine.ASM,
+                                                        Builder.Engine.HYBRID, Builder.Engine.POINT, Builder.Engine.AUTO}) {
+        Builder b = new Builder(ranges, 0, 2000);
+        b.setNarrowKeys(random.nextBoolean());
+        LongRangeMultiSet set = b.getMultiSet(engine);
+        if (random.nextBoolean()) {
+          set = new SwappableLongRangeMultiSet(set);
+        }
+        for(int i=0;i<200;i++) {
+          // May extend past hardMin/hardMax:
+          long a = random.nextInt(2201) - 100;
+          long c = random.nextInt(5) == 0 ? a : random.nextInt(2201) - 100;
+          verifyOverlapping(ranges, set, Math.min(a, c), Math.max(a, c));
+        }
+        // Empty interval:
+        assertEquals(0, set.lookupOverlapping(10, 9, new int[ranges.length]));
+      }
+      for(int i=0;i<20;i++) {
+        long a = random.nextInt(2001);
+        verifyOverlapping(ranges, linear, a, a + random.nextInt(100));
+      }
+    }
+
+  }
+
+  @Test
+  public void testLookupOverlappingManyRanges() {
+    // ASM can still compile lookup, but not
+    // lookupOverlapping:
+    verifyOverlappingManyRanges(720 + random.nextInt(60), Builder.Engine.ASM);
+    // AUTO picks HYBRID:
+    verifyOverlappingManyRanges(2000 + random.nextInt(2000), Builder.Engine.HYBRID);
+    verifyOverlappingManyRanges(2000 + random.nextInt(2000), Builder.Engine.AUTO);
+  }
+
+  private void verifyOverlappingManyRanges(int numRanges, Builder.Engine engine) {
+    LongRange[] ranges = new LongRange[numRanges];
+    for(int i=0;i<ranges.length;i++) {
+      long min = random.nextInt(1000000);
+      ranges[i] = new LongRange("r" + i, min, true, min + random.nextInt(100000), true);
+    }
+    LongRangeMultiSet set = new Builder(ranges).getMultiSet(engine);
+    for(int i=0;i<20;i++) {
+      long a = random.nextInt(1100000);
+      verifyOverlapping(ranges, set, a, a + random.nextInt(1000));
+    }
+  }
+
+  private void verifyOverlapping(LongRange[] ranges, LongRangeMultiSet set, long a, long b) {
+    int[] answers = new int[ranges.length];
+    int count = set.lookupOverlapping(a, b, answers);
+    int[] actual = Arrays.copyOf(answers, count);
+    Arrays.sort(actual);
+
+    int expectedCount = 0;
+    for(int i=0;i<ranges.length;i++) {
+      LongRange range = ranges[i];
+      long lo = Math.max(a, range.minIncl);
+      long hi = Math.min(b, range.maxIncl);
+      if (lo <= hi) {
+        answers[expectedCount++] = i;
+      }
+    }
+    int[] expected = Arrays.copyOf(answers, expectedCount);
+    assertTrue("a=" + a + " b=" + b + " expected=" + Arrays.toString(expected) + " vs actual=" + Arrays.toString(actual),
+               Arrays.equals(expected, actual));
+  }
+
+  @Test
+  public void testNested() {
+    int iters = atLeast(10);
+    for(int iter=0;iter<iters;iter++) {
+      long start = random.nextInt(100);
+      LongRange[] ranges = new LongRange[1+random.nextInt(30)];
+      for(int i=0;i<ranges.length;i++) {
+        if (random.nextInt(10) == 0) {
+          ranges[i] = new LongRange("empty" + i, start+5, false, start+5, false);
+        } else {
+          ranges[i] = new LongRange("r" + i, start, true, start + random.nextInt(1000), true);
+        }
+      }
+      ranges[0] = new LongRange("r0", start, true, start + random.nextInt(1000), true);
+      Builder b = new Builder(ranges, 0, 2000);
+      assertTrue(b.isNested());
+      NestedLongRangeMultiSet set = b.getNestedMultiSet();
+      int[] span = new int[2];
+      for(int i=0;i<200;i++) {
+        long v = random.nextInt(2001);
+        verify(ranges, set, v);
+        verifyFirstMatch(ranges, set, v);
+        int count = set.lookupSpan(v, span);
+        assertEquals(span[1] - span[0], count);
+        int[] fromSpan = new int[count];
+        for(int j=0;j<count;j++) {
+          fromSpan[j] = set.getRangeIndex(span[0] + j);
+        }
+        int[] answers = new int[ranges.length];
+        assertEquals(count, set.lookup(v, answers));
+        assertTrue(Arrays.equals(fromSpan, Arrays.copyOf(answers, count)));
+
+        long a = random.nextInt(2001);
+        long c = random.nextInt(2001);
+        verifyOverlapping(ranges, set, Math.min(a, c), Math.max(a, c));
+      }
+    }
+
+    LongRange[] ranges = new LongRange[] {
+      new LongRange("a", 0, true, 10, true),
+      new LongRange("b", 1, true, 10, true)};
+    assertTrue(new Builder(ranges).isNested() == false);
+  }
+
+  @Test
+  public void testPoints() {
+    int iters = atLeast(10);
+    for(int iter=0;iter<iters;iter++) {
+      // Mostly points, some shared, plus a few intervals:
+      LongRange[] ranges = new LongRange[1+random.nextInt(500)];
+      for(int i=0;i<ranges.length;i++) {
+        long min = random.nextInt(100000) - 50000;
+        if (random.nextInt(10) == 0) {
+          ranges[i] = new LongRange("r" + i, min, true, min + random.nextInt(5000), random.nextBoolean());
+        } else {
+          if (i > 0 && random.nextInt(10) == 0) {
+            min = ranges[random.nextInt(i)].minIncl;
+          }
+          ranges[i] = new LongRange("p" + i, min, true, min, true);
+        }
+      }
+      Builder b = new Builder(ranges, -100000, 100000);
+      if (random.nextBoolean()) {
+        for(int i=0;i<100;i++) {
+          b.record(random.nextInt(200001) - 100000);
+        }
+      }
+      Builder.Engine engine = random.nextBoolean() ? Builder.Engine.SIMPLE : Builder.Engine.ASM;
+      LongRangeMultiSet set = b.getPointMultiSet(engine);
+      for(int i=0;i<500;i++) {
+        long v;
+        if (random.nextBoolean()) {
+          v = ranges[random.nextInt(ranges.length)].minIncl;
+        } else {
+          v = random.nextInt(200001) - 100000;
+        }
+        verify(ranges, set, v);
+        long a = random.nextInt(200001) - 100000;
+        verifyOverlapping(ranges, set, a, a + random.nextInt(1000));
+      }
+    }
+  }
+
+  @Test
+  public void testHybrid() {
+    int iters = atLeast(20);
+    for(int iter=0;iter<iters;iter++) {
+      int numRanges = 1+random.nextInt(300);
+      LongRange[] ranges = new LongRange[numRanges];
+      for(int i=0;i<numRanges;i++) {
+        long min = random.nextInt(10000);
+        long max = min + random.nextInt(random.nextBoolean() ? 100 : 5000);
+        ranges[i] = new LongRange("r" + i, min, random.nextBoolean(), max, random.nextBoolean());
+      }
+      Builder b = new Builder(ranges, 0, 20000);
+      if (random.nextBoolean()) {
+        // Skewed training:
+        for(int i=0;i<1000;i++) {
+          b.record(random.nextInt(1+random.nextInt(20000)));
+        }
+      }
+      // From only the root compiled, to everything:
+      int maxCodeBytes = random.nextBoolean() ? random.nextInt(500) : random.nextInt(100000);
+      LongRangeMultiSet set = b.getHybridMultiSet(maxCodeBytes);
+      for(int i=0;i<500;i++) {
+        verify(ranges, set, random.nextInt(20001));
+      }
+    }
+  }
+
+  @Test
+  public void testFirstMatch() {
+    int iters = atLeast(20);
+    for(int iter=0;iter<iters;iter++) {
+      int numRanges = 1+random.nextInt(200);
+      // Sometimes disjoint, like buckets:
+      boolean disjoint = random.nextBoolean();
+      LongRange[] ranges = new LongRange[numRanges];
+      for(int i=0;i<numRanges;i++) {
+        long min;
+        long max;
+        if (disjoint) {
+          min = 50*i + random.nextInt(20);
+          max = min + random.nextInt(30);
+        } else {
+          min = random.nextInt(10000);
+          max = min + random.nextInt(random.nextInt(3) == 0 ? 1 : 3000);
+        }
+        ranges[i] = new LongRange("r" + i, min, random.nextBoolean(), max, random.nextBoolean());
+      }
+      // Wide bounds disable narrow keys:
+      long hardMax = random.nextBoolean() ? 20000 : Long.MAX_VALUE;
+      for(Builder.Engine engine : new Builder.Engine[] {Builder.Engine.LINEAR, Builder.Engine.SIMPLE, Builder.Engine.ARRAY,
+                                                        Builder.Engine.ASM, Builder.Engine.HYBRID, Builder.Engine.POINT}) {
+        Builder b = new Builder(ranges, 0, hardMax);
+        if (random.nextBoolean()) {
+          for(int i=0;i<1000;i++) {
+            b.record(random.nextInt(1+random.nextInt(20000)));
+          }
+        }
+        LongRangeMultiSet set = b.getMultiSet(engine);
+        if (random.nextBoolean()) {
+          set = new CachingLongRangeMultiSet(set);
+        }
+        for(int i=0;i<500;i++) {
+          verifyFirstMatch(ranges, set, random.nextInt(20001));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testFirstMatchManyRanges() {
+    // Disjoint buckets; AUTO picks HYBRID, whose firstMatch
+    // is too large to compile:
+    LongRange[] ranges = new LongRange[5000 + random.nextInt(1000)];
+    for(int i=0;i<ranges.length;i++) {
+      ranges[i] = new LongRange("r" + i, i*100, true, i*100+50, true);
+    }
+    for(Builder.Engine engine : new Builder.Engine[] {Builder.Engine.HYBRID, Builder.Engine.AUTO}) {
+      LongRangeMultiSet set = new Builder(ranges).getMultiSet(engine);
+      verifyFirstMatch(ranges, set, 500000);
+      for(int i=0;i<200;i++) {
+        verifyFirstMatch(ranges, set, random.nextInt(100*ranges.length + 100) - 50);
+      }
+    }
+  }
+
+  private void verifyFirstMatch(LongRange[] ranges, LongRangeMultiSet set, long v) {
+    int expected = -1;
+    for(int i=0;i<ranges.length;i++) {
+      if (ranges[i].accept(v)) {
+        expected = i;
+        break;
+      }
+    }
+    assertEquals("v=" + v, expected, set.firstMatch(v));
+    assertEquals("v=" + v, expected != -1, set.matchesAny(v));
+  }
+
+  @Test
+  public void testFilter() {
+    int iters = atLeast(20);
+    for(int iter=0;iter<iters;iter++) {
+      // Sometimes few enough pieces to filter branchless:
+      int numRanges = 1+random.nextInt(random.nextBoolean() ? 6 : 200);
+      LongRange[] ranges = new LongRange[numRanges];
+      for(int i=0;i<numRanges;i++) {
+        long min = random.nextInt(10000);
+        long max = min + random.nextInt(random.nextInt(3) == 0 ? 1 : 3000);
+        ranges[i] = new LongRange("r" + i, min, random.nextBoolean(), max, random.nextBoolean());
+      }
+      // Wide bounds disable narrow keys, and allow pieces
+      // wider than Long.MAX_VALUE:
+      long hardMin = random.nextBoolean() ? 0 : Long.MIN_VALUE;
+      long hardMax = random.nextBoolean() ? 20000 : Long.MAX_VALUE;
+      Builder b = new Builder(ranges, hardMin, hardMax);
+      LongRangeFilter filter = b.getFilter(random.nextBoolean());
+      int len = random.nextInt(300);
+      int off = random.nextInt(10);
+      long[] values = new long[off+len+random.nextInt(10)];
+      for(int i=0;i<values.length;i++) {
+        values[i] = random.nextInt(20001);
+      }
+      long[] bits = new long[(len+63)/64 + random.nextInt(3)];
+      Arrays.fill(bits, -1L);
+      int count = filter.filter(values, off, len, bits);
+      int expectedCount = 0;
+      for(int i=0;i<len;i++) {
+        long v = values[off+i];
+        boolean expected = false;
+        for(LongRange range : ranges) {
+          expected |= range.accept(v);
+        }
+        assertEquals("v=" + v, expected, filter.accept(v));
+        assertEquals("v=" + v, expected, (bits[i>>>6] & (1L << i)) != 0);
+        if (expected) {
+          expectedCount++;
+        }
+      }
+      assertEquals(expectedCount, count);
+      if ((len & 63) != 0) {
+        // Bits past len are cleared:
+        assertEquals(0, bits[len>>>6] >>> (len & 63));
+      }
+    }
+  }
+
+  @Test
+  public void testMask() {
+    int numRanges = 1+random.nextInt(200);
+    LongRange[] ranges = new LongRange[numRanges];
+    for(int i=0;i<numRanges;i++) {
+      long min = random.nextInt(10000);
+      long max = min + random.nextInt(random.nextInt(3) == 0 ? 1 : 3000);
+      ranges[i] = new LongRange("r" + i, min, random.nextBoolean(), max, random.nextBoolean());
+    }
+    long[] mask = new long[(numRanges+63)/64];
+    Arrays.fill(mask, -1L);
+    MaskedLongRangeMultiSet set = new Builder(ranges, 0, 20000).getMaskedMultiSet(mask);
+    int[] answers = new int[numRanges];
+    int iters = atLeast(20);
+    for(int iter=0;iter<iters;iter++) {
+      // Sometimes almost nothing is active:
+      int activePct = random.nextBoolean() ? 5 : 50;
+      for(int i=0;i<numRanges;i++) {
+        if (random.nextInt(100) < activePct) {
+          mask[i>>>6] |= 1L << i;
+        } else {
+          mask[i>>>6] &= ~(1L << i);
+        }
+      }
+      set = set.withMask(mask);
+      LongRangeCounter counter = set.getCounter();
+      int[] expectedCounts = new int[numRanges];
+      for(int i=0;i<200;i++) {
+        long v = random.nextInt(20001);
+        counter.add(v);
+        int count = set.lookup(v, answers);
+        Arrays.sort(answers, 0, count);
+        int upto = 0;
+        int first = -1;
+        for(int range=0;range<numRanges;range++) {
+          if (ranges[range].accept(v) && set.isActive(range)) {
+            assertTrue(upto < count);
+            assertEquals(range, answers[upto++]);
+            expectedCounts[range]++;
+            if (first == -1) {
+              first = range;
+            }
+          }
+        }
+        assertEquals(upto, count);
+        assertEquals(first, set.firstMatch(v));
+        assertEquals(first != -1, set.matchesAny(v));
+      }
+      assertEquals(Arrays.toString(expectedCounts), Arrays.toString(counter.getCounts()));
+      PrefixCounts prefixCounts = counter.getPrefixCounts();
+      assertEquals(200, prefixCounts.getTotalCount());
+      for(int range=0;range<numRanges;range++) {
+        if (set.isActive(range)) {
+          assertEquals(expectedCounts[range], prefixCounts.getCount(ranges[range]));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testMaskAfterOtherEngines() {
+    LongRange[] ranges = new LongRange[1+random.nextInt(200)];
+    for(int i=0;i<ranges.length;i++) {
+      long min = random.nextInt(10000);
+      ranges[i] = new LongRange("r" + i, min, true, min + random.nextInt(3000), true);
+    }
+    long[] mask = new long[(ranges.length+63)/64];
+    Arrays.fill(mask, -1L);
+    for(Builder.Engine engine : new Builder.Engine[] {Builder.Engine.SIMPLE, Builder.Engine.ASM, Builder.Engine.ASM_FIELDS,
+                                                      Builder.Engine.POINT, Builder.Engine.AUTO}) {
+      // The tree is already built, not as ARRAY needs it:
+      Builder b = new Builder(ranges, 0, 20000);
+      b.getCounter(engine);
+      MaskedLongRangeMultiSet set = b.getMaskedMultiSet(mask);
+      LongRangeMultiSet arraySet = b.getMultiSet(Builder.Engine.ARRAY);
+      for(int i=0;i<200;i++) {
+        long v = random.nextInt(20001);
+        verify(ranges, set, v);
+        verify(ranges, arraySet, v);
+      }
+    }
+  }
+
+  @Test
+  public void testPostings() {
+    int numRanges = 1+random.nextInt(100);
+    LongRange[] ranges = new LongRange[numRanges];
+    for(int i=0;i<numRanges;i++) {
+      long min = random.nextInt(10000);
+      long max = min + random.nextInt(random.nextInt(3) == 0 ? 1 : 3000);
+      ranges[i] = new LongRange("r" + i, min, random.nextBoolean(), max, random.nextBoolean());
+    }
+    LongRangeMultiSet set = new Builder(ranges, 0, 20000).getMultiSet(Builder.Engine.AUTO);
+    // Reused across blocks:
+    LongRangePostings postings = new LongRangePostings(numRanges);
+    int iters = atLeast(20);
+    for(int iter=0;iter<iters;iter++) {
+      int len = random.nextInt(500);
+      int off = random.nextInt(10);
+      long[] values = new long[off+len];
+      for(int i=0;i<values.length;i++) {
+        values[i] = random.nextInt(20001);
+      }
+      postings.fill(set, values, off, len);
+      long[][] bits = new long[numRanges][(len+63)/64];
+      LongRangePostings.fillBits(set, values, off, len, bits);
+      int[] rows = new int[len];
+      for(int range=0;range<numRanges;range++) {
+        int count = postings.copyRows(range, rows, 0);
+        assertEquals(count, postings.getCount(range));
+        int upto = 0;
+        for(int j=0;j<len;j++) {
+          boolean expected = ranges[range].accept(values[off+j]);
+          if (expected) {
+            assertTrue(upto < count);
+            assertEquals(j, rows[upto++]);
+          }
+          assertEquals(expected, (bits[range][j>>>6] & (1L << j)) != 0);
+        }
+        assertEquals(upto, count);
+      }
+    }
+  }
+
+  @Test
+  public void testCaching() {
+    int numRanges = 1+random.nextInt(300);
+    LongRange[] ranges = new LongRange[numRanges];
+    for(int i=0;i<numRanges;i++) {
+      long min = random.nextInt(10000);
+      long max = min + random.nextInt(random.nextBoolean() ? 100 : 5000);
+      ranges[i] = new LongRange("r" + i, min, random.nextBoolean(), max, random.nextBoolean());
+    }
+    Builder b = new Builder(ranges, 0, 20000);
+    // Sometimes too small to cache all values:
+    boolean cacheAll = random.nextBoolean();
+    int maxCachedMatches = cacheAll ? numRanges : 1+random.nextInt(20);
+    CachingLongRangeMultiSet set = new CachingLongRangeMultiSet(b.getMultiSet(Builder.Engine.AUTO), 1024, maxCachedMatches, 0.5);
+
+    // A few hot values:
+    long[] hot = new long[8];
+    for(int i=0;i<hot.length;i++) {
+      hot[i] = random.nextInt(20001);
+    }
+    for(int i=0;i<3*CachingLongRangeMultiSet.WINDOW;i++) {
+      verify(ranges, set, hot[random.nextInt(hot.length)]);
+    }
+    if (cacheAll) {
+      assertEquals(0, set.getBypassCount());
+    }
+
+    // Then values that don't repeat, which turn off the
+    // cache:
+    for(int i=0;i<3*CachingLongRangeMultiSet.WINDOW;i++) {
+      verify(ranges, set, random.nextInt(20001));
+    }
+    assertTrue(set.getBypassCount() > 0);
+    assertTrue(set.isBypassed());
+    long hits = set.getHitCount();
+    for(int i=0;i<CachingLongRangeMultiSet.WINDOW;i++) {
+      verify(ranges, set, hot[0]);
+    }
+    assertEquals(hits, set.getHitCount());
+  }
+
+  @Test
+  public void testCanonicalIntervals() {
+    for(int iter=0;iter<100;iter++) {
+      int numRanges = 1+random.nextInt(20);
+      LongRange[] ranges = new LongRange[numRanges];
+      for(int i=0;i<numRanges;i++) {
+        long min = random.nextInt(50);
+        long max = min + random.nextInt(20);
+        ranges[i] = new LongRange("r" + i, min, random.nextBoolean(), max, random.nextBoolean());
+      }
+      Builder b = new Builder(ranges, 0, 100);
+      long[] ends = b.getElementaryBoundaries();
+      assertEquals(100, ends[ends.length-1]);
+
+      // Adjacent intervals must never be covered by the
+      // same ranges:
+      for(int i=0;i<ends.length-1;i++) {
+        boolean same = true;
+        for(LongRange range : ranges) {
+          if (range.accept(ends[i]) != range.accept(ends[i]+1)) {
+            same = false;
+            break;
+          }
+        }
+        assertTrue("intervals " + i + " and " + (i+1) + " should be merged", !same);
+      }
+    }
+  }
+
+  @Test
+  public void testParallelFinish() throws Exception {
+    // Enough ranges that the build goes parallel:
+    int numRanges = 50000;
+    LongRange[] ranges = new LongRange[numRanges];
+    for(int i=0;i<numRanges;i++) {
+      long min = random.nextInt(1000000);
+      long max = min + random.nextInt(1000);
+      ranges[i] = new LongRange("r" + i, min, true, max, random.nextBoolean());
+    }
+
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      Builder b1 = new Builder(ranges, 0, 2000000);
+      Builder b2 = new Builder(ranges, 0, 2000000, pool);
+      for(int i=0;i<10000;i++) {
+        long v = random.nextInt(100000);
+        b1.record(v);
+        b2.record(v);
+      }
+      assertTrue(Arrays.equals(b1.getLeafDepths(), b2.getLeafDepths()));
+
+      LongRangeMultiSet set1 = b1.getMultiSet(false, false);
+      LongRangeMultiSet set2 = b2.getMultiSet(false, false);
+      int[] answers1 = new int[numRanges];
+      int[] answers2 = new int[numRanges];
+      for(int iter=0;iter<2000;iter++) {
+        long v = random.nextInt(1001000);
+        int count = set1.lookup(v, answers1);
+        assertEquals(count, set2.lookup(v, answers2));
+        // Same answers, in the same order:
+        for(int i=0;i<count;i++) {
+          assertEquals(answers1[i], answers2[i]);
+        }
+        verify(ranges, set2, v);
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
   private void verify(LongRange[] ranges, LongRangeMultiSet set, long v) {
     int[] result = new int[ranges.length];
     int actualCount = set.lookup(v, result);
@@ -243,6 +1224,152 @@ public class TestLongRangeMultiSet {
     }
   }
 
+  @Test
+  public void testSwap() throws Exception {
+    LongRange[] ranges1 = new LongRange[] {
+        new LongRange("a", 0, true, 10, false),
+        new LongRange("b", 5, true, 20, false),
+      };
+    LongRange[] ranges2 = new LongRange[] {
+        new LongRange("c", 100, true, 200, false),
+        new LongRange("d", 0, true, 150, false),
+        new LongRange("e", 50, true, 60, true),
+      };
+
+    LongRangeMultiSet first = new Builder(ranges1).getMultiSet(random.nextBoolean(), random.nextBoolean());
+    SwappableLongRangeMultiSet set = new SwappableLongRangeMultiSet(first);
+    for(long x = -10; x < 250; x++) {
+      verify(ranges1, set, x);
+    }
+
+    ExecutorService exec = Executors.newSingleThreadExecutor();
+    try {
+      assertSame(first, set.rebuild(new Builder(ranges2), random.nextBoolean(), random.nextBoolean(), exec).get());
+    } finally {
+      exec.shutdown();
+    }
+    assertEquals(1, set.getGeneration());
+    for(long x = -10; x < 250; x++) {
+      verify(ranges2, set, x);
+    }
+
+    LongRangeMultiSet second = set.current();
+    assertSame(second, set.swap(first));
+    assertEquals(2, set.getGeneration());
+    for(long x = -10; x < 250; x++) {
+      verify(ranges1, set, x);
+    }
+  }
+
+  @Test
+  public void testSwapStaleRebuild() throws Exception {
+    LongRange[] ranges = new LongRange[] {
+        new LongRange("a", 0, true, 10, false)
+      };
+    LongRangeMultiSet first = new Builder(ranges).getMultiSet(false, false);
+    SwappableLongRangeMultiSet set = new SwappableLongRangeMultiSet(first);
+
+    // Rebuild is requested first, but only runs after a
+    // newer swap was published, so it must be discarded:
+    ExecutorService exec = Executors.newSingleThreadExecutor();
+    final CountDownLatch blocked = new CountDownLatch(1);
+    try {
+      exec.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            blocked.await();
+            return null;
+          }
+        });
+      Future<LongRangeMultiSet> f = set.rebuild(new Builder(ranges), false, false, exec);
+      LongRangeMultiSet newer = new Builder(ranges).getMultiSet(false, true);
+      assertSame(first, set.swap(newer));
+      blocked.countDown();
+      assertNull(f.get());
+      assertSame(newer, set.current());
+      assertEquals(1, set.getGeneration());
+    } finally {
+      exec.shutdown();
+    }
+  }
+
+  @Test
+  public void testTiered() throws Exception {
+    LongRange[] ranges = new LongRange[] {
+        new LongRange("a", 0, true, 10, false),
+        new LongRange("b", 0, true, 20, false),
+        new LongRange("c", 10, true, 30, false),
+        new LongRange("d", 15, true, 50, false),
+      };
+    Builder b = new Builder(ranges);
+    maybeTrain(b, 0, 100);
+
+    ExecutorService exec = Executors.newSingleThreadExecutor();
+    final CountDownLatch blocked = new CountDownLatch(1);
+    final CountDownLatch upgraded = new CountDownLatch(1);
+    try {
+      exec.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            blocked.await();
+            return null;
+          }
+        });
+      SwappableLongRangeMultiSet set = b.getTieredMultiSet(random.nextBoolean(), exec,
+                                                           new SwappableLongRangeMultiSet.Listener() {
+                                                             @Override
+                                                             public void published(long generation, LongRangeMultiSet newSet) {
+                                                               assertEquals(1, generation);
+                                                               upgraded.countDown();
+                                                             }
+                                                           });
+      assertEquals(0, set.getGeneration());
+      for(long x = -10; x < 100; x++) {
+        verify(ranges, set, x);
+      }
+      blocked.countDown();
+      assertTrue(upgraded.await(1, TimeUnit.MINUTES));
+      assertEquals(1, set.getGeneration());
+      assertTrue(set.current() != null && set.current().getClass().getName().endsWith("$Compiled"));
+      for(long x = -10; x < 100; x++) {
+        verify(ranges, set, x);
+      }
+    } finally {
+      exec.shutdown();
+    }
+  }
+
+  @Test
+  public void testAdaptive() throws Exception {
+    LongRange[] ranges = new LongRange[64];
+    for(int i=0;i<ranges.length;i++) {
+      ranges[i] = new LongRange(""+i, 10*i, true, 10*i+20, false);
+    }
+    Builder b = new Builder(ranges, 0, 1000);
+    ExecutorService exec = Executors.newSingleThreadExecutor();
+    AdaptiveLongRangeMultiSet set = b.getAdaptiveMultiSet(random.nextBoolean(), exec, 1, 1000, 1.05);
+    double startCost = set.getExpectedCost();
+
+    // All values land in a narrow window, so a tree
+    // trained for it is much shallower there:
+    for(int i=0;i<5000;i++) {
+      verify(ranges, set, 100 + random.nextInt(10));
+    }
+    exec.shutdown();
+    assertTrue(exec.awaitTermination(1, TimeUnit.MINUTES));
+
+    assertTrue(set.getCheckCount() > 0);
+    assertTrue(set.getRebuildCount() > 0);
+    assertTrue("gain=" + set.getLastRebuildGain(), set.getLastRebuildGain() > 1.05);
+    assertTrue(set.getExpectedCost() < startCost || startCost == 0.0);
+
+    // Still correct everywhere, and keeps working (w/o
+    // checking) after the executor is gone:
+    for(long x = 0; x <= 1000; x++) {
+      verify(ranges, set, x);
+    }
+  }
+
   private void maybeTrain(Builder b, int min, int max) {
     // nocommit
     if (false && random.nextBoolean()) {